@@ -0,0 +1,31 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler added to whatever is given on the command line,
+ * so every report shows the allocation rate next to the throughput.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		new Runner(new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BasicBSONEncoder;
+
+import com.mongodb.DBObject;
+
+/**
+ * Reports the average BSON size of the docs the writer builds for each kind of capture,
+ * with the logical column names and with the compact schema, and the bytes the compact
+ * schema saves per doc. Bodies dominate full docs, so the sizes are also reported with
+ * METADATA_ONLY, which leaves only the part the keys weigh on. Last, with split storage,
+ * the size of the metadata doc left once the recording is split off, which is what a
+ * scan of the metadata reads, against the full doc.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.bds.io.mongodb.DocumentSizes
+ * </pre>
+ */
+public class DocumentSizes {
+
+	public static void main(String[] args) throws Exception {
+		MongodbStandIn standIn = new MongodbStandIn();
+		try {
+			System.out.println(String.format("%-12s %-14s %10s %10s %8s %7s",
+					"kind", "policy", "logical", "compact", "saved", "saved%"));
+			for (String kind : new String[] {"small-html", "large-html", "binary"}) {
+				for (MongodbParameters.StoragePolicy policy : new MongodbParameters.StoragePolicy[] {
+						MongodbParameters.StoragePolicy.TEXT, MongodbParameters.StoragePolicy.METADATA_ONLY}) {
+					double logical = averageSize(standIn, kind, policy, false, false);
+					double compact = averageSize(standIn, kind, policy, true, false);
+					System.out.println(String.format("%-12s %-14s %10.0f %10.0f %8.0f %6.1f%%",
+							kind, policy, logical, compact, logical - compact, 100 * (logical - compact) / logical));
+				}
+			}
+			System.out.println();
+			System.out.println(String.format("%-12s %10s %10s %7s", "kind", "full", "metadata", "read%"));
+			for (String kind : new String[] {"small-html", "large-html", "binary"}) {
+				double full = averageSize(standIn, kind, MongodbParameters.StoragePolicy.TEXT, true, false);
+				double metadata = averageSize(standIn, kind, MongodbParameters.StoragePolicy.TEXT, true, true);
+				System.out.println(String.format("%-12s %10.0f %10.0f %6.1f%%", kind, full, metadata, 100 * metadata / full));
+			}
+		} finally {
+			standIn.close();
+		}
+	}
+
+	/**
+	 * @return the average BSON size of the docs of the synthetic captures of a kind, of
+	 * what is left of them with the recording split off if splitContent.
+	 */
+	private static double averageSize(final MongodbStandIn standIn, final String kind,
+			final MongodbParameters.StoragePolicy policy, final boolean compactSchema, final boolean splitContent)
+			throws IOException {
+		MongodbParameters parameters = new MongodbParameters();
+		parameters.setHost("127.0.0.1");
+		parameters.setPort(standIn.getPort());
+		parameters.setDatabase("sizes");
+		parameters.setCollection("pages");
+		parameters.setTimeZone("Asia/Shanghai");
+		parameters.setDefaultStoragePolicy(policy);
+		parameters.setCompactSchema(compactSchema);
+		parameters.setIndexes(Collections.<MongodbParameters.Index>emptyList());
+
+		MongodbWriterProcessor settings = new MongodbWriterProcessor();
+		settings.setMongodbParameters(parameters);
+		MongodbWriterPool pool = new MongodbWriterPool(new AtomicInteger(), parameters, settings, 1, 1000,
+				new MongodbWriterStats());
+		SyntheticCaptures captures = new SyntheticCaptures();
+		captures.kind = kind;
+		captures.setUp();
+		try {
+			MongodbWriter writer = new MongodbWriter(new AtomicInteger(), settings, parameters, pool);
+			MongodbDocumentEncoder encoder = new MongodbDocumentEncoder(parameters);
+			MongodbSchema schema = MongodbSchema.of(parameters);
+			MongodbContentSplitter splitter = new MongodbContentSplitter(parameters, null);
+			BasicBSONEncoder bson = new BasicBSONEncoder();
+			long total = 0;
+			int count = captures.size();
+			for (int i = 0; i < count; i++) {
+				MongodbCapture capture = MongodbCapture.of(captures.next(), "93.184.216.34");
+				DBObject doc = encoder.encode(capture);
+				doc.put("_id", capture.getId());
+				writer.putContent(doc, capture);
+				doc = schema.compact(doc);
+				if (splitContent) {
+					splitter.split(doc);
+				}
+				total += bson.encode(doc).length;
+			}
+			return (double) total / count;
+		} finally {
+			captures.tearDown();
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.archive.io.WriterPoolSettings;
+import org.archive.modules.CrawlURI;
+import org.archive.util.ArchiveUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.DBObject;
+
+/**
+ * Throughput of the steps {@link MongodbWriter} takes for every CrawlURI, without MongoDB:
+ * decoding a recording, finding the content in it, formatting the fetch time and building
+ * the whole doc. Run with the GC profiler (the default of {@link BenchmarkRunner}) to see
+ * bytes allocated per operation next to the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MongodbWriterBenchmark {
+
+	private MongodbParameters parameters;
+	private MongodbWriterPool pool;
+	private MongodbWriter writer;
+	private MongodbDocumentEncoder encoder;
+	private long fetchTime = 1413849600000L;
+
+	/**
+	 * Storage policy of every body in {@link #buildDocument}, e.g. -p storagePolicy=BINARY
+	 * to see what skipping the decode saves on binary captures.
+	 */
+	@Param({"TEXT"})
+	public String storagePolicy;
+
+	/**
+	 * Whether {@link #buildDocument} compacts the doc, -p compactSchema=true for its cost;
+	 * DocumentSizes reports what it saves.
+	 */
+	@Param({"false"})
+	public boolean compactSchema;
+	private MongodbSchema schema;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		parameters = new MongodbParameters();
+		// nothing is inserted, the client never connects
+		parameters.setHost("localhost");
+		parameters.setDatabase("benchmark");
+		parameters.setCollection("pages");
+		parameters.setTimeZone("Asia/Shanghai");
+		parameters.setDefaultStoragePolicy(MongodbParameters.StoragePolicy.valueOf(storagePolicy));
+		parameters.setCompactSchema(compactSchema);
+		pool = new MongodbWriterPool(new AtomicInteger(), parameters, new WriterPoolSettings() {
+			public long getMaxFileSizeBytes() {
+				return MongodbParameters.DEFAULT_MAX_CONTENT_SIZE_IN_BYTES;
+			}
+			public String getPrefix() {
+				return "benchmark";
+			}
+			public String getTemplate() {
+				return "";
+			}
+			public List<File> calcOutputDirs() {
+				return Collections.emptyList();
+			}
+			public boolean getCompress() {
+				return false;
+			}
+			public List<String> getMetadata() {
+				return Collections.emptyList();
+			}
+			public boolean getFrequentFlushes() {
+				return false;
+			}
+			public int getWriteBufferSize() {
+				return 16 * 1024;
+			}
+		}, 1, 1000, new MongodbWriterStats());
+		writer = new MongodbWriter(new AtomicInteger(), pool.getSettings(), parameters, pool);
+		encoder = new MongodbDocumentEncoder(parameters);
+		schema = MongodbSchema.of(parameters);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		pool.close();
+	}
+
+	/**
+	 * Decode the whole response to a string, as the writer did for every part of the doc.
+	 */
+	@Benchmark
+	public String encodedString(final SyntheticCaptures captures) throws IOException {
+		CrawlURI curi = captures.next();
+		return writer.getEncodedStringFromInputStream(curi.getRecorder().getRecordedInput().getReplayInputStream(),
+				(int) curi.getRecorder().getRecordedInput().getSize(), curi);
+	}
+
+	/**
+	 * Search the decoded response for the start of the html, as the writer did to split off the headers.
+	 */
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public int contentIndex(final SyntheticCaptures captures) {
+		captures.next();
+		return MongodbWriter.getContentIndex(captures.lastDecoded());
+	}
+
+	/**
+	 * Format the fetch time as the writer did: to a 14-digit date, parsed back and formatted
+	 * with new SimpleDateFormats in the configured time zone.
+	 */
+	@Benchmark
+	public String processedAtLegacy() throws ParseException {
+		String fetchTime = ArchiveUtils.get14DigitDate(this.fetchTime++);
+		SimpleDateFormat parser = new SimpleDateFormat("yyyyMMddHHmmss");
+		parser.setTimeZone(TimeZone.getTimeZone("UTC"));
+		Date localDate = parser.parse(fetchTime);
+		SimpleDateFormat formatter = new SimpleDateFormat(MongodbDocumentEncoder.PROCESSED_AT_PATTERN);
+		formatter.setTimeZone(TimeZone.getTimeZone(parameters.getTimeZone()));
+		return formatter.format(localDate);
+	}
+
+	/**
+	 * Format the fetch time with the encoder's shared formatter.
+	 */
+	@Benchmark
+	public String processedAt() {
+		return encoder.formatProcessedAt(this.fetchTime++);
+	}
+
+	/**
+	 * Build the whole doc of a capture: metadata, request, headers and content.
+	 */
+	@Benchmark
+	public DBObject buildDocument(final SyntheticCaptures captures) throws IOException {
+		MongodbCapture capture = MongodbCapture.of(captures.next(), "93.184.216.34");
+		DBObject doc = encoder.encode(capture);
+		writer.putContent(doc, capture);
+		return schema.compact(doc);
+	}
+}
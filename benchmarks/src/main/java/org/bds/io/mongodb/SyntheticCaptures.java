@@ -0,0 +1,232 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.archive.io.ReplayInputStream;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Fetched CrawlURIs with real recorders, as the writer sees them after a fetch.
+ *
+ * <p>Body sizes follow a log-normal distribution around the median of each kind, so a
+ * run mixes typical and outlying pages. Recordings larger than the recorder's in-memory
+ * buffer spill into its backing file, as they do in a crawl.
+ */
+@State(Scope.Benchmark)
+public class SyntheticCaptures {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Recorder buffers as configured by a default Heritrix crawl
+	private static final int OUT_BUFFER_SIZE = 16 * 1024;
+	private static final int IN_BUFFER_SIZE = 512 * 1024;
+
+	/**
+	 * small-html: pages around 30KB. large-html: pages around 300KB. binary: images and
+	 * documents around 150KB. huge: bodies of 10MB and more.
+	 */
+	@Param({"small-html", "large-html", "binary", "huge"})
+	public String kind;
+
+	private File directory;
+	private List<CrawlURI> curis = new ArrayList<CrawlURI>();
+	private List<String> decoded = new ArrayList<String>();
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mongodb-benchmark", "");
+		directory.delete();
+		directory.mkdirs();
+
+		Random random = new Random(42);
+		int count = "huge".equals(kind) ? 2 : 64;
+		for (int i = 0; i < count; i++) {
+			CrawlURI curi = newCapture(directory, random, kind, i);
+			curis.add(curi);
+			ByteArrayOutputStream response = new ByteArrayOutputStream((int) curi.getContentSize());
+			ReplayInputStream in = curi.getRecorder().getRecordedInput().getReplayInputStream();
+			try {
+				in.readFullyTo(response);
+			} finally {
+				in.close();
+			}
+			decoded.add(new String(response.toByteArray(), UTF8));
+		}
+	}
+
+	/**
+	 * Record a synthetic fetch of the given kind.
+	 *
+	 * @param directory where the recorder keeps its backing files
+	 * @param random source of the body size and content
+	 * @param kind one of the kinds of {@link #kind}
+	 * @param i number of the capture, used in its url and file names
+	 * @return a fetched CrawlURI with a closed recorder, ready to be written
+	 */
+	public static CrawlURI newCapture(final File directory, final Random random, final String kind, final int i)
+			throws IOException {
+		int size;
+		boolean html = true;
+		if ("small-html".equals(kind)) {
+			size = logNormal(random, 30 * 1024, 0.6, 2 * 1024, 100 * 1024);
+		} else if ("large-html".equals(kind)) {
+			size = logNormal(random, 300 * 1024, 0.5, 100 * 1024, 2 * 1024 * 1024);
+		} else if ("binary".equals(kind)) {
+			size = logNormal(random, 150 * 1024, 1.0, 5 * 1024, 4 * 1024 * 1024);
+			html = false;
+		} else if ("huge".equals(kind)) {
+			size = 10 * 1024 * 1024 + random.nextInt(4 * 1024 * 1024);
+		} else {
+			throw new IllegalArgumentException("Unknown kind: " + kind);
+		}
+		byte[] body = html ? html(random, size) : binary(random, size);
+		return capture(directory, i, html ? "text/html" : "image/jpeg", body);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for (CrawlURI curi : curis) {
+			curi.getRecorder().cleanup();
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * @return the next capture, round robin.
+	 */
+	public CrawlURI next() {
+		CrawlURI curi = curis.get(next);
+		next = (next + 1) % curis.size();
+		return curi;
+	}
+
+	/**
+	 * @return the number of captures {@link #next()} cycles through.
+	 */
+	public int size() {
+		return curis.size();
+	}
+
+	/**
+	 * @return the response of the capture returned last, decoded as the legacy writer did.
+	 */
+	public String lastDecoded() {
+		return decoded.get((next + decoded.size() - 1) % decoded.size());
+	}
+
+	private static CrawlURI capture(final File directory, final int i, final String contentType, final byte[] body)
+			throws IOException {
+		CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://www.example" + (i % 8) + ".com/section/" + i + ".html"));
+		Recorder recorder = new Recorder(directory, "capture-" + i, OUT_BUFFER_SIZE, IN_BUFFER_SIZE);
+		recorder.setCharset(UTF8);
+
+		OutputStream out = recorder.outputWrap(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		out.write(("GET /section/" + i + ".html HTTP/1.1\r\nHost: www.example" + (i % 8) + ".com\r\n"
+				+ "User-Agent: Mozilla/5.0 (compatible; heritrix/3.4.0 +http://example.org)\r\n"
+				+ "Accept: text/html,application/xhtml+xml,*/*;q=0.8\r\nConnection: close\r\n\r\n").getBytes(UTF8));
+
+		byte[] headers = headers(contentType.startsWith("text/") ? contentType + "; charset=UTF-8" : contentType, body.length);
+		InputStream in = recorder.inputWrap(new ByteArrayInputStream(concat(headers, body)));
+		readFully(in, headers.length);
+		recorder.markContentBegin();
+		readFully(in, body.length);
+		recorder.close();
+
+		curi.setRecorder(recorder);
+		curi.setFetchType(CrawlURI.FetchType.HTTP_GET);
+		curi.setFetchStatus(200);
+		curi.setFetchBeginTime(1413849600000L + i * 1000L);
+		curi.setContentType(contentType);
+		curi.setContentSize(recorder.getRecordedInput().getSize());
+		curi.setContentDigest("sha1", new byte[20]);
+		return curi;
+	}
+
+	private static byte[] headers(final String contentType, final int contentLength) {
+		return ("HTTP/1.1 200 OK\r\nDate: Tue, 21 Oct 2014 00:00:00 GMT\r\nServer: Apache/2.2.22\r\n"
+				+ "Content-Type: " + contentType + "\r\nContent-Length: " + contentLength + "\r\n"
+				+ "Cache-Control: max-age=3600\r\nConnection: close\r\n\r\n").getBytes(UTF8);
+	}
+
+	private static byte[] html(final Random random, final int size) {
+		String[] words = {"crawl", "archive", "the", "of", "and", "web", "page", "data", "mongodb", "heritrix",
+				"\u4e2d\u6587", "\u7f51\u9875", "link", "content", "store"};
+		StringBuilder html = new StringBuilder(size + 256);
+		html.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Synthetic page</title></head><body>\n");
+		while (html.length() < size) {
+			html.append("<div class=\"item\"><a href=\"/section/").append(random.nextInt(100000)).append(".html\">");
+			for (int w = 0; w < 12; w++) {
+				html.append(words[random.nextInt(words.length)]).append(' ');
+			}
+			html.append("</a></div>\n");
+		}
+		html.append("</body></html>\n");
+		return html.toString().getBytes(UTF8);
+	}
+
+	private static byte[] binary(final Random random, final int size) {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static int logNormal(final Random random, final int median, final double sigma, final int min, final int max) {
+		double size = median * Math.exp(sigma * random.nextGaussian());
+		return (int) Math.max(min, Math.min(max, size));
+	}
+
+	private static byte[] concat(final byte[] a, final byte[] b) {
+		byte[] both = new byte[a.length + b.length];
+		System.arraycopy(a, 0, both, 0, a.length);
+		System.arraycopy(b, 0, both, a.length, b.length);
+		return both;
+	}
+
+	private static void readFully(final InputStream in, final int length) throws IOException {
+		byte[] buffer = new byte[8192];
+		int remaining = length;
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+			if (read == -1) {
+				throw new IOException("Recording ended early");
+			}
+			remaining -= read;
+		}
+	}
+}
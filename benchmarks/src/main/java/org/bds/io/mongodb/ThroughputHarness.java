@@ -0,0 +1,189 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.archive.modules.CrawlURI;
+import org.archive.modules.fetcher.DefaultServerCache;
+
+/**
+ * Drives N threads through {@link MongodbWriterProcessor#innerProcessResult(CrawlURI)},
+ * the way ToeThreads do, against a {@link MongodbStandIn}, and reports throughput, latency
+ * and the time spent waiting for a writer. No network or MongoDB is needed.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.bds.io.mongodb.ThroughputHarness \
+ *     --threads=32 --urls=50000 --poolSize=8 --bulkDocNumber=200 --latencyMs=2
+ * </pre>
+ *
+ * <p>Options, with their defaults: threads=16, urls=20000, kind=small-html (see
+ * {@link SyntheticCaptures#kind}), poolSize=threads, bulkDocNumber=100, maxBatchAgeMs=5000,
+ * maxWaitForIdleMs=500, asyncWriterThreads=0, asyncQueueCapacity=1000, asyncQueueBytes=268435456,
+ * upsertKey=NONE, adaptiveBatchSize=false, targetBatchLatencyMs=250, writerLeasing=POOL,
+ * writerStripes=0, continueOnError=true, maxWriteRetries=5, retryBackoffMs=500,
+ * maxInlineRetryMs=250, splitContent=false, deduplicateContent=false, latencyMs=1, jitterMs=0,
+ * errorRate=0, duplicateRate=0, failoverAtMs=0, failoverMs=0 (no failover).
+ */
+public class ThroughputHarness {
+
+	// Distinct captures each thread cycles through
+	private static final int CAPTURES_PER_THREAD = 16;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parse(args);
+		final int threads = getInt(options, "threads", 16);
+		final int urls = getInt(options, "urls", 20000);
+		String kind = get(options, "kind", "small-html");
+
+		MongodbStandIn standIn = new MongodbStandIn();
+		standIn.setLatency(getInt(options, "latencyMs", 1), getInt(options, "jitterMs", 0));
+		standIn.setErrorRate(Double.parseDouble(get(options, "errorRate", "0")));
+		standIn.setDuplicateRate(Double.parseDouble(get(options, "duplicateRate", "0")));
+
+		MongodbParameters parameters = new MongodbParameters();
+		parameters.setHost("127.0.0.1");
+		parameters.setPort(standIn.getPort());
+		parameters.setDatabase("harness");
+		parameters.setCollection("pages");
+		parameters.setBulkDocNumber(getInt(options, "bulkDocNumber", 100));
+		parameters.setMaxBatchAgeMs(getInt(options, "maxBatchAgeMs", 5000));
+		parameters.setAsyncWriterThreads(getInt(options, "asyncWriterThreads", 0));
+		parameters.setAsyncQueueCapacity(getInt(options, "asyncQueueCapacity", 1000));
+		parameters.setAsyncQueueBytes(getInt(options, "asyncQueueBytes", 256*1024*1024));
+		parameters.setUpsertKey(MongodbParameters.UpsertKey.valueOf(get(options, "upsertKey", "NONE")));
+		parameters.setAdaptiveBatchSize(Boolean.parseBoolean(get(options, "adaptiveBatchSize", "false")));
+		parameters.setTargetBatchLatencyMs(getInt(options, "targetBatchLatencyMs", 250));
+		parameters.setWriterLeasing(MongodbParameters.WriterLeasing.valueOf(get(options, "writerLeasing", "POOL")));
+		parameters.setWriterStripes(getInt(options, "writerStripes", 0));
+		parameters.setContinueOnError(Boolean.parseBoolean(get(options, "continueOnError", "true")));
+		parameters.setMaxWriteRetries(getInt(options, "maxWriteRetries", 5));
+		parameters.setRetryBackoffMs(getInt(options, "retryBackoffMs", 500));
+		parameters.setMaxInlineRetryMs(getInt(options, "maxInlineRetryMs", 250));
+		parameters.setSplitContent(Boolean.parseBoolean(get(options, "splitContent", "false")));
+		parameters.setDeduplicateContent(Boolean.parseBoolean(get(options, "deduplicateContent", "false")));
+
+		DefaultServerCache serverCache = new DefaultServerCache();
+		final MongodbWriterProcessor processor = new MongodbWriterProcessor();
+		processor.setMongodbParameters(parameters);
+		processor.setServerCache(serverCache);
+		processor.setPoolMaxActive(getInt(options, "poolSize", threads));
+		// the pool waits this long for an idle writer before it makes another one
+		processor.setMaxWaitForIdleMs(getInt(options, "maxWaitForIdleMs", 500));
+
+		File directory = File.createTempFile("mongodb-harness", "");
+		directory.delete();
+		directory.mkdirs();
+		System.out.println("Recording " + threads * CAPTURES_PER_THREAD + " " + kind + " captures in " + directory);
+		Random random = new Random(42);
+		InetAddress ip = InetAddress.getByAddress(new byte[] {93, (byte) 184, (byte) 216, 34});
+		final List<List<CrawlURI>> captures = new ArrayList<List<CrawlURI>>();
+		for (int t = 0; t < threads; t++) {
+			List<CrawlURI> own = new ArrayList<CrawlURI>();
+			for (int i = 0; i < CAPTURES_PER_THREAD; i++) {
+				CrawlURI curi = SyntheticCaptures.newCapture(directory, random, kind, t * CAPTURES_PER_THREAD + i);
+				serverCache.getHostFor(curi.getUURI()).setIP(ip, -1);
+				own.add(curi);
+			}
+			captures.add(own);
+		}
+
+		processor.start();
+		if (getInt(options, "failoverMs", 0) > 0) {
+			standIn.setFailover(getInt(options, "failoverAtMs", 0), getInt(options, "failoverMs", 0));
+		}
+		final MongodbWriterStats.Histogram latency = new MongodbWriterStats.Histogram();
+		final AtomicLong processed = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads);
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final List<CrawlURI> own = captures.get(t);
+			final int share = urls / threads + (t < urls % threads ? 1 : 0);
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < share; i++) {
+							long begin = System.nanoTime();
+							processor.innerProcessResult(own.get(i % own.size()));
+							latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+							processed.incrementAndGet();
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "ToeThread-" + t);
+			thread.start();
+		}
+		done.await();
+		long processedAt = System.nanoTime();
+		// writes what is queued and flushes the last batches
+		processor.stop();
+		long stoppedAt = System.nanoTime();
+		standIn.close();
+
+		MongodbWriterStats stats = processor.getWriterStats();
+		double seconds = (stoppedAt - start) / 1e9;
+		System.out.println();
+		System.out.println(String.format("CrawlURIs:         %d in %.2fs (%.0f/s), last flush took %dms", processed.get(),
+				seconds, processed.get() / seconds, TimeUnit.NANOSECONDS.toMillis(stoppedAt - processedAt)));
+		System.out.println(String.format("Docs acknowledged: %d (%.0f/s), stand-in received %d in %d writes, %d failed",
+				stats.getDocsWritten(), stats.getDocsWritten() / seconds, standIn.getDocsInserted(), standIn.getWrites(),
+				standIn.getFailedWrites()));
+		System.out.println(String.format("Bytes:             %d (%.1f MB/s)", stats.getBytesWritten(),
+				stats.getBytesWritten() / seconds / (1024 * 1024)));
+		System.out.println(String.format("Process ms:        mean %.3f, p50 %.3f, p99 %.3f, max %.3f", latency.getMean() / 1000,
+				latency.getPercentile(0.5) / 1000.0, latency.getPercentile(0.99) / 1000.0, latency.getMax() / 1000.0));
+		System.out.println(String.format("Pool wait ms:      mean %.3f, p99 %.3f", stats.getMeanBorrowMs(), stats.getBorrowMs99()));
+		System.out.println();
+		System.out.print(processor.report());
+
+		for (List<CrawlURI> own : captures) {
+			for (CrawlURI curi : own) {
+				curi.getRecorder().cleanup();
+			}
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static Map<String, String> parse(String[] args) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+				throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+			}
+			options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+		}
+		return options;
+	}
+
+	private static String get(Map<String, String> options, String name, String defaultValue) {
+		return options.containsKey(name) ? options.get(name) : defaultValue;
+	}
+
+	private static int getInt(Map<String, String> options, String name, int defaultValue) {
+		return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+	}
+}
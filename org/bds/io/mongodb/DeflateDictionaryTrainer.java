@@ -0,0 +1,134 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a preset dictionary for {@link DeflateSerializer} from sampled pages.
+ *
+ * <p>Every sample is cut into overlapping segments; segments that occur in many
+ * samples, such as shared markup, scripts and headers, are the ones worth having
+ * in the dictionary. The most frequent segments end up at the end of the dictionary,
+ * where deflate reaches them with the shortest distances.
+ *
+ * <p>Usage: <code>DeflateDictionaryTrainer dictionary-file sample-file...</code>
+ */
+public class DeflateDictionaryTrainer {
+
+	// ISO-8859-1 maps every byte to one char, so segments can be kept as map keys
+	private static final Charset BYTES = Charset.forName("ISO-8859-1");
+
+	public static final int DEFAULT_SEGMENT_LENGTH = 32;
+	public static final int DEFAULT_MAX_SAMPLE_BYTES = 64 * 1024 * 1024;
+
+	private final int segmentLength;
+	private final int maxSampleBytes;
+	private long sampledBytes = 0;
+	private final Map<String, int[]> counts = new HashMap<String, int[]>();
+
+	public DeflateDictionaryTrainer() {
+		this(DEFAULT_SEGMENT_LENGTH, DEFAULT_MAX_SAMPLE_BYTES);
+	}
+
+	public DeflateDictionaryTrainer(int segmentLength, int maxSampleBytes) {
+		this.segmentLength = segmentLength;
+		this.maxSampleBytes = maxSampleBytes;
+	}
+
+	/**
+	 * Count the segments of one sampled page. Samples beyond maxSampleBytes are ignored.
+	 *
+	 * @param sample the page bytes
+	 */
+	public void addSample(byte[] sample) {
+		if (sampledBytes >= maxSampleBytes) {
+			return;
+		}
+		sampledBytes += sample.length;
+		String text = new String(sample, BYTES);
+		// segments overlap by half so shared runs are found whatever their offset
+		int step = Math.max(segmentLength / 2, 1);
+		for (int i = 0; i + segmentLength <= text.length(); i += step) {
+			String segment = text.substring(i, i + segmentLength);
+			int[] count = counts.get(segment);
+			if (count == null) {
+				counts.put(segment, new int[] {1});
+			} else {
+				count[0]++;
+			}
+		}
+	}
+
+	/**
+	 * @param maxSize maximum dictionary size, at most {@link DeflateSerializer#MAX_DICTIONARY_SIZE}
+	 * @return the dictionary, most frequent segments last
+	 */
+	public byte[] train(int maxSize) {
+		List<Map.Entry<String, int[]>> entries = new ArrayList<Map.Entry<String, int[]>>();
+		for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+			// a segment seen once is no help for the next page
+			if (entry.getValue()[0] > 1) {
+				entries.add(entry);
+			}
+		}
+		Collections.sort(entries, new Comparator<Map.Entry<String, int[]>>() {
+			public int compare(Map.Entry<String, int[]> a, Map.Entry<String, int[]> b) {
+				return b.getValue()[0] - a.getValue()[0];
+			}
+		});
+
+		StringBuilder dictionary = new StringBuilder(maxSize);
+		for (Map.Entry<String, int[]> entry : entries) {
+			if (dictionary.length() + segmentLength > maxSize) {
+				break;
+			}
+			// insert at the front, so the most frequent segments end up last
+			dictionary.insert(0, entry.getKey());
+		}
+		return dictionary.toString().getBytes(BYTES);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: DeflateDictionaryTrainer dictionary-file sample-file...");
+			System.exit(1);
+		}
+		DeflateDictionaryTrainer trainer = new DeflateDictionaryTrainer();
+		for (int i = 1; i < args.length; i++) {
+			File file = new File(args[i]);
+			InputStream in = new FileInputStream(file);
+			try {
+				trainer.addSample(MongodbWriter.readBytes(in, file.length()));
+			} finally {
+				in.close();
+			}
+		}
+		byte[] dictionary = trainer.train(DeflateSerializer.MAX_DICTIONARY_SIZE);
+		OutputStream out = new FileOutputStream(args[0]);
+		try {
+			out.write(dictionary);
+		} finally {
+			out.close();
+		}
+		System.out.println("Wrote " + dictionary.length + " byte dictionary to " + args[0]);
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses content with deflate, optionally primed with a preset dictionary.
+ *
+ * <p>A dictionary trained on sampled pages, see {@link DeflateDictionaryTrainer}, lets
+ * deflate reference the boilerplate that every page of a site shares from the first
+ * byte on. The dictionary's Adler-32 checksum is part of the name stored with each doc,
+ * readers need the same dictionary to inflate it.
+ *
+ * <p>A level of {@link Deflater#BEST_SPEED} is the fast codec; it keeps most of the
+ * ratio on HTML at a fraction of the CPU of the default level.
+ */
+public class DeflateSerializer implements StreamingSerializer {
+
+	public static final String NAME = "deflate";
+	public static final int MAX_DICTIONARY_SIZE = 32 * 1024; // deflate only looks back 32K
+
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private byte[] dictionary = null;
+	private String name = NAME;
+
+	public int getLevel() {
+		return level;
+	}
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	public byte[] getDictionary() {
+		return dictionary;
+	}
+	public void setDictionary(byte[] dictionary) {
+		if (dictionary != null && dictionary.length > MAX_DICTIONARY_SIZE) {
+			// only the last 32K can be referenced
+			byte[] tail = new byte[MAX_DICTIONARY_SIZE];
+			System.arraycopy(dictionary, dictionary.length - MAX_DICTIONARY_SIZE, tail, 0, MAX_DICTIONARY_SIZE);
+			dictionary = tail;
+		}
+		this.dictionary = dictionary;
+		this.name = NAME;
+		if (dictionary != null) {
+			Adler32 adler = new Adler32();
+			adler.update(dictionary);
+			this.name = NAME + ":dict-" + Long.toHexString(adler.getValue());
+		}
+	}
+
+	/**
+	 * Load the dictionary from a file, typically one written by {@link DeflateDictionaryTrainer}.
+	 *
+	 * @param path path of the dictionary file
+	 * @throws IOException
+	 */
+	public void setDictionaryFile(String path) throws IOException {
+		File file = new File(path);
+		InputStream in = new FileInputStream(file);
+		try {
+			setDictionary(MongodbWriter.readBytes(in, file.length()));
+		} finally {
+			in.close();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public OutputStream wrap(OutputStream out) throws IOException {
+		final Deflater deflater = new Deflater(level);
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		return new DeflaterOutputStream(out, deflater) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					// a deflater passed in is not ended by DeflaterOutputStream
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	public InputStream unwrap(InputStream in) throws IOException {
+		final Inflater inflater = new Inflater();
+		// Feed the zlib header ourselves, when it asks for a preset dictionary the
+		// inflater only accepts one after it has seen the dictionary id.
+		byte[] header = MongodbWriter.readBytes(in, 2);
+		if ((header[1] & 0x20) != 0) {
+			if (dictionary == null) {
+				inflater.end();
+				throw new IOException("Content was deflated with a dictionary, none is configured");
+			}
+			byte[] dictId = MongodbWriter.readBytes(in, 4);
+			inflater.setInput(concat(header, dictId));
+			try {
+				inflater.inflate(new byte[1]);
+			} catch (DataFormatException e) {
+				inflater.end();
+				throw new IOException(e);
+			}
+			inflater.setDictionary(dictionary);
+		} else {
+			inflater.setInput(header);
+		}
+		return new InflaterInputStream(in, inflater) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+		};
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] both = new byte[a.length + b.length];
+		System.arraycopy(a, 0, both, 0, a.length);
+		System.arraycopy(b, 0, both, a.length, b.length);
+		return both;
+	}
+
+	public byte[] serialize(byte[] bytes) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		try {
+			OutputStream out = wrap(baos);
+			out.write(bytes);
+			out.close();
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	@Override
+	public String toString() {
+		return getName() + " level " + level;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses content with gzip.
+ */
+public class GzipSerializer implements StreamingSerializer {
+
+	public static final String NAME = "gzip";
+
+	public String getName() {
+		return NAME;
+	}
+
+	public OutputStream wrap(OutputStream out) throws IOException {
+		return new GZIPOutputStream(out);
+	}
+
+	public InputStream unwrap(InputStream in) throws IOException {
+		return new GZIPInputStream(in);
+	}
+
+	public byte[] serialize(byte[] bytes) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		try {
+			OutputStream out = wrap(baos);
+			out.write(bytes);
+			out.close();
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+}
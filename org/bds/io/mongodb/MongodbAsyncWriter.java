@@ -0,0 +1,247 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes captures to MongoDB on dedicated threads, so ToeThreads only pay for the snapshot.
+ *
+ * <p>ToeThreads hand snapshots to a bounded queue and return. The queue is bounded both by
+ * the number of snapshots and by the bytes of recordings they copied, since a few large
+ * captures weigh more than many small ones. When either is reached,
+ * {@link #submit(MongodbCapture)} blocks until a writer thread is done with a capture, which
+ * slows the crawl down to what MongoDB can absorb instead of running out of heap.
+ * The time ToeThreads spend blocked is counted.
+ */
+public class MongodbAsyncWriter {
+
+	private static final Logger logger = Logger.getLogger(MongodbAsyncWriter.class.getName());
+
+	private static final long POLL_MS = 100;
+
+	private final MongodbWriterProcessor processor;
+	private final BlockingQueue<MongodbCapture> queue;
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private volatile boolean running = true;
+
+	// Submitted but not yet written, including captures being written right now
+	private long pending = 0;
+
+	// Snapshot bytes of the pending captures, guarded by bytesLock
+	private final long maxQueuedBytes;
+	private final Object bytesLock = new Object();
+	private long queuedBytes = 0;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong blockedSubmits = new AtomicLong();
+	private final AtomicLong blockedNanos = new AtomicLong();
+
+	/**
+	 * Start the writer threads.
+	 *
+	 * @param processor the processor whose pool the captures are written with
+	 * @param queueCapacity maximum number of captures waiting to be written
+	 * @param queueBytes maximum snapshot bytes of the captures waiting or being written
+	 * @param writerThreads number of writer threads
+	 */
+	public MongodbAsyncWriter(final MongodbWriterProcessor processor, final int queueCapacity,
+			final long queueBytes, final int writerThreads) {
+		this.processor = processor;
+		this.maxQueuedBytes = Math.max(queueBytes, 1);
+		this.queue = new ArrayBlockingQueue<MongodbCapture>(Math.max(queueCapacity, 1));
+		for (int i = 0; i < writerThreads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					writeLoop();
+				}
+			}, "MongodbAsyncWriter-" + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Queue a snapshot for writing, blocking while the queue is full.
+	 *
+	 * @param capture a snapshot, see {@link MongodbCapture#snapshot}
+	 * @throws InterruptedException
+	 */
+	public void submit(final MongodbCapture capture) throws InterruptedException {
+		synchronized (this) {
+			pending++;
+		}
+		submitted.incrementAndGet();
+		final long bytes = capture.getSnapshotBytes();
+		long start = System.nanoTime();
+		boolean blocked = false;
+		boolean reserved = false;
+		boolean queued = false;
+		try {
+			blocked = reserve(bytes);
+			reserved = true;
+			if (!queue.offer(capture)) {
+				blocked = true;
+				queue.put(capture);
+			}
+			queued = true;
+		} finally {
+			if (!queued) {
+				if (reserved) {
+					release(bytes);
+				}
+				done();
+			}
+			// an interrupted submit was waiting too
+			if (blocked || !queued) {
+				blockedSubmits.incrementAndGet();
+				blockedNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Wait for room for a snapshot in the byte bound and take it.
+	 *
+	 * @return true if it had to wait.
+	 */
+	private boolean reserve(final long bytes) throws InterruptedException {
+		synchronized (bytesLock) {
+			boolean waited = false;
+			// a snapshot larger than the bound goes through alone
+			while (queuedBytes > 0 && queuedBytes + bytes > maxQueuedBytes) {
+				waited = true;
+				bytesLock.wait();
+			}
+			queuedBytes += bytes;
+			return waited;
+		}
+	}
+
+	private void release(final long bytes) {
+		synchronized (bytesLock) {
+			queuedBytes -= bytes;
+			bytesLock.notifyAll();
+		}
+	}
+
+	protected void writeLoop() {
+		while (running || !queue.isEmpty()) {
+			MongodbCapture capture;
+			try {
+				capture = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (capture == null) {
+				continue;
+			}
+			try {
+				processor.writeSnapshot(capture);
+			} catch (IOException e) {
+				failed.incrementAndGet();
+				processor.getWriterStats().writeFailed();
+				logger.log(Level.SEVERE, "Failed write of Records: " + capture, e);
+			} catch (RuntimeException e) {
+				failed.incrementAndGet();
+				processor.getWriterStats().writeFailed();
+				logger.log(Level.SEVERE, "Failed write of Records: " + capture, e);
+			} finally {
+				release(capture.getSnapshotBytes());
+				done();
+			}
+		}
+	}
+
+	private synchronized void done() {
+		pending--;
+		if (pending == 0) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Wait until every capture submitted so far has been written.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void drain() throws InterruptedException {
+		while (pending > 0) {
+			wait(POLL_MS);
+		}
+	}
+
+	/**
+	 * Write what is queued and stop the writer threads.
+	 */
+	public void close() {
+		try {
+			drain();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		running = false;
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return captures waiting in the queue.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return bytes of recordings held by captures waiting or being written.
+	 */
+	public long getQueuedBytes() {
+		synchronized (bytesLock) {
+			return queuedBytes;
+		}
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return number of submits that found the queue full and had to wait.
+	 */
+	public long getBlockedSubmits() {
+		return blockedSubmits.get();
+	}
+
+	/**
+	 * @return total time ToeThreads spent waiting for room in the queue, in milliseconds.
+	 */
+	public long getBlockedMs() {
+		return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides when a batch is full, by number of docs and by bytes, for all writers and
+ * spools of a pool.
+ *
+ * <p>Batches start at bulkDocNumber docs and maxBatchBytes bytes. With adaptive batch
+ * sizing the limits then follow the latency of the bulk writes, additive increase and
+ * multiplicative decrease: a full batch acknowledged within targetBatchLatencyMs raises
+ * the limit it reached by a tenth of its start value, a slower or failed bulk write
+ * halves both. Batches so grow as long as MongoDB keeps up and shrink as soon as it
+ * does not. Whatever the feedback, a batch never exceeds what the servers accept in one
+ * message.
+ */
+public class MongodbBatchSizer {
+
+	private static final Logger logger = Logger.getLogger(MongodbBatchSizer.class.getName());
+
+	/** Smallest byte limit a decrease goes down to. */
+	public static final long MIN_BATCH_BYTES = 64 * 1024;
+
+	private final boolean adaptive;
+	private final long targetLatencyNanos;
+	private final int maxDocs;
+	private final long maxBytes;
+	private final int docStep;
+	private final long byteStep;
+	private final MongodbWriterStats stats;
+
+	private volatile int docLimit;
+	private volatile long byteLimit;
+
+	/**
+	 * @param parameters the MongoDB settings: bulkDocNumber, maxBatchBytes, adaptiveBatchSize
+	 * and targetBatchLatencyMs
+	 * @param maxWriteBatchSize most docs the servers accept in one bulk write
+	 * @param maxMessageSize most bytes the servers accept in one message
+	 * @param stats where the limits are published
+	 */
+	public MongodbBatchSizer(final MongodbParameters parameters, final int maxWriteBatchSize,
+			final long maxMessageSize, final MongodbWriterStats stats) {
+		this.adaptive = parameters.isAdaptiveBatchSize();
+		this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(parameters.getTargetBatchLatencyMs());
+		this.maxDocs = Math.max(maxWriteBatchSize, 1);
+		// leave room for the message header and the insert command around the docs
+		this.maxBytes = Math.max(maxMessageSize - 16 * 1024, MIN_BATCH_BYTES);
+		this.stats = stats;
+
+		this.docLimit = Math.max(Math.min(parameters.getBulkDocNumber(), maxDocs), 1);
+		this.byteLimit = Math.max(Math.min(parameters.getMaxBatchBytes(), maxBytes), MIN_BATCH_BYTES);
+		this.docStep = Math.max(docLimit / 10, 1);
+		this.byteStep = Math.max(byteLimit / 10, MIN_BATCH_BYTES);
+		publish();
+	}
+
+	/**
+	 * @param docs docs in the batch
+	 * @param bytes estimated size of those docs
+	 * @return true if the batch should be written now.
+	 */
+	public boolean isFull(final int docs, final long bytes) {
+		return docs >= docLimit || bytes >= byteLimit;
+	}
+
+	public int getDocLimit() {
+		return docLimit;
+	}
+
+	public long getByteLimit() {
+		return byteLimit;
+	}
+
+	/**
+	 * Called once MongoDB acknowledged a bulk write.
+	 *
+	 * @param docs docs in the bulk write
+	 * @param bytes estimated size of those docs
+	 * @param nanos time until MongoDB answered
+	 */
+	public synchronized void succeeded(final int docs, final long bytes, final long nanos) {
+		if (!adaptive) {
+			return;
+		}
+		if (nanos > targetLatencyNanos) {
+			decrease();
+			return;
+		}
+		// only a limit that was reached shows there is room for more
+		boolean changed = false;
+		if (docs >= docLimit && docLimit < maxDocs) {
+			docLimit = Math.min(docLimit + docStep, maxDocs);
+			changed = true;
+		}
+		if (bytes >= byteLimit && byteLimit < maxBytes) {
+			byteLimit = Math.min(byteLimit + byteStep, maxBytes);
+			changed = true;
+		}
+		if (changed) {
+			publish();
+		}
+	}
+
+	/**
+	 * Called when MongoDB rejected a bulk write, or did not answer.
+	 */
+	public synchronized void failed() {
+		if (adaptive) {
+			decrease();
+		}
+	}
+
+	private void decrease() {
+		int docs = Math.max(docLimit / 2, 1);
+		long bytes = Math.max(byteLimit / 2, MIN_BATCH_BYTES);
+		if (docs != docLimit || bytes != byteLimit) {
+			docLimit = docs;
+			byteLimit = bytes;
+			publish();
+		}
+	}
+
+	private void publish() {
+		stats.recordBatchLimits(docLimit, byteLimit);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Batch limits now " + docLimit + " docs, " + byteLimit + " bytes");
+		}
+	}
+}
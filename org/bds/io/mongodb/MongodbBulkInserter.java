@@ -0,0 +1,459 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWaitQueueFullException;
+
+/**
+ * Writes the docs of a batch in one unordered bulk write, so a doc MongoDB rejects
+ * neither fails the others nor keeps them from being written, and retries the docs
+ * whose failure may pass.
+ *
+ * <p>Every doc ends up with an {@link Outcome}. A duplicate key, a doc too large to be
+ * stored and any other rejection are final. A network error, no free connection or a
+ * server that is not, or no longer, the primary are retried, at most maxWriteRetries
+ * times, after a backoff that starts at retryBackoffMs, doubles with every retry and is
+ * jittered so the writers of a pool do not all come back at once. A replica set failover
+ * so costs a few retries of the docs written during the election, not the docs.
+ *
+ * <p>Writers pass a budget for the time slept between retries, since they hold their
+ * lock while writing; docs still retryable when it runs out are left with their
+ * retryable outcome, for the pool to retry in the background.
+ */
+public class MongodbBulkInserter {
+
+	private static final Logger logger = Logger.getLogger(MongodbBulkInserter.class.getName());
+
+	/** Server error codes, as of MongoDB 2.6. */
+	private static final Set<Integer> DUPLICATE_KEY_CODES = codes(11000, 11001, 12582);
+	private static final Set<Integer> TOO_LARGE_CODES = codes(10334, 17280);
+	private static final Set<Integer> NOT_PRIMARY_CODES = codes(10058, 10107, 13435, 13436, 11600, 11602, 91);
+	private static final Set<Integer> TRANSIENT_CODES = codes(6, 7, 89, 9001);
+
+	/**
+	 * How the write of a doc ended.
+	 */
+	public enum Outcome {
+		WRITTEN(null),
+		DUPLICATE_KEY("duplicateKey"),
+		TOO_LARGE("tooLarge"),
+		TRANSIENT("transient"),
+		NOT_PRIMARY("notPrimary"),
+		REJECTED("rejected");
+
+		private final String reason;
+
+		private Outcome(final String reason) {
+			this.reason = reason;
+		}
+
+		/**
+		 * @return why the doc was not written, for the CrawlURI annotation, null if it was.
+		 */
+		public String getReason() {
+			return reason;
+		}
+
+		/**
+		 * @return true if writing the doc again may succeed.
+		 */
+		public boolean isRetryable() {
+			return this == TRANSIENT || this == NOT_PRIMARY;
+		}
+	}
+
+	/**
+	 * Outcomes of the docs of one batch, in batch order.
+	 */
+	public static class Result {
+
+		private final Outcome[] outcomes;
+		private final int[] attempts;
+		private final boolean[] deferred;
+		private long nanos = 0;
+		private MongoException failure = null;
+
+		Result(final int docs) {
+			outcomes = new Outcome[docs];
+			attempts = new int[docs];
+			deferred = new boolean[docs];
+			Arrays.fill(outcomes, Outcome.WRITTEN);
+		}
+
+		public Outcome getOutcome(final int doc) {
+			return outcomes[doc];
+		}
+
+		/**
+		 * @return the bulk writes the doc was sent in, 0 if it was not sent at all.
+		 */
+		public int getAttempts(final int doc) {
+			return attempts[doc];
+		}
+
+		/**
+		 * @return true if the doc failed for a reason that may pass and was not retried as
+		 * often as it may be, because the time allowed for retries ran out.
+		 */
+		public boolean isDeferred(final int doc) {
+			return deferred[doc];
+		}
+
+		public int count(final Outcome outcome) {
+			int n = 0;
+			for (Outcome o : outcomes) {
+				if (o == outcome) {
+					n++;
+				}
+			}
+			return n;
+		}
+
+		/**
+		 * @return docs that were not written for good, duplicate keys aside.
+		 */
+		public int getFailed() {
+			return outcomes.length - count(Outcome.WRITTEN) - count(Outcome.DUPLICATE_KEY);
+		}
+
+		public boolean isRetried() {
+			for (int a : attempts) {
+				if (a > 1) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return time of the first bulk write, until MongoDB answered.
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return the last error that failed a whole bulk write, or null.
+		 */
+		public MongoException getFailure() {
+			return failure;
+		}
+	}
+
+	private final int maxRetries;
+	private final long backoffMs;
+	private final MongodbWriterStats stats;
+	private final MongodbContentSplitter splitter;
+	private final Random random = new Random();
+
+	/**
+	 * @param parameters the MongoDB settings: maxWriteRetries and retryBackoffMs
+	 * @param stats where bulk writes, retries and duplicate keys are counted
+	 * @param splitter splits the recording off the docs with split storage, or null
+	 */
+	public MongodbBulkInserter(final MongodbParameters parameters, final MongodbWriterStats stats,
+			final MongodbContentSplitter splitter) {
+		this.maxRetries = Math.max(parameters.getMaxWriteRetries(), 0);
+		this.backoffMs = Math.max(parameters.getRetryBackoffMs(), 1);
+		this.stats = stats;
+		this.splitter = splitter;
+	}
+
+	/**
+	 * Insert the docs, or in upsert mode replace the doc with the same _id as each of
+	 * them. Of docs with the same _id in an upsert batch only the last is sent, so the
+	 * last capture of a key wins as with an ordered write.
+	 *
+	 * <p>With split storage the content docs are written first, and a doc whose content
+	 * doc was not written is not written either and ends like its content doc.
+	 *
+	 * @param collection the collection to write to
+	 * @param docs the docs, each with its _id set
+	 * @param upsert true to replace docs with the same _id
+	 *
+	 * @return the outcome of every doc
+	 */
+	public Result write(final DBCollection collection, final List<DBObject> docs, final boolean upsert) {
+		return write(collection, docs, upsert, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Write the docs as {@link #write(DBCollection, List, boolean)} does, but stop retrying
+	 * before the time slept between retries exceeds maxSleepMs.
+	 *
+	 * @param collection the collection to write to
+	 * @param docs the docs, each with its _id set
+	 * @param upsert true to replace docs with the same _id
+	 * @param maxSleepMs most time slept between retries in total
+	 *
+	 * @return the outcome of every doc
+	 */
+	public Result write(final DBCollection collection, final List<DBObject> docs, final boolean upsert,
+			final long maxSleepMs) {
+		Result result = splitter == null ? writeDocs(collection, docs, upsert, maxSleepMs)
+				: writeSplit(collection, docs, upsert, maxSleepMs);
+		int duplicates = result.count(Outcome.DUPLICATE_KEY);
+		if (duplicates > 0) {
+			stats.recordDuplicates(duplicates);
+		}
+		return result;
+	}
+
+	/**
+	 * Insert docs that are stored whole and once per _id, such as the content docs of
+	 * deduplicated storage: they are neither split nor upserted, and a duplicate key is the
+	 * same doc stored before, so it is not counted as a duplicate.
+	 *
+	 * @param collection the collection to write to
+	 * @param docs the docs, each with its _id set
+	 * @param maxSleepMs most time slept between retries in total
+	 *
+	 * @return the outcome of every doc
+	 */
+	public Result writeWhole(final DBCollection collection, final List<DBObject> docs, final long maxSleepMs) {
+		return writeDocs(collection, docs, false, maxSleepMs);
+	}
+
+	/**
+	 * Write the content docs split off the docs, then the docs whose content went in.
+	 */
+	private Result writeSplit(final DBCollection collection, final List<DBObject> docs, final boolean upsert,
+			final long maxSleepMs) {
+		// split copies, the docs keep their recording in case they are retried later
+		List<DBObject> splitDocs = new ArrayList<DBObject>(docs.size());
+		List<DBObject> contents = new ArrayList<DBObject>();
+		List<Integer> owners = new ArrayList<Integer>();
+		for (int i = 0; i < docs.size(); i++) {
+			DBObject doc = MongodbContentSplitter.copy(docs.get(i));
+			splitDocs.add(doc);
+			DBObject content = splitter.split(doc);
+			if (content != null) {
+				contents.add(content);
+				owners.add(i);
+			}
+		}
+		if (contents.isEmpty()) {
+			return writeDocs(collection, docs, upsert, maxSleepMs);
+		}
+
+		Result result = new Result(docs.size());
+		Result contentResult = writeDocs(splitter.getContentCollection(collection), contents, upsert, maxSleepMs);
+		boolean[] unwritten = new boolean[docs.size()];
+		for (int c = 0; c < contents.size(); c++) {
+			Outcome outcome = contentResult.outcomes[c];
+			// a content doc with the same _id is one written before, e.g. replayed from the spool
+			if (outcome != Outcome.WRITTEN && outcome != Outcome.DUPLICATE_KEY) {
+				int i = owners.get(c);
+				unwritten[i] = true;
+				result.outcomes[i] = outcome;
+				result.attempts[i] = contentResult.attempts[c];
+				result.deferred[i] = contentResult.deferred[c];
+			}
+		}
+		List<DBObject> metadata = new ArrayList<DBObject>(docs.size());
+		List<Integer> written = new ArrayList<Integer>(docs.size());
+		for (int i = 0; i < docs.size(); i++) {
+			if (!unwritten[i]) {
+				metadata.add(splitDocs.get(i));
+				written.add(i);
+			}
+		}
+		Result metadataResult = writeDocs(collection, metadata, upsert, maxSleepMs);
+		for (int m = 0; m < metadata.size(); m++) {
+			int i = written.get(m);
+			result.outcomes[i] = metadataResult.outcomes[m];
+			result.attempts[i] = metadataResult.attempts[m];
+			result.deferred[i] = metadataResult.deferred[m];
+		}
+		result.nanos = contentResult.nanos + metadataResult.nanos;
+		result.failure = metadataResult.failure != null ? metadataResult.failure : contentResult.failure;
+		return result;
+	}
+
+	private Result writeDocs(final DBCollection collection, final List<DBObject> docs, final boolean upsert,
+			final long maxSleepMs) {
+		Result result = new Result(docs.size());
+		int maxSize = collection.getDB().getMongo().getMaxBsonObjectSize();
+		Set<Object> laterIds = new HashSet<Object>();
+		List<Integer> pending = new ArrayList<Integer>(docs.size());
+		for (int i = docs.size() - 1; i >= 0; i--) {
+			DBObject doc = docs.get(i);
+			if (upsert && !laterIds.add(doc.get("_id"))) {
+				// replaced by a later capture of the same key
+				continue;
+			}
+			if (MongodbWriter.estimateSize(doc) > maxSize) {
+				result.outcomes[i] = Outcome.TOO_LARGE;
+				continue;
+			}
+			pending.add(i);
+		}
+		Collections.reverse(pending);
+
+		long backoff = backoffMs;
+		long slept = 0;
+		for (int attempt = 1; !pending.isEmpty(); attempt++) {
+			execute(collection, docs, pending, upsert, attempt, result);
+			List<Integer> retry = new ArrayList<Integer>();
+			for (int i : pending) {
+				if (result.outcomes[i].isRetryable()) {
+					retry.add(i);
+				}
+			}
+			if (retry.isEmpty() || attempt > maxRetries) {
+				break;
+			}
+			long delay = backoff / 2 + (long) (random.nextDouble() * (backoff - backoff / 2));
+			if (delay > maxSleepMs - slept) {
+				for (int i : retry) {
+					result.deferred[i] = true;
+				}
+				break;
+			}
+			stats.recordRetry(retry.size());
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Retrying " + retry.size() + " docs into " + collection.getFullName() + " in " + delay + "ms");
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			slept += delay;
+			backoff *= 2;
+			pending = retry;
+		}
+		return result;
+	}
+
+	/**
+	 * Send the pending docs in one unordered bulk write and set their outcomes.
+	 */
+	private void execute(final DBCollection collection, final List<DBObject> docs, final List<Integer> pending,
+			final boolean upsert, final int attempt, final Result result) {
+		BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+		for (int i : pending) {
+			DBObject doc = docs.get(i);
+			if (upsert) {
+				bulk.find(new BasicDBObject("_id", doc.get("_id"))).upsert().replaceOne(doc);
+			} else {
+				bulk.insert(doc);
+			}
+			result.attempts[i] = attempt;
+			result.outcomes[i] = Outcome.WRITTEN;
+		}
+
+		long start = System.nanoTime();
+		try {
+			bulk.execute();
+		} catch (BulkWriteException e) {
+			for (BulkWriteError error : e.getWriteErrors()) {
+				Outcome outcome = classify(error.getCode(), error.getMessage());
+				if (outcome == Outcome.DUPLICATE_KEY && attempt > 1) {
+					// the doc went in with an earlier attempt whose answer was lost
+					outcome = Outcome.WRITTEN;
+				}
+				result.outcomes[pending.get(error.getIndex())] = outcome;
+			}
+			if (e.getWriteConcernError() != null) {
+				logger.warning("Write concern not satisfied for " + pending.size() + " docs into "
+						+ collection.getFullName() + ": " + e.getWriteConcernError().getMessage());
+			}
+		} catch (MongoException e) {
+			Outcome outcome = classify(e);
+			for (int i : pending) {
+				result.outcomes[i] = outcome;
+			}
+			result.failure = e;
+			stats.insertFailed();
+			String message = "Failed bulk write of " + pending.size() + " docs into " + collection.getFullName()
+					+ " (" + outcome.getReason() + ", attempt " + attempt + ")";
+			if (outcome.isRetryable()) {
+				logger.warning(message + ": " + e.getMessage());
+			} else {
+				logger.log(Level.SEVERE, message, e);
+			}
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		if (attempt == 1) {
+			result.nanos = nanos;
+		}
+		stats.recordInsert(pending.size(), nanos);
+	}
+
+	/**
+	 * @param e an error that failed a whole write
+	 * @return what it means for the docs of the write
+	 */
+	public static Outcome classify(final MongoException e) {
+		if (e instanceof MongoSocketException || e instanceof MongoTimeoutException
+				|| e instanceof MongoWaitQueueFullException) {
+			return Outcome.TRANSIENT;
+		}
+		if (e instanceof DuplicateKeyException) {
+			return Outcome.DUPLICATE_KEY;
+		}
+		return classify(e.getCode(), e.getMessage());
+	}
+
+	/**
+	 * @param code server error code of a write error or a failed command
+	 * @param message its message, for servers that send no code
+	 * @return what it means for the doc
+	 */
+	public static Outcome classify(final int code, final String message) {
+		if (DUPLICATE_KEY_CODES.contains(code)) {
+			return Outcome.DUPLICATE_KEY;
+		}
+		if (TOO_LARGE_CODES.contains(code)) {
+			return Outcome.TOO_LARGE;
+		}
+		if (NOT_PRIMARY_CODES.contains(code)) {
+			return Outcome.NOT_PRIMARY;
+		}
+		if (TRANSIENT_CODES.contains(code)) {
+			return Outcome.TRANSIENT;
+		}
+		if (message != null) {
+			if (message.contains("not master") || message.contains("node is recovering")) {
+				return Outcome.NOT_PRIMARY;
+			}
+			if (message.contains("too large")) {
+				return Outcome.TOO_LARGE;
+			}
+		}
+		return Outcome.REJECTED;
+	}
+
+	private static Set<Integer> codes(final Integer... codes) {
+		return new HashSet<Integer>(Arrays.asList(codes));
+	}
+}
@@ -0,0 +1,381 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.io.RecordingInputStream;
+import org.archive.io.RecordingOutputStream;
+import org.archive.io.ReplayInputStream;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.recrawl.RecrawlAttributeConstants;
+import org.archive.modules.revisit.AbstractProfile;
+import org.archive.modules.revisit.IdenticalPayloadDigestRevisit;
+import org.archive.modules.revisit.RevisitProfile;
+import org.bson.types.ObjectId;
+
+/**
+ * What {@link MongodbWriter} needs to know about one fetched CrawlURI.
+ *
+ * <p>{@link #of(CrawlURI, String)} reads the recorded request and response straight from
+ * the CrawlURI's recorder, for writes done on the ToeThread. {@link #snapshot(CrawlURI, String)}
+ * copies them, so the write can happen on another thread after the ToeThread has moved on
+ * and reused its recorder. {@link #revisit(CrawlURI, String)} keeps no recording at all,
+ * only where the unchanged content was stored before.
+ */
+public class MongodbCapture {
+
+	private final String url;
+	private final String host;
+	private final String ip;
+	private final boolean seed;
+	private final String pathFromSeed;
+	private final String via;
+	private final int fetchStatus;
+	private final long fetchBeginTime;
+	private final long contentSize;
+	private final String contentType;
+	private final String digest;
+	private final Charset charset;
+	private final ObjectId id;
+
+	// Set when reading from the recorder
+	private final RecordingOutputStream recordedOutput;
+	private final RecordingInputStream recordedInput;
+
+	// Set for a snapshot
+	private final byte[] request;
+	private final byte[] response;
+	private final long responseHeaderSize;
+	private boolean bodyLeftOut = false;
+	// The latest fetch history entry of the CrawlURI, tagged once the doc is written
+	private Map<String, Object> fetchHistoryEntry = null;
+
+	// Set for a revisit
+	private boolean revisit = false;
+	private String revisitProfile = null;
+	private String refersTo = null;
+	private String refersToUrl = null;
+	private String refersToDate = null;
+
+	// Set once the doc was written right away, not batched or spooled
+	private MongodbBulkInserter.Outcome writeOutcome = null;
+	private int writeAttempts = 0;
+
+	private MongodbCapture(final CrawlURI curi, final String ip, final RecordingOutputStream recordedOutput,
+			final RecordingInputStream recordedInput, final byte[] request, final byte[] response,
+			final long responseHeaderSize) {
+		this.url = curi.toString();
+		this.host = getHost(curi);
+		this.ip = ip;
+		this.seed = curi.isSeed();
+		this.pathFromSeed = curi.getPathFromSeed();
+		this.via = curi.getVia() == null ? null : curi.getVia().toString();
+		this.fetchStatus = curi.getFetchStatus();
+		this.fetchBeginTime = curi.getFetchBeginTime();
+		this.contentSize = curi.getContentSize();
+		this.contentType = curi.getContentType();
+		this.digest = curi.getContentDigestSchemeString();
+		this.charset = curi.getRecorder().getCharset();
+		this.id = new ObjectId(new Date(fetchBeginTime));
+		this.recordedOutput = recordedOutput;
+		this.recordedInput = recordedInput;
+		this.request = request;
+		this.response = response;
+		this.responseHeaderSize = responseHeaderSize;
+	}
+
+	/**
+	 * @param curi URI of crawled document
+	 * @param ip IP of remote machine.
+	 * @return a capture reading from the CrawlURI's recorder, valid until the ToeThread moves on.
+	 */
+	public static MongodbCapture of(final CrawlURI curi, final String ip) {
+		return new MongodbCapture(curi, ip, curi.getRecorder().getRecordedOutput(),
+				curi.getRecorder().getRecordedInput(), null, null, 0);
+	}
+
+	/**
+	 * Copy the recorded request and response, one array each.
+	 *
+	 * @param curi URI of crawled document
+	 * @param ip IP of remote machine.
+	 * @return a capture independent of the CrawlURI's recorder
+	 * @throws IOException if the recording could not be read
+	 */
+	public static MongodbCapture snapshot(final CrawlURI curi, final String ip) throws IOException {
+		return snapshot(curi, ip, true);
+	}
+
+	/**
+	 * Copy the recorded request and response, one array each.
+	 *
+	 * @param curi URI of crawled document
+	 * @param ip IP of remote machine.
+	 * @param withBody false to copy only the response headers, for a body that is not stored
+	 * or is known to be stored already
+	 * @return a capture independent of the CrawlURI's recorder
+	 * @throws IOException if the recording could not be read
+	 */
+	public static MongodbCapture snapshot(final CrawlURI curi, final String ip, final boolean withBody)
+			throws IOException {
+		RecordingOutputStream recordedOutput = curi.getRecorder().getRecordedOutput();
+		RecordingInputStream recordedInput = curi.getRecorder().getRecordedInput();
+
+		byte[] request = null;
+		if (recordedOutput.getSize() > 0) {
+			ReplayInputStream in = recordedOutput.getReplayInputStream();
+			try {
+				request = MongodbWriter.readBytes(in, in.getSize());
+			} finally {
+				in.close();
+			}
+		}
+		ReplayInputStream in = recordedInput.getReplayInputStream();
+		try {
+			long headerSize = in.getHeaderSize();
+			byte[] response = MongodbWriter.readBytes(in, withBody ? in.getSize() : headerSize);
+			MongodbCapture capture = new MongodbCapture(curi, ip, null, null, request, response, headerSize);
+			capture.bodyLeftOut = !withBody;
+			Map<String, Object>[] history = curi.getFetchHistory();
+			if (history != null) {
+				capture.fetchHistoryEntry = history[0];
+			}
+			return capture;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Note where the unchanged content of a duplicate was stored before, without the recording.
+	 *
+	 * <p>The revisit profile the crawler's deduplication set names the url and fetch time of
+	 * the original. If that is an earlier fetch of the same url, the original's doc is the
+	 * one recorded in the write tag of the previous fetch history entry.
+	 *
+	 * @param curi URI of crawled document, marked as a revisit of an earlier capture
+	 * @param ip IP of remote machine.
+	 * @return a capture independent of the CrawlURI's recorder
+	 */
+	public static MongodbCapture revisit(final CrawlURI curi, final String ip) {
+		MongodbCapture capture = new MongodbCapture(curi, ip, null, null, null, null, 0);
+		capture.revisit = true;
+		RevisitProfile profile = curi.getRevisitProfile();
+		if (profile == null) {
+			return capture;
+		}
+		capture.revisitProfile = profile.getProfileName();
+		if (profile instanceof AbstractProfile) {
+			capture.refersTo = ((AbstractProfile) profile).getRefersToRecordID();
+			capture.refersToDate = ((AbstractProfile) profile).getRefersToDate();
+		}
+		if (profile instanceof IdenticalPayloadDigestRevisit) {
+			capture.refersToUrl = ((IdenticalPayloadDigestRevisit) profile).getRefersToTargetURI();
+		}
+
+		Map<String, Object>[] history = curi.getFetchHistory();
+		if (capture.url.equals(capture.refersToUrl) && history != null && history.length > 1 && history[1] != null) {
+			Object tag = history[1].get(RecrawlAttributeConstants.A_WRITE_TAG);
+			if (tag != null) {
+				capture.refersTo = tag.toString();
+			}
+		}
+		return capture;
+	}
+
+	private static String getHost(final CrawlURI curi) {
+		try {
+			String host = curi.getUURI().getReferencedHost();
+			return host == null ? "" : host;
+		} catch (URIException e) {
+			return "";
+		}
+	}
+
+	public String getUrl() {
+		return url;
+	}
+	/**
+	 * @return the host of the url, or an empty string for urls without one, e.g. dns:
+	 */
+	public String getHost() {
+		return host;
+	}
+	public String getIp() {
+		return ip;
+	}
+	/**
+	 * @return true if the url is one of the seeds the crawl started from.
+	 */
+	public boolean isSeed() {
+		return seed;
+	}
+	public String getPathFromSeed() {
+		return pathFromSeed;
+	}
+	public String getVia() {
+		return via;
+	}
+	public int getFetchStatus() {
+		return fetchStatus;
+	}
+	public long getFetchBeginTime() {
+		return fetchBeginTime;
+	}
+	public long getContentSize() {
+		return contentSize;
+	}
+	public String getContentType() {
+		return contentType;
+	}
+	/**
+	 * @return the content digest with its scheme, e.g. "sha1:...", or null if none was computed.
+	 */
+	public String getDigest() {
+		return digest;
+	}
+	public Charset getCharset() {
+		return charset;
+	}
+	/**
+	 * @return the _id of the doc, unless it is keyed for upserts; its time is the fetch time.
+	 */
+	public ObjectId getId() {
+		return id;
+	}
+
+	/**
+	 * @return true if the content is unchanged since an earlier capture and is not stored again.
+	 */
+	public boolean isRevisit() {
+		return revisit;
+	}
+	/**
+	 * @return the WARC revisit profile, e.g. identical-payload-digest, or null if not a revisit.
+	 */
+	public String getRevisitProfile() {
+		return revisitProfile;
+	}
+	/**
+	 * @return the write tag of the original capture, the _id of its doc, or null if unknown.
+	 */
+	public String getRefersTo() {
+		return refersTo;
+	}
+	public String getRefersToUrl() {
+		return refersToUrl;
+	}
+	/**
+	 * @return the fetch time of the original capture as the revisit profile gives it, e.g.
+	 * "2014-10-21T08:00:00Z", or null if unknown.
+	 */
+	public String getRefersToDate() {
+		return refersToDate;
+	}
+
+	/**
+	 * @return true if the capture holds its own copy of the recording.
+	 */
+	public boolean isSnapshot() {
+		return response != null;
+	}
+
+	/**
+	 * @return false for a snapshot that copied only the response headers.
+	 */
+	public boolean hasBody() {
+		return !bodyLeftOut;
+	}
+
+	/**
+	 * @return the latest fetch history entry of the CrawlURI of a snapshot, null otherwise.
+	 */
+	public Map<String, Object> getFetchHistoryEntry() {
+		return fetchHistoryEntry;
+	}
+
+	public long getRequestSize() {
+		if (revisit) {
+			return 0;
+		}
+		return isSnapshot() ? (request == null ? 0 : request.length) : recordedOutput.getSize();
+	}
+
+	public long getResponseSize() {
+		if (revisit) {
+			return 0;
+		}
+		return isSnapshot() ? response.length : recordedInput.getSize();
+	}
+
+	/**
+	 * @return bytes of the recording this capture holds a copy of, 0 if it reads the recorder.
+	 */
+	public long getSnapshotBytes() {
+		if (!isSnapshot()) {
+			return 0;
+		}
+		return (request == null ? 0 : request.length) + response.length;
+	}
+
+	/**
+	 * @return recorded size of request and response, 0 for a revisit which stores neither.
+	 */
+	public long getRecordedSize() {
+		return getRequestSize() + getResponseSize();
+	}
+
+	/**
+	 * @return how the write of the doc ended, or null if the doc was batched or spooled
+	 * and the write had not ended when the writer returned.
+	 */
+	public MongodbBulkInserter.Outcome getWriteOutcome() {
+		return writeOutcome;
+	}
+	/**
+	 * @return bulk writes the doc was sent in, 0 unless the write ended.
+	 */
+	public int getWriteAttempts() {
+		return writeAttempts;
+	}
+	public void setWriteOutcome(final MongodbBulkInserter.Outcome writeOutcome, final int writeAttempts) {
+		this.writeOutcome = writeOutcome;
+		this.writeAttempts = writeAttempts;
+	}
+
+	/**
+	 * @return a new stream over the request, positioned at its start.
+	 */
+	public ReplayInputStream getRequestStream() throws IOException {
+		if (isSnapshot()) {
+			return new ReplayInputStream(request == null ? new byte[0] : request, getRequestSize(), null);
+		}
+		return recordedOutput.getReplayInputStream();
+	}
+
+	/**
+	 * @return a new stream over the response, positioned at its start, that knows where the headers end.
+	 */
+	public ReplayInputStream getResponseStream() throws IOException {
+		if (isSnapshot()) {
+			return new ReplayInputStream(response, response.length, responseHeaderSize, null);
+		}
+		return recordedInput.getReplayInputStream();
+	}
+
+	@Override
+	public String toString() {
+		return url;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Splits the recording off the docs of split storage. The request, the response headers
+ * and the content go to a content doc with the same _id as the doc, together with the
+ * charset and codec needed to read them. The metadata docs so stay small, and queries
+ * and scans over them page in a fraction of the bytes.
+ *
+ * <p>Content docs go to the sub-collection "content" of the collection their metadata
+ * doc is written to, e.g. pages.content or pages_2014_10.content, so a partition and its
+ * content are dropped together. With splitContentTarget they all go to that collection
+ * instead, which may be in another database or on other servers, with a storage engine
+ * or compression suited to large docs that are rarely read.
+ *
+ * <p>Docs are split as they are written, from the writers' batches and from the spool
+ * alike. The content docs of a batch are written in one bulk write before the metadata
+ * docs, so a metadata doc is never there without its content. A doc with nothing to
+ * split off, such as a revisit, has no content doc.
+ */
+public class MongodbContentSplitter {
+
+	/** Name of the sub-collection of the content docs. */
+	public static final String CONTENT_SUBCOLLECTION = "content";
+
+	private final MongodbSchema schema;
+	private final List<String> columns;
+	private final MongodbTarget target;
+
+	/**
+	 * @param parameters the MongoDB settings: the column names and the schema
+	 * @param target the opened target all content docs go to, or null for the sub-collections
+	 */
+	public MongodbContentSplitter(final MongodbParameters parameters, final MongodbTarget target) {
+		this.schema = MongodbSchema.of(parameters);
+		this.columns = Arrays.asList(parameters.getRequestColumnName(), parameters.getHeadersColumnName(),
+				parameters.getContentColumnName(), parameters.getCharsetColumnName(), parameters.getCodecColumnName());
+		this.target = target;
+	}
+
+	/**
+	 * @param collection the collection of the metadata docs
+	 * @return the collection of their content docs.
+	 */
+	public DBCollection getContentCollection(final DBCollection collection) {
+		return target != null ? target.getDBCollection() : collection.getCollection(CONTENT_SUBCOLLECTION);
+	}
+
+	/**
+	 * Remove the recording from the doc.
+	 *
+	 * @param doc a doc as written, with its _id set
+	 * @return the content doc of the recording, or null if the doc has none.
+	 */
+	public DBObject split(final DBObject doc) {
+		return schema.extract(doc, columns);
+	}
+
+	/**
+	 * @param doc a doc as written
+	 * @return a copy of the doc that can be split without changing the doc: its groups of
+	 * the compact schema are copied too, the values are shared.
+	 */
+	public static DBObject copy(final DBObject doc) {
+		BasicDBObject copy = new BasicDBObject(doc.keySet().size());
+		for (String key : doc.keySet()) {
+			Object value = doc.get(key);
+			copy.put(key, value instanceof BasicDBObject ? new BasicDBObject((BasicDBObject) value) : value);
+		}
+		return copy;
+	}
+
+	/**
+	 * Put the recording of a content doc back into its metadata doc, for readers.
+	 *
+	 * @param doc a metadata doc as read from MongoDB
+	 * @param content its content doc, may be null
+	 * @return the doc, with the columns of the content doc.
+	 */
+	public static DBObject join(final DBObject doc, final DBObject content) {
+		if (content == null) {
+			return doc;
+		}
+		for (String key : content.keySet()) {
+			if ("_id".equals(key) || MongodbSchema.VERSION_KEY.equals(key)) {
+				continue;
+			}
+			Object value = content.get(key);
+			Object existing = doc.get(key);
+			if (value instanceof DBObject && existing instanceof DBObject) {
+				// a group of the compact schema, with metadata in the doc and the rest in the content doc
+				((DBObject) existing).putAll((DBObject) value);
+			} else {
+				doc.put(key, value);
+			}
+		}
+		return doc;
+	}
+
+	/**
+	 * Split the docs and insert, or in upsert mode replace, their content docs in one
+	 * ordered bulk write, for writes without continueOnError. Content docs that are there
+	 * already, e.g. replayed from the spool, are skipped.
+	 *
+	 * @param collection the collection of the metadata docs
+	 * @param docs the docs, the recording is removed from them
+	 * @param upsert true to replace content docs with the same _id
+	 * @throws MongoException if MongoDB rejected the bulk write
+	 */
+	public void writeContent(final DBCollection collection, final List<DBObject> docs, final boolean upsert) {
+		List<DBObject> contents = new ArrayList<DBObject>(docs.size());
+		for (DBObject doc : docs) {
+			DBObject content = split(doc);
+			if (content != null) {
+				contents.add(content);
+			}
+		}
+		if (contents.isEmpty()) {
+			return;
+		}
+		DBCollection contentCollection = getContentCollection(collection);
+		if (upsert) {
+			MongodbWriter.upsert(contentCollection, contents);
+		} else {
+			// content written before is skipped, the others go in
+			MongodbWriter.insertWhole(contentCollection, contents);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.apache.commons.lang.time.FastDateFormat;
+import org.archive.util.SURT;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Builds the metadata part of the doc written for a CrawlURI.
+ *
+ * <p>Everything that does not change between URIs is resolved once, when the writer
+ * starts: the column names and the formatter for the processed-at time. The formatter
+ * is thread safe and formats the fetch time directly, without going through a
+ * 14-digit date string.
+ */
+public class MongodbDocumentEncoder {
+
+	public static final String PROCESSED_AT_PATTERN = "yyyy-MM-dd HH:mm:ss";
+	public static final String KEY_DAY_PATTERN = "yyyyMMdd";
+
+	// Most docs have about this many fields, so the map never has to grow
+	private static final int EXPECTED_FIELDS = 14;
+
+	private final String urlColumnName;
+	private final String ipColumnName;
+	private final String isSeedColumnName;
+	private final String pathFromSeedColumnName;
+	private final String viaColumnName;
+	private final String processedAtColumnName;
+	private final String surtColumnName;
+	private final String fetchedAtColumnName;
+	private final FastDateFormat processedAtFormat;
+	private final MongodbParameters.UpsertKey upsertKey;
+	private final FastDateFormat keyDayFormat;
+
+	public MongodbDocumentEncoder(final MongodbParameters parameters) {
+		urlColumnName = parameters.getUrlColumnName();
+		ipColumnName = parameters.getIpColumnName();
+		isSeedColumnName = parameters.getIsSeedColumnName();
+		pathFromSeedColumnName = parameters.getPathFromSeedColumnName();
+		viaColumnName = parameters.getViaColumnName();
+		processedAtColumnName = parameters.getProcessedAtColumnName();
+		surtColumnName = parameters.getSurtColumnName();
+		fetchedAtColumnName = parameters.getFetchedAtColumnName();
+		processedAtFormat = parameters.getTimeZone() == null ? null
+				: FastDateFormat.getInstance(PROCESSED_AT_PATTERN, TimeZone.getTimeZone(parameters.getTimeZone()));
+		upsertKey = parameters.getUpsertKey();
+		keyDayFormat = FastDateFormat.getInstance(KEY_DAY_PATTERN,
+				TimeZone.getTimeZone(parameters.getTimeZone() == null ? "UTC" : parameters.getTimeZone()));
+	}
+
+	/**
+	 * @param capture the fetched CrawlURI and its recording
+	 * @return a new doc with the url, SURT, ip, seed, path from seed, via, fetched-at and
+	 * processed-at columns.
+	 */
+	public DBObject encode(final MongodbCapture capture) {
+		DBObject doc = new BasicDBObject(EXPECTED_FIELDS);
+
+		// write the target url to the url column
+		doc.put(urlColumnName, capture.getUrl());
+		doc.put(surtColumnName, SURT.fromURI(capture.getUrl()));
+
+		// write the target ip to the ip column
+		doc.put(ipColumnName, capture.getIp());
+
+		// is the url part of the seed url (the initial url(s) used to start the crawl)
+		if (capture.isSeed()) {
+			doc.put(isSeedColumnName, true);
+		}
+
+		String pathFromSeed = capture.getPathFromSeed();
+		if (pathFromSeed != null) {
+			pathFromSeed = pathFromSeed.trim();
+			if (pathFromSeed.length() > 0) {
+				doc.put(pathFromSeedColumnName, pathFromSeed);
+			}
+		}
+
+		// write the Via string
+		if (capture.getVia() != null) {
+			String via = capture.getVia().trim();
+			if (via.length() > 0) {
+				doc.put(viaColumnName, via);
+			}
+		}
+
+		doc.put(fetchedAtColumnName, new Date(capture.getFetchBeginTime()));
+		String processedAt = formatProcessedAt(capture.getFetchBeginTime());
+		if (processedAt != null) {
+			doc.put(processedAtColumnName, processedAt);
+		}
+		return doc;
+	}
+
+	/**
+	 * @param fetchBeginTime fetch time in milliseconds since the epoch
+	 * @return the fetch time in the configured time zone, or null if no time zone is configured.
+	 */
+	public String formatProcessedAt(final long fetchBeginTime) {
+		if (processedAtFormat == null) {
+			return null;
+		}
+		return processedAtFormat.format(fetchBeginTime);
+	}
+
+	/**
+	 * @param url url of the doc
+	 * @param fetchBeginTime fetch time in milliseconds since the epoch
+	 * @return the _id of the doc in upsert mode, e.g. "http://example.com/ 20141021" for
+	 * URL_DAY, or null if every capture is inserted.
+	 */
+	public String getKey(final String url, final long fetchBeginTime) {
+		switch (upsertKey) {
+		case URL:
+			return url;
+		case URL_DAY:
+			// a url has no spaces, so the key sorts by url and then by day
+			return url + " " + keyDayFormat.format(fetchBeginTime);
+		default:
+			return null;
+		}
+	}
+}
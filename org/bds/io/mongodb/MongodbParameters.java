@@ -8,22 +8,128 @@
 
 package org.bds.io.mongodb;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
 public class MongodbParameters {
-	
+
+	/**
+	 * How docs are split into collections by fetch time. A partition is named after the
+	 * collection with the period appended, e.g. pages_20141021 or pages_2014102113.
+	 */
+	public enum Partitioning {
+		NONE(null, 0),
+		DAILY("yyyyMMdd", 24 * 60 * 60 * 1000L),
+		HOURLY("yyyyMMddHH", 60 * 60 * 1000L);
+
+		private final String pattern;
+		private final long periodMs;
+
+		private Partitioning(String pattern, long periodMs) {
+			this.pattern = pattern;
+			this.periodMs = periodMs;
+		}
+		public String getPattern() {
+			return pattern;
+		}
+		public long getPeriodMs() {
+			return periodMs;
+		}
+	}
+
+	/**
+	 * Indexes the writer creates on its collections, see {@link MongodbTarget#provisionIndexes}.
+	 */
+	public enum Index {
+		/** The url column, for lookups of a url. */
+		URL,
+		/** The SURT and fetched-at columns, for the captures of a host or path prefix in time order. */
+		SURT_TIME,
+		/** The digest column, sparse since only some docs have it. */
+		DIGEST,
+		/** A hashed index of the url column, to shard the collection on. */
+		HASHED_URL
+	}
+
+	/**
+	 * What identifies a doc in upsert mode. The key becomes the _id, so a recrawl replaces
+	 * the earlier doc of the same key instead of adding another one.
+	 */
+	public enum UpsertKey {
+		/** Every capture is inserted as a new doc. */
+		NONE,
+		/** One doc per url, the latest capture. */
+		URL,
+		/** One doc per url and day of fetch time, the latest capture of that day. */
+		URL_DAY
+	}
+
+	/**
+	 * How ToeThreads get a writer. The writers share the pool's clients, which are thread
+	 * safe, so a writer is only held for the batch it buffers.
+	 */
+	public enum WriterLeasing {
+		/** Borrowed from and returned to the WriterPool, under its global lock. */
+		POOL,
+		/** Leased from one of writerStripes stripes picked by thread, each with its own lock. */
+		STRIPED,
+		/** One writer per thread, without any lock on the way. */
+		THREAD
+	}
+
+	/**
+	 * How the body of a response is stored, chosen by its MIME type, see
+	 * {@link #getStoragePolicy(String)}. Request and headers are stored either way.
+	 */
+	public enum StoragePolicy {
+		/** Decoded to a string with the recorder charset. */
+		TEXT,
+		/** The bytes as recorded, as BSON binary, with the recorder charset next to them. */
+		BINARY,
+		/** Not stored, and not read from the recording. */
+		METADATA_ONLY,
+		/** Streamed into GridFS whatever its size. */
+		LARGE_OBJECT
+	}
+
 	/** DEFAULT OPTIONS **/
 	public static final int DEFAULT_MONGODB_PORT = 27017;
 	public static final boolean REMOVE_MISSING_PAGES = true;
 	public static final int DEFAULT_MAX_CONTENT_SIZE_IN_BYTES = 16*1024*1024; // The maximum size of doc in MongoDB is 16M
+	public static final long DEFAULT_GRIDFS_THRESHOLD_IN_BYTES = 15*1024*1024; // Leave room for the other fields of the doc
+	public static final String DEFAULT_GRIDFS_BUCKET = "fs";
+	public static final String CONTENT_COLLECTION_SUFFIX = "_content";
+	public static final int DEFAULT_DIGEST_CACHE_SIZE = 100000;
+	public static final long DEFAULT_SPOOL_SEGMENT_SIZE = 64*1024*1024;
+	public static final long DEFAULT_SPOOL_SYNC_INTERVAL_MS = 1000;
+	public static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 1000;
+	public static final long DEFAULT_ASYNC_QUEUE_BYTES = 256*1024*1024;
+	public static final int DEFAULT_ROUTING_VIRTUAL_NODES = 160;
+	public static final String DEFAULT_SCHEMA_COLLECTION = "schema";
+	public static final int DEFAULT_SCHEMA_VERSION = 1;
 
 	// Writing will continue when some error occurred.
-	//TODO: use this flag
 	public static final boolean CONTINUE_ON_ERROR = true;
+	public static final int MAX_WRITE_RETRIES = 5;
+	public static final long RETRY_BACKOFF_MS = 500;
+	public static final long MAX_INLINE_RETRY_MS = 250; // Sleep at most this long under a writer's lock.
 	public static final int BULK_DOC_NUMBER = 100; // Insert 100 docs in a batch.
+	public static final long MAX_BATCH_AGE_MS = 5000; // Flush a partial batch after 5 seconds.
+	public static final long MAX_BATCH_BYTES = 16*1024*1024; // Flush a batch once its docs reach 16M
+	public static final long TARGET_BATCH_LATENCY_MS = 250;
 	
 	// "content" logical grouping
 	public static final String CONTENT_PREFIX = "content";
 	public static final String HEADERS_COLUMN_NAME = "headers";
 	public static final String CONTENT_COLUMN_NAME = "raw_data";
+	public static final String CHARSET_COLUMN_NAME = "charset";
+	public static final String GRIDFS_ID_COLUMN_NAME = "gridfs_id";
+	public static final String CODEC_COLUMN_NAME = "codec";
+	public static final String DIGEST_COLUMN_NAME = "digest";
 
 	// "curi" logical grouping
 	public static final String CURI_PREFIX = "curi";
@@ -34,25 +140,55 @@ public class MongodbParameters {
 	public static final String URL_COLUMN_NAME = "url";
 	public static final String REQUEST_COLUMN_NAME = "request";
 	public static final String PROCESSED_AT_NAME = "processed_at";
+	public static final String SURT_COLUMN_NAME = "surt";
+	public static final String FETCHED_AT_COLUMN_NAME = "fetched_at";
+	public static final String REVISIT_COLUMN_NAME = "revisit";
+	public static final String REFERS_TO_COLUMN_NAME = "refers_to";
+	public static final String REFERS_TO_URL_COLUMN_NAME = "refers_to_url";
+	public static final String REFERS_TO_DATE_COLUMN_NAME = "refers_to_date";
+
 
-	
 	/** ACTUAL OPTIONS INITIALIZED TO DEFAULT **/
 	private String host = "";
 	private int port = DEFAULT_MONGODB_PORT;
 	private String database = "";
 	private String collection = "";
+	private List<String> targets = new ArrayList<String>();
+	private int routingVirtualNodes = DEFAULT_ROUTING_VIRTUAL_NODES;
+	private Partitioning partitioning = Partitioning.NONE;
+	private List<Index> indexes = new ArrayList<Index>(Arrays.asList(Index.URL, Index.SURT_TIME));
+	private UpsertKey upsertKey = UpsertKey.NONE;
+	private boolean writeRevisits = false;
 	private String user = "";
 	private String password = "";
 	private Serializer serializer = null;
 	
 	private boolean removeMissingPages = REMOVE_MISSING_PAGES;
 	private int defaultMaxContentSize = DEFAULT_MAX_CONTENT_SIZE_IN_BYTES;
+	private boolean storeLargeContentInGridFs = false;
+	private long gridFsThreshold = DEFAULT_GRIDFS_THRESHOLD_IN_BYTES;
+	private String gridFsBucket = DEFAULT_GRIDFS_BUCKET;
+	private boolean deduplicateContent = false;
+	private String contentCollection = "";
+	private int digestCacheSize = DEFAULT_DIGEST_CACHE_SIZE;
 
 	private boolean separateHeaders = true;
+	private boolean storeAsBinary = false;
+	private Map<String, StoragePolicy> storagePolicies = new LinkedHashMap<String, StoragePolicy>();
+	private StoragePolicy defaultStoragePolicy = null;
+	private boolean compactSchema = false;
+	private String schemaCollection = DEFAULT_SCHEMA_COLLECTION;
+	private int schemaVersion = DEFAULT_SCHEMA_VERSION;
+	private boolean splitContent = false;
+	private String splitContentTarget = "";
 	private String timeZone = null;
 	private String contentPrefix = CONTENT_PREFIX;
 	private String headersColumnName = contentPrefix + ":" + HEADERS_COLUMN_NAME;
 	private String contentColumnName = contentPrefix + ":" + CONTENT_COLUMN_NAME;
+	private String charsetColumnName = contentPrefix + ":" + CHARSET_COLUMN_NAME;
+	private String gridFsIdColumnName = contentPrefix + ":" + GRIDFS_ID_COLUMN_NAME;
+	private String codecColumnName = contentPrefix + ":" + CODEC_COLUMN_NAME;
+	private String digestColumnName = contentPrefix + ":" + DIGEST_COLUMN_NAME;
 
 	private String curiPrefix = CURI_PREFIX;
 	private String ipColumnName = curiPrefix + ":" + IP_COLUMN_NAME;
@@ -62,7 +198,29 @@ public class MongodbParameters {
 	private String urlColumnName = curiPrefix + ":" + URL_COLUMN_NAME;
 	private String requestColumnName = curiPrefix + ":" + REQUEST_COLUMN_NAME;
 	private String processedAtColumnName = curiPrefix + ":" + PROCESSED_AT_NAME;
+	private String surtColumnName = curiPrefix + ":" + SURT_COLUMN_NAME;
+	private String fetchedAtColumnName = curiPrefix + ":" + FETCHED_AT_COLUMN_NAME;
+	private String revisitColumnName = curiPrefix + ":" + REVISIT_COLUMN_NAME;
+	private String refersToColumnName = curiPrefix + ":" + REFERS_TO_COLUMN_NAME;
+	private String refersToUrlColumnName = curiPrefix + ":" + REFERS_TO_URL_COLUMN_NAME;
+	private String refersToDateColumnName = curiPrefix + ":" + REFERS_TO_DATE_COLUMN_NAME;
 	private int bulkDocNumber = BULK_DOC_NUMBER;
+	private long maxBatchAgeMs = MAX_BATCH_AGE_MS;
+	private long maxBatchBytes = MAX_BATCH_BYTES;
+	private boolean adaptiveBatchSize = false;
+	private long targetBatchLatencyMs = TARGET_BATCH_LATENCY_MS;
+	private boolean continueOnError = CONTINUE_ON_ERROR;
+	private int maxWriteRetries = MAX_WRITE_RETRIES;
+	private long retryBackoffMs = RETRY_BACKOFF_MS;
+	private long maxInlineRetryMs = MAX_INLINE_RETRY_MS;
+	private String spoolDirectory = "";
+	private long spoolSegmentSize = DEFAULT_SPOOL_SEGMENT_SIZE;
+	private long spoolSyncIntervalMs = DEFAULT_SPOOL_SYNC_INTERVAL_MS;
+	private int asyncWriterThreads = 0;
+	private int asyncQueueCapacity = DEFAULT_ASYNC_QUEUE_CAPACITY;
+	private long asyncQueueBytes = DEFAULT_ASYNC_QUEUE_BYTES;
+	private WriterLeasing writerLeasing = WriterLeasing.POOL;
+	private int writerStripes = 0;
 
 	
 	public String getHost() {
@@ -98,6 +256,79 @@ public class MongodbParameters {
 	public void setCollection(String collection) {
 		this.collection = collection;
 	}
+	/**
+	 * Targets docs are spread across by the SURT host of their url, each written as
+	 * host[:port]/database/collection. When set, host, port, database and collection are
+	 * not used; large content and deduplicated content go to the database of the first target.
+	 */
+	public List<String> getTargets() {
+		return targets;
+	}
+	public void setTargets(List<String> targets) {
+		this.targets = targets;
+	}
+	public boolean isRouteWrites() {
+		return !targets.isEmpty();
+	}
+	/**
+	 * Points per target on the consistent hash ring; more points spread hosts more evenly.
+	 */
+	public int getRoutingVirtualNodes() {
+		return routingVirtualNodes;
+	}
+	public void setRoutingVirtualNodes(int routingVirtualNodes) {
+		this.routingVirtualNodes = routingVirtualNodes;
+	}
+	/**
+	 * Write each doc to the partition of its fetch time instead of the collection itself, so
+	 * old partitions can be dropped as a whole. Periods are cut in timeZone, or UTC if unset.
+	 */
+	public Partitioning getPartitioning() {
+		return partitioning;
+	}
+	public void setPartitioning(Partitioning partitioning) {
+		this.partitioning = partitioning;
+	}
+	public boolean isPartitionWrites() {
+		return partitioning != Partitioning.NONE;
+	}
+	/**
+	 * Indexes created on the collection of every target when the writer starts, and on
+	 * every partition when it is first written to. Existing indexes are left as they are;
+	 * an empty list creates none.
+	 */
+	public List<Index> getIndexes() {
+		return indexes;
+	}
+	public void setIndexes(List<Index> indexes) {
+		this.indexes = indexes;
+	}
+	/**
+	 * Replace the doc with the same key instead of inserting a new one, so recrawls do
+	 * not pile up copies of a url. Days are cut in timeZone, or UTC if unset. GridFS
+	 * files of replaced docs are left in place.
+	 */
+	public UpsertKey getUpsertKey() {
+		return upsertKey;
+	}
+	public void setUpsertKey(UpsertKey upsertKey) {
+		this.upsertKey = upsertKey;
+	}
+	public boolean isUpsertWrites() {
+		return upsertKey != UpsertKey.NONE;
+	}
+	/**
+	 * Whether a duplicate of an earlier capture, as marked by the crawler's deduplication,
+	 * is written as a revisit doc: the metadata, the digest and a reference to the original
+	 * capture, without request, headers or content. Otherwise duplicates are written in
+	 * full, or not at all with skipIdenticalDigests.
+	 */
+	public boolean isWriteRevisits() {
+		return writeRevisits;
+	}
+	public void setWriteRevisits(boolean writeRevisits) {
+		this.writeRevisits = writeRevisits;
+	}
 	public String getUser() {
 		return user;
 	}
@@ -111,6 +342,11 @@ public class MongodbParameters {
 		this.password = password;
 	}
 	
+	/**
+	 * The serializer the content is passed through, e.g. a {@link GzipSerializer} or a
+	 * {@link DeflateSerializer}. Serialized content is stored as binary and the doc records
+	 * the serializer in the codec column.
+	 */
 	public Serializer getSerializer() {
 		return serializer;
 	}
@@ -130,7 +366,69 @@ public class MongodbParameters {
 	public void getDefaultMaxContentSizeInBytes(int defaultMaxContentSize) {
 	    this.defaultMaxContentSize = defaultMaxContentSize;
 	}
+	public void setDefaultMaxContentSizeInBytes(int defaultMaxContentSize) {
+	    this.defaultMaxContentSize = defaultMaxContentSize;
+	}
+	/**
+	 * Whether content too large for a doc is streamed into GridFS instead of being skipped.
+	 */
+	public boolean isStoreLargeContentInGridFs() {
+		return storeLargeContentInGridFs;
+	}
+	public void setStoreLargeContentInGridFs(boolean storeLargeContentInGridFs) {
+		this.storeLargeContentInGridFs = storeLargeContentInGridFs;
+	}
+	/**
+	 * Content size, as reported by the CrawlURI, above which the content goes to GridFS.
+	 */
+	public long getGridFsThreshold() {
+		return gridFsThreshold;
+	}
+	public void setGridFsThreshold(long gridFsThreshold) {
+		this.gridFsThreshold = gridFsThreshold;
+	}
+	public String getGridFsBucket() {
+		return gridFsBucket;
+	}
+	public void setGridFsBucket(String gridFsBucket) {
+		this.gridFsBucket = gridFsBucket;
+	}
 	
+	/**
+	 * Whether content is stored once per content digest in the content collection,
+	 * with each doc only referencing the digest.
+	 */
+	public boolean isDeduplicateContent() {
+		return deduplicateContent;
+	}
+	public void setDeduplicateContent(boolean deduplicateContent) {
+		this.deduplicateContent = deduplicateContent;
+	}
+	/**
+	 * @return the collection content is stored in, by default the collection name, or the
+	 * collection of the first target, with a "_content" suffix.
+	 */
+	public String getContentCollection() {
+		if (contentCollection.isEmpty() && isRouteWrites())
+			return MongodbTarget.parse(targets.get(0)).getCollectionName() + CONTENT_COLLECTION_SUFFIX;
+		if (contentCollection.isEmpty())
+			return getCollection() + CONTENT_COLLECTION_SUFFIX;
+		return contentCollection;
+	}
+	public void setContentCollection(String contentCollection) {
+		this.contentCollection = contentCollection;
+	}
+	/**
+	 * Number of digests known to be stored that are remembered, so their content is
+	 * neither looked up nor read again.
+	 */
+	public int getDigestCacheSize() {
+		return digestCacheSize;
+	}
+	public void setDigestCacheSize(int digestCacheSize) {
+		this.digestCacheSize = digestCacheSize;
+	}
+
 	public String getContentPrefix() {
 		return contentPrefix;
 	}
@@ -149,6 +447,30 @@ public class MongodbParameters {
 	public void setContentColumnName(String contentColumnName) {
 		this.contentColumnName = contentColumnName;
 	}
+	public String getCharsetColumnName() {
+		return charsetColumnName;
+	}
+	public void setCharsetColumnName(String charsetColumnName) {
+		this.charsetColumnName = charsetColumnName;
+	}
+	public String getGridFsIdColumnName() {
+		return gridFsIdColumnName;
+	}
+	public void setGridFsIdColumnName(String gridFsIdColumnName) {
+		this.gridFsIdColumnName = gridFsIdColumnName;
+	}
+	public String getCodecColumnName() {
+		return codecColumnName;
+	}
+	public void setCodecColumnName(String codecColumnName) {
+		this.codecColumnName = codecColumnName;
+	}
+	public String getDigestColumnName() {
+		return digestColumnName;
+	}
+	public void setDigestColumnName(String digestColumnName) {
+		this.digestColumnName = digestColumnName;
+	}
 	public String getCuriPrefix() {
 		return curiPrefix;
 	}
@@ -197,18 +519,354 @@ public class MongodbParameters {
 	public void setProcessedAtColumnName(String processedAtColumnName) {
 		this.processedAtColumnName = processedAtColumnName;
 	}
+	/**
+	 * Column of the url in SURT form, e.g. "http://(com,example,www,)/a".
+	 */
+	public String getSurtColumnName() {
+		return surtColumnName;
+	}
+	public void setSurtColumnName(String surtColumnName) {
+		this.surtColumnName = surtColumnName;
+	}
+	/**
+	 * Column of the fetch time as a BSON date, whatever the time zone.
+	 */
+	public String getFetchedAtColumnName() {
+		return fetchedAtColumnName;
+	}
+	public void setFetchedAtColumnName(String fetchedAtColumnName) {
+		this.fetchedAtColumnName = fetchedAtColumnName;
+	}
+	/**
+	 * Column of the WARC revisit profile of a revisit doc.
+	 */
+	public String getRevisitColumnName() {
+		return revisitColumnName;
+	}
+	public void setRevisitColumnName(String revisitColumnName) {
+		this.revisitColumnName = revisitColumnName;
+	}
+	/**
+	 * Column of the _id of the doc a revisit doc refers to, if known.
+	 */
+	public String getRefersToColumnName() {
+		return refersToColumnName;
+	}
+	public void setRefersToColumnName(String refersToColumnName) {
+		this.refersToColumnName = refersToColumnName;
+	}
+	public String getRefersToUrlColumnName() {
+		return refersToUrlColumnName;
+	}
+	public void setRefersToUrlColumnName(String refersToUrlColumnName) {
+		this.refersToUrlColumnName = refersToUrlColumnName;
+	}
+	public String getRefersToDateColumnName() {
+		return refersToDateColumnName;
+	}
+	public void setRefersToDateColumnName(String refersToDateColumnName) {
+		this.refersToDateColumnName = refersToDateColumnName;
+	}
 	public int getBulkDocNumber() {
 		return bulkDocNumber;
 	}
 	public void setBulkDocNumber(int bulkDocNumber) {
 		this.bulkDocNumber = bulkDocNumber;
 	}
+	/**
+	 * Whether docs are buffered and inserted in bulk. A bulkDocNumber of 1 or
+	 * less keeps the old one-insert-per-URI behavior.
+	 */
+	public boolean isBatchWrites() {
+		return bulkDocNumber > 1;
+	}
+	public long getMaxBatchAgeMs() {
+		return maxBatchAgeMs;
+	}
+	public void setMaxBatchAgeMs(long maxBatchAgeMs) {
+		this.maxBatchAgeMs = maxBatchAgeMs;
+	}
+	/**
+	 * Estimated size of the docs at which a batch is written, whatever their number. Capped
+	 * by the largest message the servers accept.
+	 */
+	public long getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+	}
+	/**
+	 * Whether bulkDocNumber and maxBatchBytes are only where batch sizes start, and are then
+	 * adjusted to the latency of the bulk writes, see {@link MongodbBatchSizer}.
+	 */
+	public boolean isAdaptiveBatchSize() {
+		return adaptiveBatchSize;
+	}
+	public void setAdaptiveBatchSize(boolean adaptiveBatchSize) {
+		this.adaptiveBatchSize = adaptiveBatchSize;
+	}
+	/**
+	 * Latency of a bulk write above which adaptive batch sizing halves the batches.
+	 */
+	public long getTargetBatchLatencyMs() {
+		return targetBatchLatencyMs;
+	}
+	public void setTargetBatchLatencyMs(long targetBatchLatencyMs) {
+		this.targetBatchLatencyMs = targetBatchLatencyMs;
+	}
+	/**
+	 * Whether the docs of a batch are written in an unordered bulk write, where a doc
+	 * MongoDB rejects does not fail the others, and docs that failed for a reason that
+	 * may pass are retried, see {@link MongodbBulkInserter}. Otherwise a batch is one
+	 * ordered insert that fails as a whole.
+	 */
+	public boolean isContinueOnError() {
+		return continueOnError;
+	}
+	public void setContinueOnError(boolean continueOnError) {
+		this.continueOnError = continueOnError;
+	}
+	/**
+	 * Times a doc is written again after a network error or while there is no primary,
+	 * with continueOnError.
+	 */
+	public int getMaxWriteRetries() {
+		return maxWriteRetries;
+	}
+	public void setMaxWriteRetries(int maxWriteRetries) {
+		this.maxWriteRetries = maxWriteRetries;
+	}
+	/**
+	 * Wait before the first retry, doubled for every further one and jittered.
+	 */
+	public long getRetryBackoffMs() {
+		return retryBackoffMs;
+	}
+	public void setRetryBackoffMs(long retryBackoffMs) {
+		this.retryBackoffMs = retryBackoffMs;
+	}
+	/**
+	 * Most a writer waits between retries in total while it holds its lock, with
+	 * continueOnError. A ToeThread writing a doc or a full batch so never waits out an
+	 * election; docs still failing after that are retried by the pool in the background.
+	 */
+	public long getMaxInlineRetryMs() {
+		return maxInlineRetryMs;
+	}
+	public void setMaxInlineRetryMs(long maxInlineRetryMs) {
+		this.maxInlineRetryMs = maxInlineRetryMs;
+	}
+	/**
+	 * Directory of the local write-ahead spool. When set, docs are appended to the spool
+	 * and replayed into MongoDB in the background, see {@link MongodbSpool}.
+	 */
+	public String getSpoolDirectory() {
+		return spoolDirectory;
+	}
+	public void setSpoolDirectory(String spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+	public boolean isSpoolWrites() {
+		return !spoolDirectory.isEmpty();
+	}
+	public long getSpoolSegmentSize() {
+		return spoolSegmentSize;
+	}
+	public void setSpoolSegmentSize(long spoolSegmentSize) {
+		this.spoolSegmentSize = spoolSegmentSize;
+	}
+	/**
+	 * How often docs appended to the active spool segment are forced to disk. A process
+	 * crash loses no spooled doc, a host crash those appended since the last sync. 0 forces
+	 * a segment only when it is sealed.
+	 */
+	public long getSpoolSyncIntervalMs() {
+		return spoolSyncIntervalMs;
+	}
+	public void setSpoolSyncIntervalMs(long spoolSyncIntervalMs) {
+		this.spoolSyncIntervalMs = spoolSyncIntervalMs;
+	}
+	/**
+	 * Number of threads writing snapshots of captures to MongoDB, so ToeThreads do not
+	 * wait for it. 0, the default, writes on the ToeThread.
+	 */
+	public int getAsyncWriterThreads() {
+		return asyncWriterThreads;
+	}
+	public void setAsyncWriterThreads(int asyncWriterThreads) {
+		this.asyncWriterThreads = asyncWriterThreads;
+	}
+	public boolean isAsyncWrites() {
+		return asyncWriterThreads > 0;
+	}
+	/**
+	 * Maximum number of snapshots waiting for a writer thread; ToeThreads block when it is reached.
+	 */
+	public int getAsyncQueueCapacity() {
+		return asyncQueueCapacity;
+	}
+	public void setAsyncQueueCapacity(int asyncQueueCapacity) {
+		this.asyncQueueCapacity = asyncQueueCapacity;
+	}
+	/**
+	 * Maximum bytes of recordings held by snapshots waiting for or being written by a writer
+	 * thread; ToeThreads block when it is reached. A single larger snapshot still goes through.
+	 */
+	public long getAsyncQueueBytes() {
+		return asyncQueueBytes;
+	}
+	public void setAsyncQueueBytes(long asyncQueueBytes) {
+		this.asyncQueueBytes = asyncQueueBytes;
+	}
+	/**
+	 * How writers are handed to ToeThreads. STRIPED and THREAD never take the WriterPool's
+	 * global lock nor wait for maxWaitForIdleMs; with THREAD every thread buffers its own
+	 * batch, so batches fill more slowly and maxBatchAgeMs matters more.
+	 */
+	public WriterLeasing getWriterLeasing() {
+		return writerLeasing;
+	}
+	public void setWriterLeasing(WriterLeasing writerLeasing) {
+		this.writerLeasing = writerLeasing;
+	}
+	/**
+	 * Number of writers with STRIPED leasing, 0 for one per pool slot (poolMaxActive).
+	 */
+	public int getWriterStripes() {
+		return writerStripes;
+	}
+	public void setWriterStripes(int writerStripes) {
+		this.writerStripes = writerStripes;
+	}
 	public boolean isSeparateHeaders() {
 		return separateHeaders;
 	}
 	public void setSeparateHeaders(boolean separateHeaders) {
 		this.separateHeaders = separateHeaders;
 	}
+	/**
+	 * Whether request, headers and content are stored as BSON binary straight from the
+	 * recorder instead of being decoded to strings with the recorder charset.
+	 */
+	public boolean isStoreAsBinary() {
+		return storeAsBinary;
+	}
+	public void setStoreAsBinary(boolean storeAsBinary) {
+		this.storeAsBinary = storeAsBinary;
+	}
+	/**
+	 * Storage policy by MIME type: a full type such as image/png, a type with any subtype
+	 * such as image/*, or * for any type. Types are matched without their parameters and
+	 * case, the most specific entry wins.
+	 */
+	public Map<String, StoragePolicy> getStoragePolicies() {
+		return storagePolicies;
+	}
+	public void setStoragePolicies(Map<String, StoragePolicy> storagePolicies) {
+		this.storagePolicies = new LinkedHashMap<String, StoragePolicy>();
+		for (Map.Entry<String, StoragePolicy> entry : storagePolicies.entrySet()) {
+			this.storagePolicies.put(entry.getKey().trim().toLowerCase(Locale.ENGLISH), entry.getValue());
+		}
+	}
+	/**
+	 * Storage policy of bodies whose type has no entry in storagePolicies. Unset, it is
+	 * BINARY with storeAsBinary and TEXT without.
+	 */
+	public StoragePolicy getDefaultStoragePolicy() {
+		if (defaultStoragePolicy == null) {
+			return storeAsBinary ? StoragePolicy.BINARY : StoragePolicy.TEXT;
+		}
+		return defaultStoragePolicy;
+	}
+	public void setDefaultStoragePolicy(StoragePolicy defaultStoragePolicy) {
+		this.defaultStoragePolicy = defaultStoragePolicy;
+	}
+	/**
+	 * @param contentType the content type of the response, as reported by the CrawlURI, may be null
+	 * @return how the body of the response is stored.
+	 */
+	public StoragePolicy getStoragePolicy(String contentType) {
+		if (contentType != null && !storagePolicies.isEmpty()) {
+			String type = contentType;
+			int parameters = type.indexOf(';');
+			if (parameters >= 0) {
+				type = type.substring(0, parameters);
+			}
+			type = type.trim().toLowerCase(Locale.ENGLISH);
+			StoragePolicy policy = storagePolicies.get(type);
+			int slash = type.indexOf('/');
+			if (policy == null && slash > 0) {
+				policy = storagePolicies.get(type.substring(0, slash) + "/*");
+			}
+			if (policy == null) {
+				policy = storagePolicies.get("*");
+			}
+			if (policy != null) {
+				return policy;
+			}
+		}
+		return getDefaultStoragePolicy();
+	}
+	/**
+	 * Whether docs are written with short keys, the metadata grouped in sub-documents, see
+	 * {@link MongodbSchema}. Readers expand them with {@link MongodbSchemaReader}.
+	 */
+	public boolean isCompactSchema() {
+		return compactSchema;
+	}
+	public void setCompactSchema(boolean compactSchema) {
+		this.compactSchema = compactSchema;
+	}
+	/**
+	 * Collection the field dictionary of the compact schema is stored in, in the database
+	 * of every target.
+	 */
+	public String getSchemaCollection() {
+		return schemaCollection;
+	}
+	public void setSchemaCollection(String schemaCollection) {
+		this.schemaCollection = schemaCollection;
+	}
+	/**
+	 * Version the field dictionary is stored under and every compact doc carries. Set a new
+	 * one when the column names change, the dictionary of a version never changes.
+	 */
+	public int getSchemaVersion() {
+		return schemaVersion;
+	}
+	public void setSchemaVersion(int schemaVersion) {
+		this.schemaVersion = schemaVersion;
+	}
+	/**
+	 * Whether request, headers and content are written to a content doc of their own,
+	 * linked to the metadata doc by the same _id, so metadata queries and scans do not
+	 * page in the recordings, see {@link MongodbContentSplitter}.
+	 */
+	public boolean isSplitContent() {
+		return splitContent;
+	}
+	public void setSplitContent(boolean splitContent) {
+		this.splitContent = splitContent;
+	}
+	/**
+	 * Collection the content docs of split storage go to, as host[:port]/database/collection.
+	 * If empty, each collection docs are written to has its content in its sub-collection
+	 * "content", e.g. pages.content.
+	 */
+	public String getSplitContentTarget() {
+		return splitContentTarget;
+	}
+	public void setSplitContentTarget(String splitContentTarget) {
+		this.splitContentTarget = splitContentTarget;
+	}
+	/**
+	 * @return true if any content may go to GridFS, by size or by storage policy.
+	 */
+	public boolean isGridFsUsed() {
+		return storeLargeContentInGridFs || storagePolicies.containsValue(StoragePolicy.LARGE_OBJECT)
+				|| defaultStoragePolicy == StoragePolicy.LARGE_OBJECT;
+	}
 	public String getTimeZone() {
 		return timeZone;
 	}
@@ -0,0 +1,103 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.archive.util.SURT;
+
+/**
+ * Spreads docs across targets by consistent hashing on the SURT host of their url, so all
+ * docs of a host go to the same target and adding a target only moves about 1/n of the hosts.
+ *
+ * <p>Each target is placed on the hash ring virtualNodes times; a host goes to the first
+ * target at or after its own hash.
+ */
+public class MongodbRouter {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final List<MongodbTarget> targets;
+	private final TreeMap<Long, MongodbTarget> ring = new TreeMap<Long, MongodbTarget>();
+
+	private static final ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * @param targets the targets, at least one
+	 * @param virtualNodes points per target on the hash ring
+	 */
+	public MongodbRouter(final List<MongodbTarget> targets, final int virtualNodes) {
+		if (targets.isEmpty()) {
+			throw new IllegalArgumentException("No mongodb target to route to");
+		}
+		this.targets = targets;
+		for (MongodbTarget target : targets) {
+			for (int i = 0; i < Math.max(virtualNodes, 1); i++) {
+				ring.put(hash(target + "#" + i), target);
+			}
+		}
+	}
+
+	/**
+	 * @param host the host of the url, may be empty
+	 * @return the target for docs of this host.
+	 */
+	public MongodbTarget route(final String host) {
+		if (targets.size() == 1) {
+			return targets.get(0);
+		}
+		Map.Entry<Long, MongodbTarget> entry = ring.ceilingEntry(hash(surtHost(host)));
+		return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+	}
+
+	public List<MongodbTarget> getTargets() {
+		return targets;
+	}
+
+	/**
+	 * @return the host in SURT form as {@link SURT} writes it, e.g. "com,example,www," for
+	 * "www.example.com", with IP addresses left as they are. Empty for an empty host.
+	 */
+	protected static String surtHost(final String host) {
+		if (host.isEmpty()) {
+			return host;
+		}
+		// the host part of the SURT of the url, between its parentheses
+		String surt = SURT.fromURI("http://" + host + "/");
+		int open = surt.indexOf('(');
+		int close = surt.indexOf(')', open + 1);
+		return open >= 0 && close > open ? surt.substring(open + 1, close) : surt;
+	}
+
+	/**
+	 * @return the first 8 bytes of the MD5 of the key.
+	 */
+	protected static long hash(final String key) {
+		byte[] digest = md5.get().digest(key.getBytes(UTF8));
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xff);
+		}
+		return hash;
+	}
+}
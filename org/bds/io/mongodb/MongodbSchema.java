@@ -0,0 +1,307 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+
+/**
+ * Field dictionary of the compact schema: maps the logical column names, such as
+ * curi:path-from-seed, to short keys, with the capture metadata, the revisit and the
+ * content description each grouped in a small sub-document. Request, headers and
+ * content stay at the top level.
+ *
+ * <pre>
+ * { _id, v: 1, m: { u, s, ip, sd, p, vi, f, pa }, r: { p, t, u, d },
+ *   c: { cs, cd, d, g }, q, h, b }
+ * </pre>
+ *
+ * <p>The dictionary is stored once per version in the schema collection of every target
+ * database, and every doc carries its version in v, so {@link MongodbSchemaReader} can
+ * expand the docs of any version back to the logical names. Without compactSchema the
+ * schema is the identity and docs are written with the logical names, as before.
+ */
+public class MongodbSchema {
+
+	private static final Logger logger = Logger.getLogger(MongodbSchema.class.getName());
+
+	/** Key of the schema version in every compact doc. */
+	public static final String VERSION_KEY = "v";
+	/** Key of the dictionary, logical name to path, in the schema collection. */
+	public static final String FIELDS_KEY = "fields";
+
+	private final int version;
+	/** Logical name to path, e.g. curi:url to m.u. */
+	private final Map<String, String> fields;
+	/** Logical name to group and key, the group null for a top level key. */
+	private final Map<String, String[]> paths = new LinkedHashMap<String, String[]>();
+	/** Path to logical name. */
+	private final Map<String, String> names = new LinkedHashMap<String, String>();
+	/** Keys of the sub-documents. */
+	private final Set<String> groups = new HashSet<String>();
+
+	/**
+	 * @param version the schema version, 0 for the identity
+	 * @param fields logical name to path, a key or a group and a key joined by a dot
+	 */
+	public MongodbSchema(final int version, final Map<String, String> fields) {
+		this.version = version;
+		this.fields = fields;
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			String path = field.getValue();
+			int dot = path.indexOf('.');
+			if (dot < 0) {
+				paths.put(field.getKey(), new String[] {null, path});
+			} else {
+				paths.put(field.getKey(), new String[] {path.substring(0, dot), path.substring(dot + 1)});
+				groups.add(path.substring(0, dot));
+			}
+			if (names.put(path, field.getKey()) != null) {
+				throw new IllegalArgumentException("Two fields of schema version " + version + " are stored under " + path);
+			}
+		}
+	}
+
+	/**
+	 * @param parameters the MongoDB settings: compactSchema, schemaVersion and the column names
+	 * @return the compact schema of the configured column names, or the identity without compactSchema.
+	 */
+	public static MongodbSchema of(final MongodbParameters parameters) {
+		if (!parameters.isCompactSchema()) {
+			return new MongodbSchema(0, Collections.<String, String>emptyMap());
+		}
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		// capture metadata
+		fields.put(parameters.getUrlColumnName(), "m.u");
+		fields.put(parameters.getSurtColumnName(), "m.s");
+		fields.put(parameters.getIpColumnName(), "m.ip");
+		fields.put(parameters.getIsSeedColumnName(), "m.sd");
+		fields.put(parameters.getPathFromSeedColumnName(), "m.p");
+		fields.put(parameters.getViaColumnName(), "m.vi");
+		fields.put(parameters.getFetchedAtColumnName(), "m.f");
+		fields.put(parameters.getProcessedAtColumnName(), "m.pa");
+		// revisit
+		fields.put(parameters.getRevisitColumnName(), "r.p");
+		fields.put(parameters.getRefersToColumnName(), "r.t");
+		fields.put(parameters.getRefersToUrlColumnName(), "r.u");
+		fields.put(parameters.getRefersToDateColumnName(), "r.d");
+		// how the content is stored
+		fields.put(parameters.getCharsetColumnName(), "c.cs");
+		fields.put(parameters.getCodecColumnName(), "c.cd");
+		fields.put(parameters.getDigestColumnName(), "c.d");
+		fields.put(parameters.getGridFsIdColumnName(), "c.g");
+		// the recording
+		fields.put(parameters.getRequestColumnName(), "q");
+		fields.put(parameters.getHeadersColumnName(), "h");
+		fields.put(parameters.getContentColumnName(), "b");
+		return new MongodbSchema(parameters.getSchemaVersion(), fields);
+	}
+
+	/**
+	 * @param schemaCollection the schema collection of a database
+	 * @param version the schema version
+	 * @return the schema of that version stored in the collection, or null if there is none.
+	 */
+	public static MongodbSchema load(final DBCollection schemaCollection, final int version) {
+		DBObject stored = schemaCollection.findOne(new BasicDBObject("_id", version));
+		if (stored == null) {
+			return null;
+		}
+		DBObject storedFields = (DBObject) stored.get(FIELDS_KEY);
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		for (String name : storedFields.keySet()) {
+			fields.put(name, (String) storedFields.get(name));
+		}
+		return new MongodbSchema(version, fields);
+	}
+
+	/**
+	 * Store the dictionary in the schema collection, unless this version is there already.
+	 *
+	 * @param schemaCollection the schema collection of a target database
+	 * @throws RuntimeException if the collection has another dictionary under this version
+	 */
+	public void store(final DBCollection schemaCollection) {
+		if (!isCompact()) {
+			return;
+		}
+		MongodbSchema stored = load(schemaCollection, version);
+		if (stored == null) {
+			DBObject dictionary = new BasicDBObject("_id", version);
+			dictionary.put(FIELDS_KEY, new BasicDBObject(fields));
+			try {
+				schemaCollection.insert(dictionary);
+				logger.info("Stored schema version " + version + " in " + schemaCollection.getFullName());
+				return;
+			} catch (DuplicateKeyException e) {
+				// another writer stored it in the meantime
+				stored = load(schemaCollection, version);
+			}
+		}
+		if (stored != null && !stored.fields.equals(fields)) {
+			throw new RuntimeException("Schema version " + version + " in " + schemaCollection.getFullName()
+					+ " has other fields, set another schemaVersion for these column names");
+		}
+	}
+
+	/**
+	 * @return true unless this is the identity.
+	 */
+	public boolean isCompact() {
+		return !fields.isEmpty();
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param name a logical column name
+	 * @return the path the column is stored under, for queries and indexes, e.g. m.u.
+	 */
+	public String getPath(final String name) {
+		String path = fields.get(name);
+		return path == null ? name : path;
+	}
+
+	/**
+	 * @param doc a doc written with this schema
+	 * @param name a logical column name
+	 * @return the value of the column in the doc, or null.
+	 */
+	public Object get(final DBObject doc, final String name) {
+		String[] path = paths.get(name);
+		if (path == null) {
+			return doc.get(name);
+		}
+		if (path[0] == null) {
+			return doc.get(path[1]);
+		}
+		DBObject group = (DBObject) doc.get(path[0]);
+		return group == null ? null : group.get(path[1]);
+	}
+
+	/**
+	 * Move columns out of a doc written with this schema into a new doc with the same _id,
+	 * and the same version if compact. A group left empty is removed.
+	 *
+	 * @param doc a doc written with this schema
+	 * @param columns logical names of the columns to move
+	 * @return the new doc, or null if the doc has none of the columns.
+	 */
+	public DBObject extract(final DBObject doc, final Collection<String> columns) {
+		DBObject extracted = null;
+		for (String name : columns) {
+			String[] path = paths.get(name);
+			String group = path == null ? null : path[0];
+			String key = path == null ? name : path[1];
+			DBObject from = group == null ? doc : (DBObject) doc.get(group);
+			if (from == null || !from.containsField(key)) {
+				continue;
+			}
+			if (extracted == null) {
+				extracted = new BasicDBObject("_id", doc.get("_id"));
+				if (isCompact()) {
+					extracted.put(VERSION_KEY, version);
+				}
+			}
+			Object value = from.removeField(key);
+			if (group == null) {
+				extracted.put(key, value);
+			} else {
+				DBObject to = (DBObject) extracted.get(group);
+				if (to == null) {
+					to = new BasicDBObject();
+					extracted.put(group, to);
+				}
+				to.put(key, value);
+				if (from.keySet().isEmpty()) {
+					doc.removeField(group);
+				}
+			}
+		}
+		return extracted;
+	}
+
+	/**
+	 * @param doc a doc with the logical column names
+	 * @return a new doc with the short keys and the version, or the doc itself for the identity.
+	 */
+	public DBObject compact(final DBObject doc) {
+		if (!isCompact()) {
+			return doc;
+		}
+		BasicDBObject compact = new BasicDBObject();
+		Object id = doc.get("_id");
+		if (id != null) {
+			compact.put("_id", id);
+		}
+		compact.put(VERSION_KEY, version);
+		for (String name : doc.keySet()) {
+			String[] path = paths.get(name);
+			if (path == null) {
+				// _id and any column the dictionary does not know keep their name
+				if (!"_id".equals(name)) {
+					compact.put(name, doc.get(name));
+				}
+			} else if (path[0] == null) {
+				compact.put(path[1], doc.get(name));
+			} else {
+				DBObject group = (DBObject) compact.get(path[0]);
+				if (group == null) {
+					group = new BasicDBObject();
+					compact.put(path[0], group);
+				}
+				group.put(path[1], doc.get(name));
+			}
+		}
+		return compact;
+	}
+
+	/**
+	 * @param doc a doc written with this schema
+	 * @return a new doc with the logical column names, or the doc itself for the identity.
+	 */
+	public DBObject expand(final DBObject doc) {
+		if (!isCompact()) {
+			return doc;
+		}
+		BasicDBObject expanded = new BasicDBObject();
+		for (String key : doc.keySet()) {
+			if (VERSION_KEY.equals(key)) {
+				continue;
+			}
+			Object value = doc.get(key);
+			String name = names.get(key);
+			if (name != null) {
+				expanded.put(name, value);
+			} else if (value instanceof DBObject && groups.contains(key)) {
+				DBObject group = (DBObject) value;
+				for (String groupKey : group.keySet()) {
+					String path = key + "." + groupKey;
+					String groupName = names.get(path);
+					expanded.put(groupName == null ? path : groupName, group.get(groupKey));
+				}
+			} else {
+				expanded.put(key, value);
+			}
+		}
+		return expanded;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Expands docs written with the compact schema back to the logical column names, for
+ * readers of the collections. The dictionary of each version is read from the schema
+ * collection the first time a doc of that version is seen. Docs written without the
+ * compact schema are returned as they are.
+ *
+ * <pre>
+ * MongodbSchemaReader reader = new MongodbSchemaReader(db, "schema");
+ * DBObject doc = reader.expand(collection.findOne(query));
+ * String url = (String) doc.get("curi:url");
+ * </pre>
+ */
+public class MongodbSchemaReader {
+
+	private final DBCollection schemaCollection;
+	private final Map<Integer, MongodbSchema> schemas = new ConcurrentHashMap<Integer, MongodbSchema>();
+
+	/**
+	 * @param db the database the docs were written to
+	 * @param schemaCollection name of its schema collection, see schemaCollection in {@link MongodbParameters}
+	 */
+	public MongodbSchemaReader(final DB db, final String schemaCollection) {
+		this.schemaCollection = db.getCollection(schemaCollection);
+	}
+
+	/**
+	 * @param doc a doc as read from MongoDB, may be null
+	 * @return the doc with its logical column names.
+	 * @throws RuntimeException if the schema collection has no dictionary for the version of the doc
+	 */
+	public DBObject expand(final DBObject doc) {
+		if (doc == null || !(doc.get(MongodbSchema.VERSION_KEY) instanceof Number)) {
+			return doc;
+		}
+		return getSchema(((Number) doc.get(MongodbSchema.VERSION_KEY)).intValue()).expand(doc);
+	}
+
+	/**
+	 * @param version a schema version
+	 * @return the schema of that version.
+	 * @throws RuntimeException if the schema collection has no dictionary for the version
+	 */
+	public MongodbSchema getSchema(final int version) {
+		MongodbSchema schema = schemas.get(version);
+		if (schema == null) {
+			schema = MongodbSchema.load(schemaCollection, version);
+			if (schema == null) {
+				throw new RuntimeException("No schema version " + version + " in " + schemaCollection.getFullName());
+			}
+			schemas.put(version, schema);
+		}
+		return schema;
+	}
+}
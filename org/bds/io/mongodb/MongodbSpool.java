@@ -0,0 +1,611 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.MongoException;
+
+/**
+ * A write-ahead spool of docs on local disk, drained into MongoDB in the background.
+ *
+ * <p>Writers append docs to the active segment file and return at disk speed, whatever
+ * MongoDB is doing. A drainer thread seals the active segment once it is full or older
+ * than maxBatchAgeMs, replays sealed segments in bulk inserts, and deletes a segment
+ * only once all of its docs have been acknowledged. When MongoDB is unavailable the
+ * drainer retries with exponential backoff while segments accumulate on disk.
+ *
+ * <p>Appended docs are in the operating system's page cache as soon as append returns,
+ * so they survive a crash of the crawler. The active segment is forced to disk every
+ * spoolSyncIntervalMs and when it is sealed; a crash of the host loses the docs appended
+ * since, and with spoolSyncIntervalMs 0 everything since the last seal.
+ *
+ * <p>The drainer remembers how far into a segment its batches have been acknowledged, so
+ * when a later batch fails the replay resumes after the last acknowledged one instead of
+ * sending, and counting, the earlier batches again.
+ *
+ * <p>Segments left over from a previous run are replayed first, from their start. Every
+ * doc carries its _id before it is spooled, so docs that reached MongoDB just before a
+ * crash come back as duplicate keys on replay and are skipped. In upsert mode the docs
+ * are replayed as upserts, which replace the same doc again.
+ *
+ * <p>Each record is the recorded size and the content size of the CrawlURI as little-endian
+ * longs followed by the BSON doc, which starts with its own length. Content docs of
+ * deduplicated storage have {@link #CONTENT_RECORD} as their recorded size and are replayed
+ * into the pool's content collection, ahead of the docs read after them.
+ */
+public class MongodbSpool {
+
+	private static final Logger logger = Logger.getLogger(MongodbSpool.class.getName());
+
+	public static final String SEGMENT_PREFIX = "spool-";
+	public static final String SEGMENT_SUFFIX = ".seg";
+	/** Appended to segments set aside on resume, followed by the time they were set aside. */
+	public static final String SKIPPED_SUFFIX = ".skipped-";
+	/** Recorded size of the records of content docs, which belong to no capture of their own. */
+	public static final long CONTENT_RECORD = -1;
+	/** The recorded size and the content size in front of the BSON doc of each record. */
+	private static final int RECORD_HEADER_SIZE = 16;
+	private static final int READ_BUFFER_SIZE = 256 * 1024;
+	private static final long MIN_BACKOFF_MS = 500;
+	private static final long MAX_BACKOFF_MS = 60 * 1000;
+
+	private final File directory;
+	private final long segmentSize;
+	private final long maxSegmentAgeMs;
+	private final long syncIntervalMs;
+	private final boolean upsert;
+	private final boolean continueOnError;
+	private final String fetchedAtColumnName;
+	private final MongodbSchema schema;
+	private final MongodbTarget target;
+	private final MongodbWriterPool pool;
+
+	// Sealed segments waiting to be replayed, oldest first
+	private final LinkedList<File> sealed = new LinkedList<File>();
+	private File active = null;
+	private FileChannel activeChannel = null;
+	private long activeOpenedAt = 0;
+	// Appended to the active segment since it was last forced to disk
+	private boolean activeDirty = false;
+	private long activeSyncedAt = 0;
+	private long nextSequence = 0;
+
+	private long pendingBytes = 0;
+
+	// The segment being replayed and the end of its last acknowledged batch, drainer only
+	private File replaySegment = null;
+	private long replayOffset = 0;
+
+	private final Thread drainer;
+	private volatile boolean running = true;
+
+	/**
+	 * Open the spool, picking up segments left by a previous run, and start draining it.
+	 *
+	 * @param directory directory of the segment files, created if missing
+	 * @param parameters the MongoDB settings: the segment size, maxBatchAgeMs as the age at
+	 * which a non-empty active segment is sealed, the upsert mode and continueOnError
+	 * @param target target the docs are replayed into, in the partition of their fetch time
+	 * @param pool pool told about acknowledged bytes, whose batch sizer cuts the replayed batches
+	 * @throws IOException if the directory cannot be used
+	 */
+	public MongodbSpool(final File directory, final MongodbParameters parameters,
+			final MongodbTarget target, final MongodbWriterPool pool) throws IOException {
+		this.directory = directory;
+		this.segmentSize = parameters.getSpoolSegmentSize();
+		this.maxSegmentAgeMs = parameters.getMaxBatchAgeMs();
+		this.syncIntervalMs = parameters.getSpoolSyncIntervalMs();
+		this.upsert = parameters.isUpsertWrites();
+		this.continueOnError = parameters.isContinueOnError();
+		this.fetchedAtColumnName = parameters.getFetchedAtColumnName();
+		this.schema = MongodbSchema.of(parameters);
+		this.target = target;
+		this.pool = pool;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create spool directory " + directory);
+		}
+		File[] leftover = listSegments(directory);
+		for (File segment : leftover) {
+			sealed.add(segment);
+			pendingBytes += segment.length();
+			nextSequence = Math.max(nextSequence, getSequence(segment) + 1);
+		}
+		if (leftover.length > 0) {
+			logger.info("Replaying " + leftover.length + " spool segments (" + pendingBytes + " bytes) from " + directory);
+		}
+
+		drainer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "MongodbSpool-drainer");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * @return the segment files in the directory, oldest first.
+	 */
+	protected static File[] listSegments(final File directory) {
+		File[] segments = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (segments == null) {
+			return new File[0];
+		}
+		// the sequence is zero padded, so names sort in sequence order
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	protected static long getSequence(final File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * Set aside the segments at or above a high-water mark, which were written after the
+	 * checkpoint a crawl is resumed from. The resumed crawl fetches their CrawlURIs again,
+	 * so replaying them would write those docs twice. The segments are renamed, not deleted.
+	 *
+	 * @param directory directory of the segment files
+	 * @param sequence the high-water mark saved with the checkpoint, see {@link #checkpoint()}
+	 * @return number of segments set aside
+	 */
+	public static int skipSegmentsFrom(final File directory, final long sequence) {
+		int skipped = 0;
+		String suffix = SKIPPED_SUFFIX + System.currentTimeMillis();
+		for (File segment : listSegments(directory)) {
+			if (getSequence(segment) < sequence) {
+				continue;
+			}
+			if (segment.renameTo(new File(directory, segment.getName() + suffix))) {
+				skipped++;
+			} else {
+				logger.warning("Could not set aside spool segment " + segment + " written after the checkpoint");
+			}
+		}
+		if (skipped > 0) {
+			logger.info("Set aside " + skipped + " spool segments written after the checkpoint in " + directory);
+		}
+		return skipped;
+	}
+
+	/**
+	 * Force every doc appended so far to disk, for a checkpoint.
+	 *
+	 * @return the high-water mark: segments with a lower sequence hold every doc appended
+	 * before the checkpoint, segments from it on only docs appended after it.
+	 * @throws IOException if the active segment could not be forced to disk
+	 */
+	public synchronized long checkpoint() throws IOException {
+		sealSegment();
+		return nextSequence;
+	}
+
+	/**
+	 * Append a doc to the active segment. The doc is forced to disk outside the spool's
+	 * lock, so other writers append meanwhile, except when it fills the segment, which is
+	 * sealed right away.
+	 *
+	 * @param doc the doc, with its _id already set
+	 * @param recordedBytes recorded size of the CrawlURI, acknowledged once the doc is replayed
+	 * @param contentBytes content size of the CrawlURI, counted with its record once the doc is replayed
+	 * @throws IOException if the doc could not be written to disk
+	 */
+	public void append(final DBObject doc, final long recordedBytes, final long contentBytes) throws IOException {
+		byte[] bson = new BasicBSONEncoder().encode(doc);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bson.length).order(ByteOrder.LITTLE_ENDIAN);
+		record.putLong(recordedBytes).putLong(contentBytes).put(bson).flip();
+
+		FileChannel due;
+		synchronized (this) {
+			if (activeChannel == null) {
+				openSegment();
+			}
+			while (record.hasRemaining()) {
+				activeChannel.write(record);
+			}
+			pendingBytes += RECORD_HEADER_SIZE + bson.length;
+			activeDirty = true;
+			if (activeChannel.position() >= segmentSize) {
+				sealSegment();
+				return;
+			}
+			due = takeDueSync();
+		}
+		force(due);
+	}
+
+	/**
+	 * Append a content doc of deduplicated storage, see {@link MongodbWriter#insertContent}.
+	 *
+	 * @param content the content doc, with the digest as its _id
+	 * @param contentBytes the number of content bytes, counted with its record once it is replayed
+	 * @throws IOException if the doc could not be written to disk
+	 */
+	public void appendContent(final DBObject content, final long contentBytes) throws IOException {
+		append(content, CONTENT_RECORD, contentBytes);
+	}
+
+	private void openSegment() throws IOException {
+		active = new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+		activeChannel = new FileOutputStream(active, true).getChannel();
+		activeOpenedAt = System.currentTimeMillis();
+		activeSyncedAt = activeOpenedAt;
+	}
+
+	/**
+	 * Take the active segment to be forced to disk if it has docs not yet forced and
+	 * spoolSyncIntervalMs has passed since it last was, see {@link #force(FileChannel)}.
+	 *
+	 * @return the channel of the active segment, or null if no sync is due
+	 */
+	private synchronized FileChannel takeDueSync() {
+		if (syncIntervalMs <= 0 || activeChannel == null || !activeDirty) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (now - activeSyncedAt < syncIntervalMs) {
+			return null;
+		}
+		activeDirty = false;
+		activeSyncedAt = now;
+		return activeChannel;
+	}
+
+	/**
+	 * Force a segment taken by {@link #takeDueSync()} to disk, without holding the spool's lock.
+	 */
+	private void force(final FileChannel channel) throws IOException {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.force(false);
+		} catch (ClosedChannelException e) {
+			// sealed meanwhile, which forced it
+		} catch (IOException e) {
+			synchronized (this) {
+				if (channel == activeChannel) {
+					activeDirty = true;
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Force the active segment to disk and queue it for replay.
+	 */
+	private synchronized void sealSegment() throws IOException {
+		if (activeChannel == null) {
+			return;
+		}
+		try {
+			activeChannel.force(false);
+		} finally {
+			activeChannel.close();
+			activeChannel = null;
+			activeDirty = false;
+		}
+		sealed.add(active);
+		active = null;
+		notifyAll();
+	}
+
+	private File nextSealedSegment() throws IOException, InterruptedException {
+		while (true) {
+			FileChannel due;
+			synchronized (this) {
+				if (!running || !sealed.isEmpty()) {
+					return sealed.peek();
+				}
+				if (activeChannel != null && System.currentTimeMillis() - activeOpenedAt >= maxSegmentAgeMs) {
+					sealSegment();
+					continue;
+				}
+				// the last docs appended are forced to disk even if no more follow
+				due = takeDueSync();
+				if (due == null) {
+					long waitMs = Math.max(maxSegmentAgeMs / 2, 10);
+					if (syncIntervalMs > 0) {
+						waitMs = Math.min(waitMs, Math.max(syncIntervalMs, 10));
+					}
+					wait(waitMs);
+					continue;
+				}
+			}
+			force(due);
+		}
+	}
+
+	/**
+	 * Drainer loop: replay sealed segments oldest first, backing off while MongoDB fails.
+	 */
+	protected void drain() {
+		long backoff = MIN_BACKOFF_MS;
+		while (running) {
+			File segment = null;
+			try {
+				segment = nextSealedSegment();
+				if (segment == null) {
+					continue;
+				}
+				replay(segment);
+				replaySegment = null;
+				replayOffset = 0;
+				synchronized (this) {
+					sealed.remove(segment);
+					pendingBytes -= segment.length();
+				}
+				if (!segment.delete()) {
+					logger.warning("Could not delete replayed spool segment " + segment);
+				}
+				backoff = MIN_BACKOFF_MS;
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed replay of spool segment " + segment + ", retrying in " + backoff + "ms", e);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					break;
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+			}
+		}
+	}
+
+	/**
+	 * Bulk insert the docs of a segment, from the end of the last batch acknowledged in an
+	 * earlier attempt at it. Duplicate keys are docs sent by an attempt that failed before
+	 * they were counted, and count as acknowledged. The segment is read sequentially through
+	 * a buffer, at long positions, so segments of any size replay the same way.
+	 */
+	protected void replay(final File segment) throws IOException {
+		if (!segment.equals(replaySegment)) {
+			replaySegment = segment;
+			replayOffset = 0;
+		}
+		FileInputStream in = new FileInputStream(segment);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			long position = replayOffset;
+			channel.position(position);
+			DataInputStream records = new DataInputStream(new BufferedInputStream(in, READ_BUFFER_SIZE));
+			byte[] header = new byte[RECORD_HEADER_SIZE + 4];
+			ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+			DBDecoder decoder = DefaultDBDecoder.FACTORY.create();
+
+			MongodbBatchSizer sizer = pool.getBatchSizer();
+			ReplayBatch batch = new ReplayBatch(null);
+			// content docs of deduplicated storage are batched apart and written before the docs
+			ReplayBatch contents = new ReplayBatch(pool.getContentCollection());
+			while (size - position >= header.length) {
+				long recordStart = position;
+				records.readFully(header);
+				long recordedBytes = headerBuffer.getLong(0);
+				long contentBytes = headerBuffer.getLong(8);
+				int length = headerBuffer.getInt(RECORD_HEADER_SIZE);
+				if (length < 5 || length > size - position - RECORD_HEADER_SIZE) {
+					// a torn write from a crash, everything before it is intact
+					logger.warning("Ignoring truncated record at the end of spool segment " + segment);
+					break;
+				}
+				// the BSON doc starts with its length, read with the header
+				byte[] bson = new byte[length];
+				System.arraycopy(header, RECORD_HEADER_SIZE, bson, 0, 4);
+				records.readFully(bson, 4, length - 4);
+				position += RECORD_HEADER_SIZE + length;
+				DBObject doc = decoder.decode(bson, target.getDBCollection());
+				if (recordedBytes == CONTENT_RECORD) {
+					if (contents.collection == null) {
+						// spooled before deduplicateContent was turned off, no doc refers to it now
+						continue;
+					}
+					contents.add(doc, 0, contentBytes, length);
+					if (sizer.isFull(contents.docs.size(), contents.docBytes)) {
+						insert(contents);
+					}
+					continue;
+				}
+				DBCollection collection = getCollection(doc);
+				if (collection != batch.collection && !batch.docs.isEmpty()) {
+					// a batch goes into one collection, so a partition rollover ends it
+					insert(contents);
+					insert(batch);
+					replayOffset = recordStart;
+				}
+				batch.collection = collection;
+				batch.add(doc, recordedBytes, contentBytes, length);
+				if (sizer.isFull(batch.docs.size(), batch.docBytes)) {
+					insert(contents);
+					insert(batch);
+					replayOffset = position;
+				}
+			}
+			insert(contents);
+			insert(batch);
+			replayOffset = position;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the partition of the target for the time in the doc's ObjectId, see
+	 * {@link MongodbWriter#insert}, or for its fetched-at time if the _id is an upsert key.
+	 * The target's collection if the doc has neither.
+	 */
+	private DBCollection getCollection(final DBObject doc) {
+		Object id = doc.get("_id");
+		if (id instanceof ObjectId) {
+			return target.getDBCollection(((ObjectId) id).getDate().getTime());
+		}
+		Object fetchedAt = schema.get(doc, fetchedAtColumnName);
+		if (fetchedAt instanceof Date) {
+			return target.getDBCollection(((Date) fetchedAt).getTime());
+		}
+		return target.getDBCollection();
+	}
+
+	/**
+	 * Replay the docs of a batch, if it has any, and empty it.
+	 */
+	private void insert(final ReplayBatch batch) {
+		if (!batch.docs.isEmpty()) {
+			insert(batch.collection, batch.docs, batch.sizes, batch.contentSizes, batch.docBytes);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Replay a batch with the pool's bulk inserter and acknowledge the docs it wrote.
+	 * Duplicate keys are docs that went in before and count as acknowledged. With
+	 * continueOnError docs MongoDB rejects for good are logged and dropped, without it
+	 * they fail the replay like docs still failing after their retries, so the segment is
+	 * replayed again later from this batch on.
+	 *
+	 * @param batchSizes recorded bytes of the CrawlURI of each doc
+	 * @param batchContentSizes content bytes of the CrawlURI of each doc
+	 * @param batchDocBytes BSON size of the docs
+	 */
+	private void insert(final DBCollection collection, final List<DBObject> batch, final List<Long> batchSizes,
+			final List<Long> batchContentSizes, final long batchDocBytes) {
+		boolean content = pool.isContentCollection(collection);
+		MongodbBulkInserter.Result result = content ? pool.getBulkInserter().writeWhole(collection, batch, Long.MAX_VALUE)
+				: pool.getBulkInserter().write(collection, batch, upsert);
+		List<Object> rejected = new ArrayList<Object>();
+		// docs counted as records once the whole batch is acknowledged
+		List<Integer> written = new ArrayList<Integer>();
+		long writtenBytes = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			MongodbBulkInserter.Outcome outcome = result.getOutcome(i);
+			if (outcome == MongodbBulkInserter.Outcome.WRITTEN || outcome == MongodbBulkInserter.Outcome.DUPLICATE_KEY) {
+				writtenBytes += batchSizes.get(i);
+				// a content doc coming back as a duplicate key may be content stored by another capture
+				if (!content || outcome == MongodbBulkInserter.Outcome.WRITTEN) {
+					written.add(i);
+				}
+				continue;
+			}
+			if (outcome.isRetryable() || !continueOnError) {
+				pool.getBatchSizer().failed();
+				throw new MongoException("Failed replay of " + batch.size() + " docs into " + collection.getFullName()
+						+ ": " + outcome.getReason(), result.getFailure());
+			}
+			rejected.add(batch.get(i).get("_id") + " (" + outcome.getReason() + ")");
+			if (content) {
+				pool.forgetStoredDigest(batch.get(i).get("_id"));
+			}
+		}
+		if (!rejected.isEmpty()) {
+			logger.severe("Dropped " + rejected.size() + " of " + batch.size() + " replayed docs rejected by "
+					+ collection.getFullName() + ": " + rejected);
+		}
+		if (result.isRetried()) {
+			pool.getBatchSizer().failed();
+		} else {
+			pool.getBatchSizer().succeeded(batch.size(), batchDocBytes, result.getNanos());
+		}
+		// content docs are not captures, their captures are counted with their own docs
+		pool.acknowledged(content ? 0 : batch.size() - rejected.size(), writtenBytes);
+		for (int i : written) {
+			pool.acknowledgedRecord(MongodbWriter.getRecordKind(content, batchSizes.get(i)), batchContentSizes.get(i));
+		}
+	}
+
+	/**
+	 * Docs read from a segment for one bulk write into one collection.
+	 */
+	private static final class ReplayBatch {
+		DBCollection collection;
+		final List<DBObject> docs = new ArrayList<DBObject>();
+		final List<Long> sizes = new ArrayList<Long>();
+		final List<Long> contentSizes = new ArrayList<Long>();
+		long docBytes = 0;
+
+		ReplayBatch(final DBCollection collection) {
+			this.collection = collection;
+		}
+
+		void add(final DBObject doc, final long recordedBytes, final long contentBytes, final int length) {
+			docs.add(doc);
+			sizes.add(recordedBytes);
+			contentSizes.add(contentBytes);
+			docBytes += length;
+		}
+
+		void clear() {
+			docs.clear();
+			sizes.clear();
+			contentSizes.clear();
+			docBytes = 0;
+		}
+	}
+
+	/**
+	 * @return bytes spooled on disk and not yet acknowledged by MongoDB.
+	 */
+	public synchronized long getPendingBytes() {
+		return pendingBytes;
+	}
+
+	/**
+	 * @return segment files on disk, including the active one.
+	 */
+	public synchronized int getPendingSegments() {
+		return sealed.size() + (activeChannel == null ? 0 : 1);
+	}
+
+	/**
+	 * Stop draining and seal the active segment. Segments not yet replayed stay on disk
+	 * and are replayed by the next spool opened on the same directory.
+	 */
+	public void close() throws IOException {
+		running = false;
+		drainer.interrupt();
+		try {
+			drainer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sealSegment();
+	}
+}
@@ -0,0 +1,379 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.time.FastDateFormat;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCredential;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+
+/**
+ * One place docs are written to: a collection in a database on a MongoDB server, with
+ * its own client and, if spooling is on, its own spool.
+ *
+ * <p>The configured indexes are created on the collection when the target is opened.
+ * With partitioning, docs go to the partition of their fetch time instead of the
+ * collection itself. A partition is indexed on a background thread the first time it is
+ * resolved; the pool resolves the next one ahead of time so it is ready at rollover.
+ */
+public class MongodbTarget {
+
+	private static final Logger logger = Logger.getLogger(MongodbTarget.class.getName());
+
+	/** Limits of MongoDB 2.6, assumed for servers that do not tell theirs. */
+	public static final int DEFAULT_MAX_WRITE_BATCH_SIZE = 1000;
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 48000000;
+
+	/** Writers that may wait for a connection at once with THREAD leasing. */
+	private static final int MAX_WAITING_WRITERS = 10000;
+
+	private final String host;
+	private final int port;
+	private final String database;
+	private final String collectionName;
+
+	private MongoClient client = null;
+	private DBCollection collection = null;
+	private MongodbSpool spool = null;
+	private int maxWriteBatchSize = DEFAULT_MAX_WRITE_BATCH_SIZE;
+	private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+	private MongodbParameters parameters = null;
+	private FastDateFormat partitionFormat = null;
+	private Executor partitionPreparer = null;
+	private final ConcurrentMap<String, DBCollection> partitions = new ConcurrentHashMap<String, DBCollection>();
+
+	public MongodbTarget(final String host, final int port, final String database, final String collectionName) {
+		this.host = host;
+		this.port = port;
+		this.database = database;
+		this.collectionName = collectionName;
+	}
+
+	/**
+	 * Parse a target written as host[:port]/database/collection.
+	 *
+	 * @param target the target
+	 * @return the parsed target, not yet opened
+	 * @throws IllegalArgumentException if the target is not in that form
+	 */
+	public static MongodbTarget parse(final String target) {
+		String[] parts = target.trim().split("/");
+		if (parts.length != 3 || parts[0].isEmpty() || parts[1].isEmpty() || parts[2].isEmpty()) {
+			throw new IllegalArgumentException("Expected host[:port]/database/collection but got: " + target);
+		}
+		String host = parts[0];
+		int port = MongodbParameters.DEFAULT_MONGODB_PORT;
+		int colon = host.lastIndexOf(':');
+		if (colon > 0) {
+			port = Integer.parseInt(host.substring(colon + 1));
+			host = host.substring(0, colon);
+		}
+		return new MongodbTarget(host, port, parts[1], parts[2]);
+	}
+
+	/**
+	 * Create the client of this target. Its connection pool is sized to the number of
+	 * writers so a borrowed writer never waits for a connection, and the credentials are
+	 * handed to the driver, which authenticates each connection once when it opens.
+	 * Without partitioning the indexes of the collection are created before this returns.
+	 *
+	 * @param parameters the MongoDB settings, for the credentials, the indexes and the partitioning
+	 * @param connectionsPerHost the maximum number of writers in the writer pool.
+	 * @param partitionPreparer runs the index creation of new partitions, only used with partitioning
+	 */
+	public void open(final MongodbParameters parameters, final int connectionsPerHost, final Executor partitionPreparer) {
+		connect(parameters, connectionsPerHost);
+		storeSchema();
+
+		if (parameters.isPartitionWrites()) {
+			TimeZone timeZone = TimeZone.getTimeZone(parameters.getTimeZone() == null ? "UTC" : parameters.getTimeZone());
+			this.partitionFormat = FastDateFormat.getInstance(parameters.getPartitioning().getPattern(), timeZone);
+			this.partitionPreparer = partitionPreparer;
+		} else {
+			provisionIndexes(collection);
+		}
+	}
+
+	/**
+	 * Create the client of a target that only receives the content docs of split storage,
+	 * see {@link MongodbContentSplitter}: one collection, indexed on _id alone.
+	 *
+	 * @param parameters the MongoDB settings, for the credentials and the schema
+	 * @param connectionsPerHost the maximum number of writers in the writer pool.
+	 */
+	public void openForContent(final MongodbParameters parameters, final int connectionsPerHost) {
+		connect(parameters, connectionsPerHost);
+		storeSchema();
+	}
+
+	/**
+	 * Create the client of a target that is only read from, see {@link MongodbWarcExporter}:
+	 * neither indexes nor the schema are written.
+	 *
+	 * @param parameters the MongoDB settings, for the credentials
+	 * @param connectionsPerHost the maximum number of concurrent readers
+	 */
+	public void openForReading(final MongodbParameters parameters, final int connectionsPerHost) {
+		connect(parameters, connectionsPerHost);
+	}
+
+	private void connect(final MongodbParameters parameters, final int connectionsPerHost) {
+		MongoClientOptions.Builder builder = MongoClientOptions.builder()
+				.connectionsPerHost(Math.max(connectionsPerHost, 1));
+		if (parameters.getWriterLeasing() == MongodbParameters.WriterLeasing.THREAD) {
+			// every crawl thread has a writer, any number of them may wait for a connection
+			builder.threadsAllowedToBlockForConnectionMultiplier(Math.max(MAX_WAITING_WRITERS / Math.max(connectionsPerHost, 1), 5));
+		}
+		MongoClientOptions options = builder.build();
+		List<MongoCredential> credentials = new ArrayList<MongoCredential>();
+		if (!parameters.getUser().isEmpty()) {
+			credentials.add(MongoCredential.createMongoCRCredential(parameters.getUser(),
+					database, parameters.getPassword().toCharArray()));
+		}
+		try {
+			client = new MongoClient(new ServerAddress(host, port), credentials, options);
+		} catch (UnknownHostException e) {
+			throw new RuntimeException("Unknown mongodb host: " + host, e);
+		}
+		collection = client.getDB(database).getCollection(collectionName);
+		this.parameters = parameters;
+		readServerLimits();
+	}
+
+	/**
+	 * Store the field dictionary of the compact schema, if docs are written with it, in the
+	 * database of this target.
+	 *
+	 * @throws RuntimeException if the database has another dictionary under the same version
+	 */
+	protected void storeSchema() {
+		MongodbSchema schema = MongodbSchema.of(parameters);
+		if (!schema.isCompact()) {
+			return;
+		}
+		try {
+			schema.store(client.getDB(database).getCollection(parameters.getSchemaCollection()));
+		} catch (MongoException e) {
+			logger.log(Level.WARNING, "Failed to store schema version " + schema.getVersion() + " in " + this, e);
+		}
+	}
+
+	/**
+	 * Ask the server how many docs and bytes it takes in one bulk write. If it cannot be
+	 * asked, the limits of MongoDB 2.6 are assumed.
+	 */
+	protected void readServerLimits() {
+		try {
+			CommandResult isMaster = client.getDB("admin").command("isMaster");
+			maxWriteBatchSize = isMaster.getInt("maxWriteBatchSize", DEFAULT_MAX_WRITE_BATCH_SIZE);
+			maxMessageSize = isMaster.getInt("maxMessageSizeBytes", DEFAULT_MAX_MESSAGE_SIZE);
+		} catch (MongoException e) {
+			logger.log(Level.WARNING, "Cannot read the limits of " + this + ", assuming those of MongoDB 2.6", e);
+		}
+	}
+
+	/**
+	 * Open a spool for this target.
+	 *
+	 * @param directory directory of the segment files
+	 * @param parameters the MongoDB settings
+	 * @param pool pool told about acknowledged bytes
+	 * @throws IOException if the directory cannot be used
+	 */
+	public void openSpool(final File directory, final MongodbParameters parameters, final MongodbWriterPool pool)
+			throws IOException {
+		spool = new MongodbSpool(directory, parameters, this, pool);
+	}
+
+	public String getHost() {
+		return host;
+	}
+	public int getPort() {
+		return port;
+	}
+	public String getDatabase() {
+		return database;
+	}
+	public String getCollectionName() {
+		return collectionName;
+	}
+	public MongoClient getMongoClient() {
+		return client;
+	}
+	public DBCollection getDBCollection() {
+		return collection;
+	}
+	/**
+	 * @return most docs the server takes in one bulk write.
+	 */
+	public int getMaxWriteBatchSize() {
+		return maxWriteBatchSize;
+	}
+	/**
+	 * @return most bytes the server takes in one message.
+	 */
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * @param time fetch time in milliseconds since the epoch
+	 * @return the partition for that time, or the collection itself without partitioning.
+	 */
+	public DBCollection getDBCollection(final long time) {
+		if (partitionFormat == null) {
+			return collection;
+		}
+		String name = getPartitionName(time);
+		DBCollection partition = partitions.get(name);
+		if (partition == null) {
+			final DBCollection created = client.getDB(database).getCollection(name);
+			partition = partitions.putIfAbsent(name, created);
+			if (partition == null) {
+				partition = created;
+				partitionPreparer.execute(new Runnable() {
+					public void run() {
+						preparePartition(created);
+					}
+				});
+			}
+		}
+		return partition;
+	}
+
+	/**
+	 * Forget the partitions other than the previous, the current and the next one, so a
+	 * long crawl does not keep every partition it ever wrote to. A late doc for a forgotten
+	 * partition resolves it again, which asks for its indexes again.
+	 *
+	 * @param now the current time in milliseconds since the epoch
+	 * @return number of partitions forgotten
+	 */
+	public int evictPartitions(final long now) {
+		if (partitionFormat == null) {
+			return 0;
+		}
+		long period = parameters.getPartitioning().getPeriodMs();
+		Set<String> keep = new HashSet<String>(Arrays.asList(getPartitionName(now - period),
+				getPartitionName(now), getPartitionName(now + period)));
+		int before = partitions.size();
+		partitions.keySet().retainAll(keep);
+		return before - partitions.size();
+	}
+
+	/**
+	 * @return the name of the partition for the fetch time.
+	 */
+	public String getPartitionName(final long time) {
+		return collectionName + "_" + partitionFormat.format(time);
+	}
+
+	/**
+	 * Create the indexes of a new partition, which also creates the partition itself.
+	 */
+	protected void preparePartition(final DBCollection partition) {
+		provisionIndexes(partition);
+	}
+
+	/**
+	 * Create the configured indexes on a collection, in the background so the collection
+	 * stays writable. Indexes that exist already are left as they are. A failed index is
+	 * logged and does not stop the writer.
+	 */
+	protected void provisionIndexes(final DBCollection collection) {
+		for (MongodbParameters.Index index : parameters.getIndexes()) {
+			DBObject options = new BasicDBObject("background", true);
+			if (index == MongodbParameters.Index.DIGEST) {
+				options.put("sparse", true);
+			}
+			try {
+				collection.createIndex(getIndexKeys(index, parameters), options);
+			} catch (MongoException e) {
+				logger.log(Level.WARNING, "Failed creation of index " + index + " on " + collection.getFullName(), e);
+			}
+		}
+	}
+
+	/**
+	 * @return the key pattern of the index, on the columns configured in the parameters,
+	 * where the schema stores them.
+	 */
+	protected static DBObject getIndexKeys(final MongodbParameters.Index index, final MongodbParameters parameters) {
+		MongodbSchema schema = MongodbSchema.of(parameters);
+		switch (index) {
+		case URL:
+			return new BasicDBObject(schema.getPath(parameters.getUrlColumnName()), 1);
+		case SURT_TIME:
+			return new BasicDBObject(schema.getPath(parameters.getSurtColumnName()), 1)
+					.append(schema.getPath(parameters.getFetchedAtColumnName()), 1);
+		case DIGEST:
+			return new BasicDBObject(schema.getPath(parameters.getDigestColumnName()), 1);
+		case HASHED_URL:
+			return new BasicDBObject(schema.getPath(parameters.getUrlColumnName()), "hashed");
+		default:
+			throw new IllegalArgumentException("Unknown index: " + index);
+		}
+	}
+	/**
+	 * @return the spool of this target, or null if no spool directory is configured.
+	 */
+	public MongodbSpool getSpool() {
+		return spool;
+	}
+
+	/**
+	 * @return a name for this target that is safe to use as a file name.
+	 */
+	public String getFileName() {
+		return (host + "_" + port + "_" + database + "_" + collectionName).replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/**
+	 * Seal the spool, if any, and close the client.
+	 */
+	public void close() throws IOException {
+		try {
+			if (spool != null) {
+				spool.close();
+			}
+		} finally {
+			if (client != null) {
+				client.close();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port + "/" + database + "/" + collectionName;
+	}
+}
@@ -0,0 +1,814 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.archive.format.warc.WARCConstants;
+import org.archive.format.warc.WARCConstants.WARCRecordType;
+import org.archive.io.warc.WARCRecordInfo;
+import org.archive.io.warc.WARCWriter;
+import org.archive.io.warc.WARCWriterPoolSettings;
+import org.archive.io.warc.WARCWriterPoolSettingsData;
+import org.archive.uid.UUIDGenerator;
+import org.archive.util.ArchiveUtils;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+
+/**
+ * Exports a collection of captures to WARC files, on several workers at once.
+ *
+ * <p>The collection is cut into _id ranges, with the splitVector command where the
+ * server allows it and otherwise by stepping through the _id index. Each worker takes
+ * ranges off a shared queue, reads them with a cursor that fetches batchSize docs at a
+ * time, and writes them to WARC files of its own, which are rotated at the configured
+ * size. A worker holds one batch of docs at a time; content in GridFS is streamed, and
+ * spilled to a file first only if it has to be decompressed. There are more ranges than
+ * workers, so a dense range does not leave the other workers idle at the end.
+ *
+ * <p>Each doc becomes a response record, with a request record concurrent to it if the
+ * request was stored, a revisit record for a revisit, or a resource record for URIs
+ * other than HTTP. Docs stored without their body are exported with WARC-Truncated.
+ * Record ids are name-based UUIDs of the _id of the doc, which is also its write tag, so
+ * exporting twice gives the same ids and a revisit refers to the record of its original.
+ * Split content, deduplicated content, the compact schema and the codecs are undone on
+ * the way. Bodies stored as text are encoded again with their charset, so only binary
+ * storage round-trips byte for byte.
+ *
+ * <p>A range that fails is logged and reported; exporting it again may repeat records
+ * it had written before it failed.
+ *
+ * <p>Usage: <code>MongodbWarcExporter --database=crawl --collection=pages
+ * --outputDir=warcs [--workers=8]</code>, see {@link #main(String[])} for the options.
+ */
+public class MongodbWarcExporter {
+
+	private static final Logger logger = Logger.getLogger(MongodbWarcExporter.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final DBObject ID_INDEX = new BasicDBObject("_id", 1);
+
+	/** Template of the WARC file names. */
+	public static final String TEMPLATE = "${prefix}-${timestamp17}-${serialno}";
+	public static final String DEFAULT_PREFIX = "MONGODB";
+	public static final long DEFAULT_MAX_FILE_SIZE = 1000L * 1000 * 1000;
+	public static final int DEFAULT_BATCH_SIZE = 64;
+	/** Ranges per worker, so workers that finish early take over the rest. */
+	public static final int RANGES_PER_WORKER = 4;
+
+	private final MongodbParameters parameters;
+	private final WARCWriterPoolSettings settings;
+	private final MongodbTarget source;
+	private final MongodbTarget contentSource;
+	private final DBCollection collection;
+	private final DBCollection contentCollection;
+	private final DBCollection deduplicatedCollection;
+	private final MongodbSchemaReader schemaReader;
+	private GridFS gridFs = null;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private final AtomicInteger serialNo = new AtomicInteger();
+	private final AtomicLong docs = new AtomicLong();
+	private final AtomicLong records = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong skippedDocs = new AtomicLong();
+	private final AtomicLong exportedRanges = new AtomicLong();
+
+	/**
+	 * Connect to the collection of the parameters, and to the content target of split
+	 * storage if there is one.
+	 *
+	 * @param parameters the MongoDB settings the captures were written with
+	 * @param settings where and how to write the WARC files
+	 * @param workers the number of workers, one connection each
+	 */
+	public MongodbWarcExporter(final MongodbParameters parameters, final WARCWriterPoolSettings settings,
+			final int workers) {
+		this.parameters = parameters;
+		this.settings = settings;
+		this.source = new MongodbTarget(parameters.getHost(), parameters.getPort(), parameters.getDatabase(),
+				parameters.getCollection());
+		source.openForReading(parameters, workers);
+		this.collection = source.getDBCollection();
+		if (parameters.isSplitContent() && !parameters.getSplitContentTarget().isEmpty()) {
+			contentSource = MongodbTarget.parse(parameters.getSplitContentTarget());
+			contentSource.openForReading(parameters, workers);
+		} else {
+			contentSource = null;
+		}
+		this.contentCollection = parameters.isSplitContent()
+				? new MongodbContentSplitter(parameters, contentSource).getContentCollection(collection) : null;
+		this.deduplicatedCollection = collection.getDB().getCollection(parameters.getContentCollection());
+		this.schemaReader = new MongodbSchemaReader(collection.getDB(), parameters.getSchemaCollection());
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+	/**
+	 * @param batchSize docs a worker reads and holds at a time
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(batchSize, 1);
+	}
+
+	public long getDocs() {
+		return docs.get();
+	}
+	public long getRecords() {
+		return records.get();
+	}
+	public long getBytes() {
+		return bytes.get();
+	}
+	public long getSkippedDocs() {
+		return skippedDocs.get();
+	}
+	public long getExportedRanges() {
+		return exportedRanges.get();
+	}
+
+	/**
+	 * Export the whole collection.
+	 *
+	 * @param workers the number of workers
+	 * @param ranges the number of _id ranges to cut the collection into, at least workers
+	 * @return the queries of the ranges that failed, empty if all were exported.
+	 * @throws InterruptedIOException if interrupted while waiting for the workers
+	 */
+	public List<DBObject> export(final int workers, final int ranges) throws InterruptedIOException {
+		final Queue<DBObject> pending = new ConcurrentLinkedQueue<DBObject>(getRangeQueries(findBoundaries(ranges)));
+		final List<DBObject> failed = Collections.synchronizedList(new ArrayList<DBObject>());
+		logger.info("Exporting " + pending.size() + " ranges of " + collection.getFullName() + " on " + workers + " workers");
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < workers; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					new Worker().exportRanges(pending, failed);
+				}
+			}, "MongodbWarcExporter-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			pending.clear();
+			for (Thread thread : threads) {
+				thread.interrupt();
+			}
+			throw new InterruptedIOException("Interrupted export of " + collection.getFullName());
+		}
+		return failed;
+	}
+
+	public void close() throws IOException {
+		source.close();
+		if (contentSource != null) {
+			contentSource.close();
+		}
+	}
+
+	/**
+	 * Find the _ids that cut the collection into ranges of about the same size.
+	 *
+	 * @param ranges the number of ranges
+	 * @return the lowest _id of every range but the first, in ascending order.
+	 */
+	protected List<Object> findBoundaries(final int ranges) {
+		if (ranges <= 1) {
+			return Collections.emptyList();
+		}
+		List<Object> boundaries = splitVector(ranges);
+		if (boundaries == null) {
+			boundaries = stepBoundaries(ranges);
+		}
+		return boundaries;
+	}
+
+	/**
+	 * @return the boundaries the server proposes for chunks of the collection, or null if it
+	 * cannot be asked, as through mongos or without the privilege.
+	 */
+	protected List<Object> splitVector(final int ranges) {
+		try {
+			CommandResult stats = collection.getStats();
+			long size = stats.ok() && stats.get("size") instanceof Number ? ((Number) stats.get("size")).longValue() : -1;
+			if (size < 0) {
+				return null;
+			}
+			BasicDBObject command = new BasicDBObject("splitVector", collection.getFullName());
+			command.put("keyPattern", ID_INDEX);
+			// the server cuts chunks at half this size
+			command.put("maxChunkSizeBytes", Math.max(2 * size / ranges, 1));
+			CommandResult result = collection.getDB().command(command);
+			if (!result.ok() || !(result.get("splitKeys") instanceof List)) {
+				logger.fine("No splitVector for " + collection.getFullName() + ": " + result.getErrorMessage());
+				return null;
+			}
+			List<Object> boundaries = new ArrayList<Object>();
+			for (Object key : (List<?>) result.get("splitKeys")) {
+				boundaries.add(((DBObject) key).get("_id"));
+			}
+			return boundaries;
+		} catch (MongoException e) {
+			logger.log(Level.FINE, "No splitVector for " + collection.getFullName(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return boundaries found by skipping the same number of entries of the _id index from
+	 * one boundary to the next, a single pass over the index.
+	 */
+	protected List<Object> stepBoundaries(final int ranges) {
+		long step = collection.count() / ranges;
+		List<Object> boundaries = new ArrayList<Object>();
+		if (step == 0) {
+			return boundaries;
+		}
+		Object previous = null;
+		for (int i = 1; i < ranges; i++) {
+			DBObject query = previous == null ? new BasicDBObject()
+					: new BasicDBObject("_id", new BasicDBObject("$gte", previous));
+			DBCursor cursor = collection.find(query, ID_INDEX).sort(ID_INDEX)
+					.skip((int) Math.min(step, Integer.MAX_VALUE)).limit(1);
+			try {
+				if (!cursor.hasNext()) {
+					break;
+				}
+				previous = cursor.next().get("_id");
+				boundaries.add(previous);
+			} finally {
+				cursor.close();
+			}
+		}
+		return boundaries;
+	}
+
+	/**
+	 * @param boundaries the lowest _id of every range but the first
+	 * @return a query per range; the first and the last range are open.
+	 */
+	protected static List<DBObject> getRangeQueries(final List<Object> boundaries) {
+		List<DBObject> queries = new ArrayList<DBObject>();
+		Object lower = null;
+		for (Object upper : boundaries) {
+			if (upper.equals(lower)) {
+				continue;
+			}
+			queries.add(getRangeQuery(lower, upper));
+			lower = upper;
+		}
+		queries.add(getRangeQuery(lower, null));
+		return queries;
+	}
+
+	private static DBObject getRangeQuery(final Object lower, final Object upper) {
+		BasicDBObject range = new BasicDBObject();
+		if (lower != null) {
+			range.put("$gte", lower);
+		}
+		if (upper != null) {
+			range.put("$lt", upper);
+		}
+		return range.isEmpty() ? new BasicDBObject() : new BasicDBObject("_id", range);
+	}
+
+	/**
+	 * @param tag the write tag of a capture, the _id of its doc as a string
+	 * @param type the type of the record
+	 * @return the record id of that record of the capture, the same on every export.
+	 */
+	public static URI getRecordId(final String tag, final WARCRecordType type) {
+		return URI.create("urn:uuid:" + UUID.nameUUIDFromBytes((tag + " " + type).getBytes(UTF8)));
+	}
+
+	/**
+	 * @param description what the WARC files hold
+	 * @return the fields of the warcinfo record at the start of every WARC file.
+	 */
+	public static List<String> getWarcinfo(final String description) {
+		List<String> fields = new ArrayList<String>();
+		fields.add("software: heritrix-mongodb-writer\r\n");
+		fields.add("format: WARC File Format 1.0\r\n");
+		fields.add("conformsTo: http://bibnum.bnf.fr/WARC/WARC_ISO_28500_version1_latestdraft.pdf\r\n");
+		if (description != null) {
+			fields.add("description: " + description + "\r\n");
+		}
+		return fields;
+	}
+
+	/**
+	 * @param codec the name stored in the codec column
+	 * @return the serializer that undoes it: the configured one if the names match, or gzip
+	 * or deflate without a dictionary.
+	 * @throws IOException if the content cannot be decoded here
+	 */
+	protected StreamingSerializer getCodec(final String codec) throws IOException {
+		Serializer serializer = parameters.getSerializer();
+		if (serializer instanceof StreamingSerializer && codec.equals(((StreamingSerializer) serializer).getName())) {
+			return (StreamingSerializer) serializer;
+		}
+		if (GzipSerializer.NAME.equals(codec)) {
+			return new GzipSerializer();
+		}
+		if (DeflateSerializer.NAME.equals(codec)) {
+			return new DeflateSerializer();
+		}
+		throw new IOException("Cannot decode content stored with codec " + codec);
+	}
+
+	protected synchronized GridFS getGridFS() {
+		if (gridFs == null) {
+			gridFs = new GridFS(collection.getDB(), parameters.getGridFsBucket());
+		}
+		return gridFs;
+	}
+
+	/**
+	 * @return the docs of the collection with those _ids, by _id, as stored.
+	 */
+	protected Map<Object, DBObject> findByIds(final DBCollection from, final Collection<Object> ids) {
+		Map<Object, DBObject> found = new HashMap<Object, DBObject>();
+		if (ids.isEmpty()) {
+			return found;
+		}
+		DBCursor cursor = from.find(new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+		try {
+			while (cursor.hasNext()) {
+				DBObject doc = cursor.next();
+				found.put(doc.get("_id"), doc);
+			}
+		} finally {
+			cursor.close();
+		}
+		return found;
+	}
+
+	/**
+	 * The body of a capture, or the lack of one.
+	 */
+	protected static class Payload {
+		final InputStream stream;
+		final long length;
+		final boolean truncated;
+
+		Payload(final InputStream stream, final long length, final boolean truncated) {
+			this.stream = stream;
+			this.length = length;
+			this.truncated = truncated;
+		}
+
+		static Payload of(final byte[] bytes) {
+			return new Payload(new ByteArrayInputStream(bytes), bytes.length, false);
+		}
+	}
+
+	/**
+	 * Exports ranges to WARC files of its own, on one thread.
+	 */
+	protected class Worker {
+
+		private final WARCWriter writer = new WARCWriter(serialNo, settings);
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private File spill = null;
+
+		/**
+		 * Export ranges until none is left, then close the WARC file.
+		 */
+		protected void exportRanges(final Queue<DBObject> ranges, final List<DBObject> failed) {
+			try {
+				DBObject range;
+				while ((range = ranges.poll()) != null) {
+					try {
+						exportRange(range);
+						exportedRanges.incrementAndGet();
+					} catch (IOException e) {
+						logger.log(Level.SEVERE, "Failed export of range " + range, e);
+						failed.add(range);
+					} catch (RuntimeException e) {
+						// MongoDB errors, and docs of a schema version the database has no dictionary for
+						logger.log(Level.SEVERE, "Failed export of range " + range, e);
+						failed.add(range);
+					}
+				}
+			} finally {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					logger.log(Level.SEVERE, "Failed to close " + writer.getFile(), e);
+				}
+				if (spill != null) {
+					spill.delete();
+				}
+			}
+		}
+
+		protected void exportRange(final DBObject range) throws IOException {
+			DBCursor cursor = collection.find(range).hint(ID_INDEX).batchSize(batchSize);
+			// a range can take longer than the server keeps an idle cursor
+			cursor.addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+			try {
+				List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+				while (cursor.hasNext()) {
+					batch.add(cursor.next());
+					if (batch.size() >= batchSize) {
+						exportDocs(batch);
+						batch.clear();
+					}
+				}
+				exportDocs(batch);
+			} finally {
+				cursor.close();
+			}
+		}
+
+		/**
+		 * Join the batch with its split and its deduplicated content, a query for each,
+		 * and write it.
+		 */
+		protected void exportDocs(final List<DBObject> batch) throws IOException {
+			if (batch.isEmpty()) {
+				return;
+			}
+			if (contentCollection != null) {
+				List<Object> ids = new ArrayList<Object>(batch.size());
+				for (DBObject doc : batch) {
+					ids.add(doc.get("_id"));
+				}
+				Map<Object, DBObject> contents = findByIds(contentCollection, ids);
+				for (DBObject doc : batch) {
+					MongodbContentSplitter.join(doc, contents.get(doc.get("_id")));
+				}
+			}
+			List<DBObject> expanded = new ArrayList<DBObject>(batch.size());
+			Set<Object> digests = new HashSet<Object>();
+			for (DBObject doc : batch) {
+				DBObject capture = schemaReader.expand(doc);
+				expanded.add(capture);
+				if (capture.get(parameters.getContentColumnName()) == null
+						&& capture.get(parameters.getGridFsIdColumnName()) == null
+						&& capture.get(parameters.getRevisitColumnName()) == null
+						&& capture.get(parameters.getDigestColumnName()) != null) {
+					digests.add(capture.get(parameters.getDigestColumnName()));
+				}
+			}
+			Map<Object, DBObject> deduplicated = findByIds(deduplicatedCollection, digests);
+			for (DBObject capture : expanded) {
+				Object digest = capture.get(parameters.getDigestColumnName());
+				writeCapture(capture, digest == null ? null : schemaReader.expand(deduplicated.get(digest)));
+			}
+		}
+
+		/**
+		 * Write the records of one capture.
+		 *
+		 * @param doc the doc of the capture, with its logical column names
+		 * @param deduplicated the content doc of its digest, if it was deduplicated
+		 * @throws IOException if the WARC file could not be written
+		 */
+		protected void writeCapture(final DBObject doc, final DBObject deduplicated) throws IOException {
+			String tag = String.valueOf(doc.get("_id"));
+			String url = (String) doc.get(parameters.getUrlColumnName());
+			if (url == null) {
+				skip(tag, "it has no url");
+				return;
+			}
+			boolean http = url.startsWith("http");
+			boolean revisit = doc.get(parameters.getRevisitColumnName()) != null;
+			Payload payload = null;
+			if (!revisit) {
+				try {
+					payload = getPayload(doc, deduplicated);
+				} catch (IOException e) {
+					skip(tag, e.getMessage());
+					return;
+				}
+			}
+			byte[] headers = toBytes(doc, parameters.getHeadersColumnName(), doc);
+			String timestamp = ArchiveUtils.getLog14Date(getFetchedAt(doc));
+
+			WARCRecordInfo record = new WARCRecordInfo();
+			record.setUrl(url);
+			record.setCreate14DigitDate(timestamp);
+			record.setEnforceLength(true);
+			Object ip = doc.get(parameters.getIpColumnName());
+			if (ip != null && ip.toString().length() > 0) {
+				record.addExtraHeader(WARCConstants.HEADER_KEY_IP, ip.toString());
+			}
+			Object digest = doc.get(parameters.getDigestColumnName());
+			if (digest != null) {
+				record.addExtraHeader(WARCConstants.HEADER_KEY_PAYLOAD_DIGEST, digest.toString());
+			}
+			InputStream stream;
+			long length;
+			if (revisit) {
+				record.setType(WARCRecordType.revisit);
+				record.setMimetype(http ? WARCConstants.HTTP_RESPONSE_MIMETYPE : "application/octet-stream");
+				addRevisitHeaders(record, doc);
+				stream = new ByteArrayInputStream(headers == null ? new byte[0] : headers);
+				length = headers == null ? 0 : headers.length;
+			} else {
+				record.setType(http ? WARCRecordType.response : WARCRecordType.resource);
+				record.setMimetype(http ? WARCConstants.HTTP_RESPONSE_MIMETYPE
+						: url.startsWith("dns:") ? "text/dns" : "application/octet-stream");
+				if (payload.truncated) {
+					record.addExtraHeader(WARCConstants.HEADER_KEY_TRUNCATED, WARCConstants.TRUNCATED_VALUE_UNSPECIFIED);
+				}
+				stream = headers == null ? payload.stream
+						: new SequenceInputStream(new ByteArrayInputStream(headers), payload.stream);
+				length = (headers == null ? 0 : headers.length) + payload.length;
+			}
+			URI recordId = getRecordId(tag, record.getType());
+			record.setRecordId(recordId);
+			record.setContentStream(stream);
+			record.setContentLength(length);
+			try {
+				// the file is rotated between captures, so a request never ends up apart from its response
+				writer.checkSize();
+				writer.writeRecord(record);
+			} finally {
+				stream.close();
+			}
+			records.incrementAndGet();
+			bytes.addAndGet(length);
+
+			byte[] request = http ? toBytes(doc, parameters.getRequestColumnName(), doc) : null;
+			if (request != null) {
+				WARCRecordInfo requestRecord = new WARCRecordInfo();
+				requestRecord.setType(WARCRecordType.request);
+				requestRecord.setUrl(url);
+				requestRecord.setCreate14DigitDate(timestamp);
+				requestRecord.setMimetype(WARCConstants.HTTP_REQUEST_MIMETYPE);
+				requestRecord.setRecordId(getRecordId(tag, WARCRecordType.request));
+				requestRecord.addExtraHeader(WARCConstants.HEADER_KEY_CONCURRENT_TO, "<" + recordId + ">");
+				requestRecord.setContentStream(new ByteArrayInputStream(request));
+				requestRecord.setContentLength(request.length);
+				requestRecord.setEnforceLength(true);
+				writer.writeRecord(requestRecord);
+				records.incrementAndGet();
+				bytes.addAndGet(request.length);
+			}
+			docs.incrementAndGet();
+		}
+
+		/**
+		 * @return the body of the capture, from the doc, its deduplicated content doc or
+		 * GridFS, decoded; empty and truncated if only the metadata was stored.
+		 * @throws IOException if the body is missing or cannot be decoded
+		 */
+		protected Payload getPayload(final DBObject doc, final DBObject deduplicated) throws IOException {
+			if (doc.get(parameters.getContentColumnName()) != null) {
+				return Payload.of(getContent(doc));
+			}
+			Object gridFsId = doc.get(parameters.getGridFsIdColumnName());
+			if (gridFsId != null) {
+				return getGridFsPayload(gridFsId);
+			}
+			Object digest = doc.get(parameters.getDigestColumnName());
+			if (digest != null) {
+				if (deduplicated == null || deduplicated.get(parameters.getContentColumnName()) == null) {
+					throw new IOException("its content " + digest + " is not in " + deduplicatedCollection.getFullName());
+				}
+				return Payload.of(getContent(deduplicated));
+			}
+			// stored with the METADATA_ONLY policy
+			return new Payload(new ByteArrayInputStream(new byte[0]), 0, true);
+		}
+
+		/**
+		 * @return the content column of the doc as bytes, decoded with its codec.
+		 */
+		protected byte[] getContent(final DBObject doc) throws IOException {
+			byte[] content = toBytes(doc, parameters.getContentColumnName(), doc);
+			Object codec = doc.get(parameters.getCodecColumnName());
+			if (codec == null) {
+				return content;
+			}
+			buffer.reset();
+			copy(getCodec(codec.toString()).unwrap(new ByteArrayInputStream(content)), buffer);
+			return buffer.toByteArray();
+		}
+
+		/**
+		 * @return the GridFS file, streamed, or spilled to disk decoded if it has a codec.
+		 */
+		protected Payload getGridFsPayload(final Object id) throws IOException {
+			GridFSDBFile file = getGridFS().findOne(new BasicDBObject("_id", id));
+			if (file == null) {
+				throw new IOException("its GridFS file " + id + " is not in " + parameters.getGridFsBucket());
+			}
+			Object codec = file.get(parameters.getCodecColumnName());
+			if (codec == null) {
+				return new Payload(file.getInputStream(), file.getLength(), false);
+			}
+			if (spill == null) {
+				spill = File.createTempFile("export-", ".body", settings.calcOutputDirs().get(0));
+			}
+			InputStream in = getCodec(codec.toString()).unwrap(file.getInputStream());
+			OutputStream out = new FileOutputStream(spill);
+			try {
+				copy(in, out);
+			} finally {
+				in.close();
+				out.close();
+			}
+			return new Payload(new FileInputStream(spill), spill.length(), false);
+		}
+
+		private void skip(final String tag, final String reason) {
+			skippedDocs.incrementAndGet();
+			logger.warning("Skipping doc " + tag + " of " + collection.getFullName() + " because " + reason);
+		}
+	}
+
+	/**
+	 * @param doc the doc holding the column
+	 * @param column a column stored as text or binary
+	 * @param charsetDoc the doc holding the charset the text was decoded with
+	 * @return the bytes of the column, or null if the doc does not have it.
+	 */
+	protected byte[] toBytes(final DBObject doc, final String column, final DBObject charsetDoc) {
+		Object value = doc.get(column);
+		if (value == null || value instanceof byte[]) {
+			return (byte[]) value;
+		}
+		Object charset = charsetDoc.get(parameters.getCharsetColumnName());
+		// text without a stored charset was decoded with the default of the recorder
+		return value.toString().getBytes(charset == null ? UTF8 : Charset.forName(charset.toString()));
+	}
+
+	/**
+	 * Add the profile and the original of a revisit. A reference by write tag is turned
+	 * into the record id the original gets on export.
+	 */
+	protected void addRevisitHeaders(final WARCRecordInfo record, final DBObject doc) {
+		record.addExtraHeader(WARCConstants.HEADER_KEY_PROFILE, doc.get(parameters.getRevisitColumnName()).toString());
+		Object refersTo = doc.get(parameters.getRefersToColumnName());
+		if (refersTo != null) {
+			String id = refersTo.toString();
+			if (id.startsWith("urn:")) {
+				id = "<" + id + ">";
+			} else if (!id.startsWith("<")) {
+				id = "<" + getRecordId(id, WARCRecordType.response) + ">";
+			}
+			record.addExtraHeader(WARCConstants.HEADER_KEY_REFERS_TO, id);
+		}
+		Object refersToUrl = doc.get(parameters.getRefersToUrlColumnName());
+		if (refersToUrl != null) {
+			record.addExtraHeader(WARCConstants.HEADER_KEY_REFERS_TO_TARGET_URI, refersToUrl.toString());
+		}
+		Object refersToDate = doc.get(parameters.getRefersToDateColumnName());
+		if (refersToDate != null) {
+			record.addExtraHeader(WARCConstants.HEADER_KEY_REFERS_TO_DATE, refersToDate.toString());
+		}
+	}
+
+	/**
+	 * @return the fetch time of the capture, or the time of its ObjectId if the column is missing.
+	 */
+	protected Date getFetchedAt(final DBObject doc) {
+		Object fetchedAt = doc.get(parameters.getFetchedAtColumnName());
+		if (fetchedAt instanceof Date) {
+			return (Date) fetchedAt;
+		}
+		if (doc.get("_id") instanceof ObjectId) {
+			return ((ObjectId) doc.get("_id")).getDate();
+		}
+		return new Date();
+	}
+
+	private static void copy(final InputStream in, final OutputStream out) throws IOException {
+		byte[] chunk = new byte[16 * 1024];
+		int read;
+		while ((read = in.read(chunk)) != -1) {
+			out.write(chunk, 0, read);
+		}
+	}
+
+	/**
+	 * Options, as --name=value, with their defaults: host=localhost, port=27017, database,
+	 * collection, user, password, outputDir=., prefix=MONGODB, maxFileSize=1000000000,
+	 * compress=true, workers=the number of cores, ranges=4 per worker, batchSize=64,
+	 * splitContent=false, splitContentTarget, contentCollection, gridFsBucket,
+	 * schemaCollection and dictionaryFile, the deflate dictionary the content was
+	 * compressed with. The other columns are expected under their default names.
+	 */
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0) {
+				System.err.println("Usage: MongodbWarcExporter --database=crawl --collection=pages --outputDir=warcs [--name=value...]");
+				System.exit(1);
+			}
+			options.put(arg.substring(2, equals), arg.substring(equals + 1));
+		}
+		if (!options.containsKey("database") || !options.containsKey("collection")) {
+			System.err.println("Usage: MongodbWarcExporter --database=crawl --collection=pages --outputDir=warcs [--name=value...]");
+			System.exit(1);
+		}
+		MongodbParameters parameters = new MongodbParameters();
+		parameters.setHost(get(options, "host", "localhost"));
+		parameters.setPort(Integer.parseInt(get(options, "port", String.valueOf(MongodbParameters.DEFAULT_MONGODB_PORT))));
+		parameters.setDatabase(options.get("database"));
+		parameters.setCollection(options.get("collection"));
+		parameters.setUser(get(options, "user", ""));
+		parameters.setPassword(get(options, "password", ""));
+		parameters.setSplitContent(Boolean.parseBoolean(get(options, "splitContent", "false")));
+		parameters.setSplitContentTarget(get(options, "splitContentTarget", ""));
+		if (options.containsKey("contentCollection")) {
+			parameters.setContentCollection(options.get("contentCollection"));
+		}
+		if (options.containsKey("gridFsBucket")) {
+			parameters.setGridFsBucket(options.get("gridFsBucket"));
+		}
+		if (options.containsKey("schemaCollection")) {
+			parameters.setSchemaCollection(options.get("schemaCollection"));
+		}
+		if (options.containsKey("dictionaryFile")) {
+			DeflateSerializer serializer = new DeflateSerializer();
+			serializer.setDictionaryFile(options.get("dictionaryFile"));
+			parameters.setSerializer(serializer);
+		}
+		int workers = Integer.parseInt(get(options, "workers", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		int ranges = Integer.parseInt(get(options, "ranges", String.valueOf(workers * RANGES_PER_WORKER)));
+
+		File outputDir = new File(get(options, "outputDir", "."));
+		outputDir.mkdirs();
+		String source = parameters.getHost() + ":" + parameters.getPort() + "/" + parameters.getDatabase() + "/" + parameters.getCollection();
+		WARCWriterPoolSettings settings = new WARCWriterPoolSettingsData(get(options, "prefix", DEFAULT_PREFIX), TEMPLATE,
+				Long.parseLong(get(options, "maxFileSize", String.valueOf(DEFAULT_MAX_FILE_SIZE))),
+				Boolean.parseBoolean(get(options, "compress", "true")), Arrays.asList(outputDir),
+				getWarcinfo("Export of the captures in " + source), new UUIDGenerator());
+
+		long start = System.currentTimeMillis();
+		MongodbWarcExporter exporter = new MongodbWarcExporter(parameters, settings, workers);
+		List<DBObject> failed;
+		try {
+			exporter.setBatchSize(Integer.parseInt(get(options, "batchSize", String.valueOf(DEFAULT_BATCH_SIZE))));
+			failed = exporter.export(workers, ranges);
+		} finally {
+			exporter.close();
+		}
+		long ms = Math.max(System.currentTimeMillis() - start, 1);
+		System.out.println("Exported " + exporter.getDocs() + " docs of " + source + " as " + exporter.getRecords()
+				+ " records, " + exporter.getBytes() + " bytes, in " + ms + " ms (" + exporter.getDocs() * 1000 / ms
+				+ " docs/s), " + exporter.getSkippedDocs() + " docs skipped");
+		if (!failed.isEmpty()) {
+			System.err.println(failed.size() + " ranges failed: " + failed);
+			System.exit(2);
+		}
+	}
+
+	private static String get(final Map<String, String> options, final String name, final String value) {
+		return options.containsKey(name) ? options.get(name) : value;
+	}
+}
@@ -10,13 +10,17 @@ package org.bds.io.mongodb;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.UnknownHostException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -27,13 +31,15 @@ import org.archive.io.ReplayInputStream;
 import org.archive.io.WriterPoolMember;
 import org.archive.io.WriterPoolSettings;
 import org.archive.modules.CrawlURI;
-import org.archive.util.ArchiveUtils;
 
 import com.mongodb.BasicDBObject;
-import com.mongodb.DB;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
-import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.gridfs.GridFSInputFile;
 
 
 /**
@@ -53,20 +59,45 @@ implements Serializer {
     
 	private static final Logger logger = Logger.getLogger(MongodbWriterPool.class.getName());
 
+	// Keys of the stats of records handed to the processor, see MongodbWriterPool#drainAcknowledgedRecords()
+	public static final String TOTALS = "totals";
+	public static final String DOCS = "doc";
+	public static final String GRIDFS_FILES = "gridfs";
+	public static final String CONTENT_DOCS = "content";
+	public static final String REVISIT_DOCS = "revisit";
+	public static final String NUM_RECORDS = "numRecords";
+	public static final String CONTENT_BYTES = "contentBytes";
+
+	private static final int SERIALIZE_BUFFER_SIZE = 64 * 1024;
+	// A buffer grown beyond this by one large content is dropped rather than kept
+	private static final int MAX_REUSED_SERIALIZE_BUFFER_SIZE = 1024 * 1024;
+
     private MongodbParameters _mongodbParameters;
-    private MongoClient  _mongoclient;
+    private MongodbWriterPool _pool;
+    private DBCollection _collection;
+    private MongodbDocumentEncoder _encoder;
+    private MongodbSchema _schema;
+    // Reused for every serialized content, so the buffer does not grow from scratch each time
+    private ByteArrayOutputStream _serializeBuffer = new ByteArrayOutputStream(SERIALIZE_BUFFER_SIZE);
+    
+    // Docs waiting to be inserted in one bulk write per collection, see MongodbParameters#getBulkDocNumber()
+    private Map<DBCollection, Batch> _batches = new LinkedHashMap<DBCollection, Batch>();
+    // Recorded bytes of all docs MongoDB has acknowledged, reported as this writer's position.
+    private long _acknowledgedBytes = 0;
+    // Time the current write spent storing content in MongoDB, left out of its encode time
+    private long _storeNanos = 0;
     
     
     public MongodbWriter(final AtomicInteger serialNo, final WriterPoolSettings settings,
-    		MongodbParameters parameters) {
+    		MongodbParameters parameters, MongodbWriterPool pool) {
         super(serialNo, settings, "");
         
         _mongodbParameters = parameters;
-        try {
-			this._mongoclient = new MongoClient(parameters.getHost(), parameters.getPort());
-		} catch (UnknownHostException e) {
-			 logger.log(Level.SEVERE, "Unknown mongodb host: " + parameters.getHost(), e);
-		}
+        _pool = pool;
+        // the client and collection are shared by the pool, see MongodbWriterPool
+        _collection = pool.getDBCollection();
+        _encoder = new MongodbDocumentEncoder(parameters);
+        _schema = MongodbSchema.of(parameters);
     }
     
     public MongodbParameters getMongodbParameters() {
@@ -74,17 +105,7 @@ implements Serializer {
     }
     
     public DBCollection getDBCollection() {
-    	DB db = _mongoclient.getDB(_mongodbParameters.getDatabase());
-    	boolean auth = true;
-    	if(_mongodbParameters.getUser().equals("") == false)
-    		auth = db.authenticate(_mongodbParameters.getUser(), _mongodbParameters.getPassword().toCharArray());
-    	if(auth) {
-    		 return db.getCollection(_mongodbParameters.getCollection());
-    	} else {
-    		 logger.log(Level.SEVERE, "MongoDB authentication is failed! Check your mongodb parameters!");
-    		 this._mongoclient.close();
-    	}
-		return null;
+    	return _collection;
     }
     
     
@@ -103,117 +124,846 @@ implements Serializer {
 	 */
 	public void write(final CrawlURI curi, final String ip, final RecordingOutputStream recordingOutputStream,
 			final RecordingInputStream recordingInputStream) throws IOException, InterruptedException {
+		write(MongodbCapture.of(curi, ip));
+	}
+
+	/**
+	 * Write a capture, read from a CrawlURI's recorder or snapshotted from it, to the configured MongoDB table.
+	 *
+	 * @param capture the fetched CrawlURI and its recording
+	 *
+	 * @return false if the capture was skipped
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized boolean write(final MongodbCapture capture) throws IOException {
 
 	    // Generate the target url of the crawled document
-		String url = curi.toString();
+		String url = capture.getUrl();
 
 		if (getMongodbParameters().isRemoveMissingPages() &&
-				(curi.getFetchStatus() == HttpURLConnection.HTTP_NOT_FOUND || curi.getFetchStatus() == HttpURLConnection.HTTP_GONE)) {		
+				(capture.getFetchStatus() == HttpURLConnection.HTTP_NOT_FOUND || capture.getFetchStatus() == HttpURLConnection.HTTP_GONE)) {		
  			//Just skip the missing page.
-			return;
+			return false;
 		} else {
 			
-			// The timestamp is the curi fetch time in microseconds
-//			long timestamp = curi.getFetchBeginTime()*1000;
+			long start = System.nanoTime();
+			_storeNanos = 0;
+			DBObject doc = _encoder.encode(capture);
+			String key = _encoder.getKey(url, capture.getFetchBeginTime());
+			doc.put("_id", key != null ? key : capture.getId());
 
-			// The batchSize is the number of docs that should be inserted in a batch.
-//			int batchSize = getMongodbParameters().getBulkDocNumber();
-			
-			DBObject doc = new BasicDBObject();
-//			doc.put("timestamp", timestamp);
-			
-			
-			// write the target url to the url column
-			doc.put(getMongodbParameters().getUrlColumnName(), url);
+			if (capture.isRevisit()) {
+				// the content is unchanged, only note where it was stored
+				putRevisit(doc, capture);
+			} else if (!putContent(doc, capture)) {
+				// Write the Crawl Request and Response to the doc
+				return false;
+			}
+			// short keys with compactSchema, the doc itself otherwise
+			doc = _schema.compact(doc);
+			// GridFS files and content docs written meanwhile are I/O, not encoding
+			_pool.getStats().recordEncode(System.nanoTime() - start - _storeNanos);
+
+			insert(_pool.route(capture), capture, doc);
+			return true;
+		}
+	}
+
+	/**
+	 * @param content true for a content doc of deduplicated storage
+	 * @param recordedBytes recorded size of the CrawlURI of the doc, 0 for a revisit
+	 * @return the kind of record an acknowledged doc is counted as.
+	 */
+	protected static String getRecordKind(final boolean content, final long recordedBytes) {
+		if (content) {
+			return CONTENT_DOCS;
+		}
+		return recordedBytes == 0 ? REVISIT_DOCS : DOCS;
+	}
+
+	/**
+	 * @return the content bytes counted with the record of the capture's doc, 0 for a revisit.
+	 */
+	protected static long getRecordContentSize(final MongodbCapture capture) {
+		return capture.isRevisit() ? 0 : capture.getContentSize();
+	}
+
+	/**
+	 * Put the request, the response headers and the response body into the doc.
+	 * Each part is read from its replay stream straight into a byte array of its exact size.
+	 * Headers and body are split at the response body offset the recorder marked while
+	 * fetching, so the split is exact for every content type.
+	 *
+	 * <p>With storeAsBinary the parts are stored as BSON binary and the charset the recorder
+	 * detected is stored next to them, otherwise they are decoded with that charset. The
+	 * storage policy of the content type can override this for the body, leave the body out
+	 * without reading it, or send it to GridFS whatever its size.
+	 *
+	 * @param doc the doc to fill
+	 * @param capture the fetched CrawlURI and its recording
+	 *
+	 * @return false if the response body is larger than the max content size and nothing should be written
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected boolean putContent(final DBObject doc, final MongodbCapture capture) throws IOException {
+
+		MongodbParameters.StoragePolicy policy = getMongodbParameters().getStoragePolicy(capture.getContentType());
+		boolean metadataOnly = policy == MongodbParameters.StoragePolicy.METADATA_ONLY;
+		boolean binary = policy == MongodbParameters.StoragePolicy.BINARY;
+		// Decide from the reported size, before anything is read, whether the content goes to GridFS
+		boolean largeContent = policy == MongodbParameters.StoragePolicy.LARGE_OBJECT
+				|| (!metadataOnly && isLargeContent(getMongodbParameters(), capture.getContentSize()));
+		String digest = getMongodbParameters().isDeduplicateContent() ? capture.getDigest() : null;
 
-			// write the target ip to the ip column
-			doc.put(getMongodbParameters().getIpColumnName(), ip);
+		ReplayInputStream replayInputStream = capture.getResponseStream();
+		try {
+			// If it's configured, separate the HTTP response headers and store them in another column
+			long headerSize = getMongodbParameters().isSeparateHeaders() ? replayInputStream.getHeaderSize() : 0;
+			long contentSize = replayInputStream.getSize() - headerSize;
 
-			// is the url part of the seed url (the initial url(s) used to start the crawl)
-			if (curi.isSeed()) {
-				doc.put(getMongodbParameters().getIsSeedColumnName(), true);
+			int maxSize = getMongodbParameters().getDefaultMaxContentSizeInBytes();
+			if (!largeContent && !metadataOnly && maxSize > 0 && contentSize > maxSize) {
+				logger.log(Level.WARNING, "Skipping write of '" + capture + "' because it exceeded the defined max size of " + maxSize);
+				return false;
 			}
 
-			if (curi.getPathFromSeed() != null && curi.getPathFromSeed().trim().length() > 0) {
-				doc.put(getMongodbParameters().getPathFromSeedColumnName(), curi.getPathFromSeed().trim());
+			if (headerSize > 0) {
+				doc.put(getMongodbParameters().getHeadersColumnName(),
+						toColumnValue(readBytes(replayInputStream, headerSize), capture));
 			}
+			if (metadataOnly) {
+				// the body is neither read nor decoded
+			} else if (largeContent) {
+				// stream the content into GridFS chunk by chunk and keep a reference to it
+				doc.put(getMongodbParameters().getGridFsIdColumnName(), saveToGridFs(replayInputStream, contentSize, capture));
+			} else if (digest != null) {
+				// store the content once per digest, the doc only references it
+				doc.put(getMongodbParameters().getDigestColumnName(), digest);
+				storeContentOnce(digest, replayInputStream, contentSize, capture, binary);
+			} else {
+				putContentColumns(doc, replayInputStream, contentSize, capture, binary);
+			}
+		} finally {
+			closeStream(replayInputStream);
+		}
 
-			// write the Via string
-			String viaStr = (curi.getVia() != null) ? curi.getVia().toString().trim() : null;
-			if (viaStr != null && viaStr.length() > 0) {
-				doc.put(getMongodbParameters().getViaColumnName(), viaStr);
+		if (capture.getRequestSize() > 0) {
+			ReplayInputStream requestStream = capture.getRequestStream();
+			try {
+				doc.put(getMongodbParameters().getRequestColumnName(),
+						toColumnValue(readBytes(requestStream, requestStream.getSize()), capture));
+			} finally {
+				closeStream(requestStream);
 			}
+		}
 
-			String fetchTime = ArchiveUtils.get14DigitDate(curi.getFetchBeginTime());
-			String localTimeZone = getMongodbParameters().getTimeZone();
-			Date localDate = null; 
-			SimpleDateFormat formatter;  
-			SimpleDateFormat parser;
-			String localFetchTime = "";
-			
-			if(localTimeZone != null) {		
-				parser = new SimpleDateFormat("yyyyMMddHHmmss");
-				parser.setTimeZone(TimeZone.getTimeZone("UTC"));
-				try {
-					localDate = parser.parse(fetchTime);
-				} catch (ParseException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				
-				formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-				formatter.setTimeZone(TimeZone.getTimeZone(localTimeZone));
-				localFetchTime = formatter.format(localDate);
+		if (binary || getMongodbParameters().isStoreAsBinary() || getMongodbParameters().getSerializer() != null) {
+			doc.put(getMongodbParameters().getCharsetColumnName(), capture.getCharset().name());
+		}
+		return true;
+	}
+
+	/**
+	 * Put the digest, the revisit profile and the reference to the original capture into
+	 * a revisit doc. Nothing is read from the recording.
+	 *
+	 * @param doc the doc to fill
+	 * @param capture the revisit
+	 */
+	protected void putRevisit(final DBObject doc, final MongodbCapture capture) {
+		if (capture.getDigest() != null) {
+			doc.put(getMongodbParameters().getDigestColumnName(), capture.getDigest());
+		}
+		doc.put(getMongodbParameters().getRevisitColumnName(), capture.getRevisitProfile());
+		if (capture.getRefersTo() != null) {
+			doc.put(getMongodbParameters().getRefersToColumnName(), capture.getRefersTo());
+		}
+		if (capture.getRefersToUrl() != null) {
+			doc.put(getMongodbParameters().getRefersToUrlColumnName(), capture.getRefersToUrl());
+		}
+		if (capture.getRefersToDate() != null) {
+			doc.put(getMongodbParameters().getRefersToDateColumnName(), capture.getRefersToDate());
+		}
+	}
+
+	/**
+	 * Put the content into the content column of the target, serialized if a
+	 * serializer is configured.
+	 *
+	 * @param target the doc to fill
+	 * @param replayInputStream the response, positioned at the start of the content
+	 * @param contentSize the number of content bytes
+	 * @param capture the fetched CrawlURI and its recording
+	 * @param binary true to store the content as BSON binary, false to decode it
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void putContentColumns(final DBObject target, final ReplayInputStream replayInputStream,
+			final long contentSize, final MongodbCapture capture, final boolean binary) throws IOException {
+		if (getMongodbParameters().getSerializer() != null) {
+			// compress the raw bytes as they are copied, readers decode them with the stored charset
+			target.put(getMongodbParameters().getContentColumnName(), serializeContent(replayInputStream, contentSize));
+			target.put(getMongodbParameters().getCodecColumnName(), getCodecName(getMongodbParameters().getSerializer()));
+		} else {
+			// add the raw content to the table record
+			target.put(getMongodbParameters().getContentColumnName(),
+					toColumnValue(readBytes(replayInputStream, contentSize), capture, binary));
+		}
+	}
+
+	/**
+	 * Store the content in the content collection with the digest as its _id, unless the
+	 * pool's cache knows it is stored already, or it was known when the snapshot of the
+	 * capture left the body out. The content doc takes the same path as the
+	 * doc, see {@link #insertContent}, and is handed over before it, so it is written first;
+	 * content stored before comes back as a duplicate key, which is no failure.
+	 *
+	 * @param digest the content digest of the CrawlURI
+	 * @param replayInputStream the response, positioned at the start of the content
+	 * @param contentSize the number of content bytes
+	 * @param capture the fetched CrawlURI and its recording
+	 * @param binary true to store the content as BSON binary, false to decode it
+	 *
+	 * @throws IOException if the content could not be read, spooled or inserted
+	 */
+	protected void storeContentOnce(final String digest, final ReplayInputStream replayInputStream,
+			final long contentSize, final MongodbCapture capture, final boolean binary) throws IOException {
+		if (!capture.hasBody() || _pool.isStoredDigest(digest)) {
+			return;
+		}
+		DBObject content = new BasicDBObject("_id", digest);
+		putContentColumns(content, replayInputStream, contentSize, capture, binary);
+		if (binary || getMongodbParameters().isStoreAsBinary() || getMongodbParameters().getSerializer() != null) {
+			content.put(getMongodbParameters().getCharsetColumnName(), capture.getCharset().name());
+		}
+		content = _schema.compact(content);
+		// cached before it is acknowledged, a content doc that fails for good is forgotten again
+		_pool.addStoredDigest(digest);
+		long start = System.nanoTime();
+		try {
+			insertContent(_pool.route(capture), capture, content, contentSize);
+		} finally {
+			_storeNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Pass the next length bytes of the stream through the configured serializer. A
+	 * {@link StreamingSerializer} compresses while copying, any other serializer gets the
+	 * bytes in one array.
+	 *
+	 * @param in the stream, positioned at the first byte of the content
+	 * @param length the number of bytes to serialize
+	 *
+	 * @return the serialized bytes
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected byte[] serializeContent(final InputStream in, final long length) throws IOException {
+		Serializer serializer = getMongodbParameters().getSerializer();
+		if (serializer instanceof StreamingSerializer) {
+			_serializeBuffer.reset();
+			OutputStream out = ((StreamingSerializer) serializer).wrap(_serializeBuffer);
+			copyBytes(in, out, length);
+			out.close();
+			byte[] serialized = _serializeBuffer.toByteArray();
+			if (serialized.length > MAX_REUSED_SERIALIZE_BUFFER_SIZE) {
+				_serializeBuffer = new ByteArrayOutputStream(SERIALIZE_BUFFER_SIZE);
 			}
-			
-			if (localFetchTime != null && !localFetchTime.isEmpty()) {
-				doc.put(getMongodbParameters().getProcessedAtColumnName(), localFetchTime);
+			return serialized;
+		}
+		return serialize(readBytes(in, length));
+	}
+
+	/**
+	 * @return the name stored in the codec column for content passed through the serializer.
+	 */
+	protected static String getCodecName(final Serializer serializer) {
+		if (serializer instanceof StreamingSerializer) {
+			return ((StreamingSerializer) serializer).getName();
+		}
+		return serializer.getClass().getName();
+	}
+
+	/**
+	 * Copy the next length bytes of the stream, through this writer's scratch buffer.
+	 */
+	protected void copyBytes(final InputStream in, final OutputStream out, final long length) throws IOException {
+		long remaining = length;
+		while (remaining > 0) {
+			int read = in.read(scratchbuffer, 0, (int) Math.min(scratchbuffer.length, remaining));
+			if (read == -1) {
+				throw new EOFException("Expected " + length + " bytes but the stream ended after " + (length - remaining));
+			}
+			out.write(scratchbuffer, 0, read);
+			remaining -= read;
+		}
+	}
+
+	/**
+	 * @param parameters the MongoDB settings
+	 * @param contentSize the content size reported by the CrawlURI
+	 * @return true if the content is too large for a doc and should be stored in GridFS.
+	 */
+	public static boolean isLargeContent(final MongodbParameters parameters, final long contentSize) {
+		return parameters.isStoreLargeContentInGridFs() && contentSize > parameters.getGridFsThreshold();
+	}
+
+	/**
+	 * Stream the content into a new GridFS file, one chunk at a time, through the
+	 * configured {@link StreamingSerializer} if there is one.
+	 *
+	 * @param replayInputStream the response, positioned at the start of the content
+	 * @param contentSize the number of content bytes
+	 * @param capture the fetched CrawlURI and its recording
+	 *
+	 * @return the id of the GridFS file
+	 *
+	 * @throws IOException if GridFS rejected the file
+	 */
+	protected Object saveToGridFs(final ReplayInputStream replayInputStream, final long contentSize,
+			final MongodbCapture capture) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return saveFile(replayInputStream, contentSize, capture);
+		} finally {
+			_storeNanos += System.nanoTime() - start;
+		}
+	}
+
+	private Object saveFile(final ReplayInputStream replayInputStream, final long contentSize,
+			final MongodbCapture capture) throws IOException {
+		GridFSInputFile file = _pool.getGridFS().createFile(capture.getUrl());
+		if (capture.getContentType() != null) {
+			file.setContentType(capture.getContentType());
+		}
+		file.put(getMongodbParameters().getCharsetColumnName(), capture.getCharset().name());
+		Serializer serializer = getMongodbParameters().getSerializer();
+		try {
+			OutputStream out = file.getOutputStream();
+			if (serializer instanceof StreamingSerializer) {
+				file.put(getMongodbParameters().getCodecColumnName(), getCodecName(serializer));
+				out = ((StreamingSerializer) serializer).wrap(out);
 			}
+			copyBytes(replayInputStream, out, contentSize);
+			// closing the GridFS stream saves the last chunk and the file doc
+			out.close();
+		} catch (MongoException e) {
+			_pool.getStats().insertFailed();
+			throw new IOException("Failed GridFS write of '" + capture + "'", e);
+		}
+		// saved once the stream is closed, so counted right away
+		_pool.acknowledgedRecord(GRIDFS_FILES, contentSize);
+		return file.getId();
+	}
 
-			// Write the Crawl Request to the Put object
-			if (recordingOutputStream.getSize() > 0) {
-			    String crawlRequest = getEncodedStringFromInputStream(recordingOutputStream.getReplayInputStream(),
-                        (int) recordingInputStream.getSize(), curi);
+	/**
+	 * @return the bytes themselves with storeAsBinary, otherwise the bytes decoded with the recorder charset.
+	 */
+	protected Object toColumnValue(final byte[] bytes, final MongodbCapture capture) {
+		return toColumnValue(bytes, capture, getMongodbParameters().isStoreAsBinary());
+	}
+
+	/**
+	 * @return the bytes themselves if binary, otherwise the bytes decoded with the recorder charset.
+	 */
+	protected Object toColumnValue(final byte[] bytes, final MongodbCapture capture, final boolean binary) {
+		if (binary) {
+			return bytes;
+		}
+		return new String(bytes, capture.getCharset());
+	}
 
-				doc.put(getMongodbParameters().getRequestColumnName(), crawlRequest);
+	/**
+	 * Read the next length bytes of the stream into a new array of exactly that size.
+	 *
+	 * @param in the stream, positioned at the first byte to read
+	 * @param length the number of bytes to read
+	 *
+	 * @return the bytes read
+	 *
+	 * @throws IOException if the stream ends before length bytes were read
+	 */
+	protected static byte[] readBytes(final InputStream in, final long length) throws IOException {
+		byte[] bytes = new byte[(int) length];
+		int offset = 0;
+		while (offset < bytes.length) {
+			int read = in.read(bytes, offset, bytes.length - offset);
+			if (read == -1) {
+				throw new EOFException("Expected " + length + " bytes but the stream ended after " + offset);
 			}
+			offset += read;
+		}
+		return bytes;
+	}
 
-			// Write the Crawl Response to the Put object
-			ReplayInputStream replayInputStream = recordingInputStream.getReplayInputStream();
+	/**
+	 * Append the doc to the spool of the target if there is one. Otherwise insert the doc
+	 * right away or, when batching is on, add it to the current batch of its collection and
+	 * flush that batch once it is full or too old. In upsert mode the doc replaces the one
+	 * with the same _id instead. With continueOnError a doc written right away notes on the
+	 * capture how its write ended, for the ToeThread to annotate its CrawlURI with; the
+	 * outcome of batched docs is only counted and logged, when their batch is written.
+	 *
+	 * @param target the target the doc is routed to
+	 * @param capture the capture of the doc; its fetch time selects the partition of the
+	 * target and its recorded size is counted once the doc is acknowledged
+	 * @param doc the doc to insert, with its _id set
+	 *
+	 * @throws IOException if the insert or the batch flush failed
+	 */
+	protected void insert(final MongodbTarget target, final MongodbCapture capture, final DBObject doc)
+			throws IOException {
+		final String url = capture.getUrl();
+		final long recordedBytes = capture.getRecordedSize();
+		final long contentBytes = getRecordContentSize(capture);
+		MongodbSpool spool = target.getSpool();
+		if (spool != null) {
+			// the _id is fixed before the doc is spooled, so a replay of an inserted doc is a
+			// duplicate key, and carries the fetch time the replay picks the partition by
+			spool.append(doc, recordedBytes, contentBytes);
+			return;
+		}
+
+		DBCollection collection = target.getDBCollection(capture.getFetchBeginTime());
+		if (!getMongodbParameters().isBatchWrites() && getMongodbParameters().isContinueOnError()) {
+			MongodbBulkInserter.Result result = _pool.getBulkInserter().write(collection,
+					Collections.singletonList(doc), getMongodbParameters().isUpsertWrites(),
+					getMongodbParameters().getMaxInlineRetryMs());
+			if (result.isDeferred(0)) {
+				// the pool retries it in the background, its outcome is counted there
+				_pool.retryLater(collection, Collections.singletonList(doc), Collections.singletonList(url),
+						Collections.singletonList(recordedBytes), Collections.singletonList(contentBytes));
+				return;
+			}
+			MongodbBulkInserter.Outcome outcome = result.getOutcome(0);
+			capture.setWriteOutcome(outcome, result.getAttempts(0));
+			if (outcome == MongodbBulkInserter.Outcome.WRITTEN) {
+				acknowledge(1, recordedBytes);
+				acknowledgeRecord(false, recordedBytes, contentBytes);
+			} else if (outcome != MongodbBulkInserter.Outcome.DUPLICATE_KEY) {
+				throw new IOException("Failed insert of '" + url + "' into " + collection.getFullName()
+						+ ": " + outcome.getReason(), result.getFailure());
+			}
+			return;
+		}
+		if (!getMongodbParameters().isBatchWrites()) {
+			long start = System.nanoTime();
 			try {
-			    // Read in the response fully into a byte array
-			    String crawlResponse = getEncodedStringFromInputStream(replayInputStream, (int) recordingInputStream.getSize(), curi);
-
-                // reset the input steam for the content processor
-                replayInputStream = recordingInputStream.getReplayInputStream();
-                replayInputStream.setToResponseBodyStart();
-
-                // If it's configured, try to separate the HTTP response headers and store them in another column
-			    if (getMongodbParameters().isSeparateHeaders()) {
-			        int contentIndex = getContentIndex(crawlResponse);
-			        if (contentIndex != -1) {
-			            String headers = crawlResponse.substring(0, contentIndex);
-			            doc.put(getMongodbParameters().getHeadersColumnName(), headers);
-			            crawlResponse = crawlResponse.substring(contentIndex);
-			        }
-			    }  
-                             
-			    int maxSize = getMongodbParameters().getDefaultMaxContentSizeInBytes();
-			    if (maxSize > 0 && crawlResponse.length() > maxSize) {
-			        logger.log(Level.WARNING, "Skipping write of '" + url + "' because it exceeded the defined max size of " + maxSize);
-			        return;
-			    }
-
-				// add the raw content to the table record
-				doc.put(getMongodbParameters().getContentColumnName(), crawlResponse);
-			} finally {
-				closeStream(replayInputStream);
+				writeContent(collection, Collections.singletonList(doc));
+				if (getMongodbParameters().isUpsertWrites()) {
+					collection.update(new BasicDBObject("_id", doc.get("_id")), doc, true, false);
+				} else {
+					collection.insert(doc);
+				}
+			} catch (MongoException e) {
+				_pool.getStats().insertFailed();
+				throw new IOException("Failed insert of '" + url + "' into " + collection.getFullName(), e);
+			}
+			_pool.getStats().recordInsert(1, System.nanoTime() - start);
+			acknowledge(1, recordedBytes);
+			acknowledgeRecord(false, recordedBytes, contentBytes);
+			return;
+		}
+		addToBatch(collection, doc, url, recordedBytes, contentBytes);
+	}
+
+	/**
+	 * Insert a content doc of deduplicated storage the way {@link #insert} inserts the doc
+	 * of its capture: spooled, written right away or batched. Content docs are written whole,
+	 * never upserted, a duplicate key is the content stored before, and they are not counted
+	 * as written captures; their capture is counted with its own doc. A content doc written
+	 * is counted as a record of its own.
+	 *
+	 * @param target the target the doc of the capture is routed to, whose spool is used
+	 * @param capture the capture the content was recorded with
+	 * @param content the content doc, with the digest as its _id
+	 * @param contentBytes the number of content bytes, counted with its record
+	 *
+	 * @throws IOException if the content doc could not be spooled or inserted
+	 */
+	protected void insertContent(final MongodbTarget target, final MongodbCapture capture, final DBObject content,
+			final long contentBytes) throws IOException {
+		final String url = capture.getUrl();
+		MongodbSpool spool = target.getSpool();
+		if (spool != null) {
+			spool.appendContent(content, contentBytes);
+			return;
+		}
+
+		DBCollection collection = _pool.getContentCollection();
+		if (!getMongodbParameters().isBatchWrites() && getMongodbParameters().isContinueOnError()) {
+			MongodbBulkInserter.Result result = _pool.getBulkInserter().writeWhole(collection,
+					Collections.singletonList(content), getMongodbParameters().getMaxInlineRetryMs());
+			if (result.isDeferred(0)) {
+				_pool.retryLater(collection, Collections.singletonList(content), Collections.singletonList(url),
+						Collections.singletonList(0L), Collections.singletonList(contentBytes));
+				return;
+			}
+			MongodbBulkInserter.Outcome outcome = result.getOutcome(0);
+			if (outcome == MongodbBulkInserter.Outcome.WRITTEN) {
+				acknowledgeRecord(true, 0, contentBytes);
+			} else if (outcome != MongodbBulkInserter.Outcome.DUPLICATE_KEY) {
+				_pool.forgetStoredDigest(content.get("_id"));
+				throw new IOException("Failed content write of '" + url + "' into " + collection.getFullName()
+						+ ": " + outcome.getReason(), result.getFailure());
+			}
+			return;
+		}
+		if (!getMongodbParameters().isBatchWrites()) {
+			long start = System.nanoTime();
+			try {
+				insertWhole(collection, Collections.singletonList(content));
+			} catch (MongoException e) {
+				_pool.getStats().insertFailed();
+				_pool.forgetStoredDigest(content.get("_id"));
+				throw new IOException("Failed content write of '" + url + "' into " + collection.getFullName(), e);
+			}
+			_pool.getStats().recordInsert(1, System.nanoTime() - start);
+			acknowledgeRecord(true, 0, contentBytes);
+			return;
+		}
+		addToBatch(collection, content, url, 0, contentBytes);
+	}
+
+	/**
+	 * Add a doc to the current batch of its collection and flush that batch once it is full
+	 * or too old.
+	 */
+	private void addToBatch(final DBCollection collection, final DBObject doc, final String url,
+			final long recordedBytes, final long contentBytes) throws IOException {
+		Batch batch = _batches.get(collection);
+		if (batch == null) {
+			// a new partition, those rolled over are done with once their batches are flushed
+			dropEmptyBatches();
+			batch = new Batch();
+			_batches.put(collection, batch);
+		}
+		if (batch.docs.isEmpty()) {
+			batch.startedAt = System.currentTimeMillis();
+		}
+		batch.docs.add(doc);
+		batch.urls.add(url);
+		batch.sizes.add(recordedBytes);
+		batch.contentSizes.add(contentBytes);
+		batch.bytes += recordedBytes;
+		batch.docBytes += estimateSize(doc);
+
+		if (_pool.getBatchSizer().isFull(batch.docs.size(), batch.docBytes) || isBatchStale(batch)) {
+			flushBatch(collection, batch);
+		}
+	}
+
+	/**
+	 * Insert the buffered docs of every collection, one bulk write per collection. A failed
+	 * collection does not keep the others from being flushed. Batches of partitions that
+	 * have rolled over are dropped once flushed.
+	 *
+	 * @throws IOException if MongoDB rejected any of the bulk writes
+	 */
+	public synchronized void flushBatch() throws IOException {
+		IOException failure = null;
+		Iterator<Map.Entry<DBCollection, Batch>> entries = _batches.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<DBCollection, Batch> entry = entries.next();
+			try {
+				flushBatch(entry.getKey(), entry.getValue());
+			} catch (IOException e) {
+				failure = e;
+			}
+			entries.remove();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Insert all buffered docs of one collection in one bulk write. The batch is discarded
+	 * whether or not the write succeeds, only acknowledged docs are counted as written.
+	 * With continueOnError the docs that fail are counted and logged instead, see
+	 * {@link #writeBatch}.
+	 *
+	 * @throws IOException if MongoDB rejected the bulk write
+	 */
+	private void flushBatch(final DBCollection collection, final Batch batch) throws IOException {
+		if (batch.docs.isEmpty()) {
+			return;
+		}
+		boolean content = _pool.isContentCollection(collection);
+		if (!content && _pool.getContentCollection() != null) {
+			// the content docs the docs refer to go in first
+			Batch contentBatch = _batches.get(_pool.getContentCollection());
+			if (contentBatch != null) {
+				flushBatch(_pool.getContentCollection(), contentBatch);
+			}
+		}
+		List<DBObject> docs = batch.docs;
+		List<String> urls = batch.urls;
+		List<Long> sizes = batch.sizes;
+		List<Long> contentSizes = batch.contentSizes;
+		long bytes = batch.bytes;
+		long docBytes = batch.docBytes;
+		batch.docs = new ArrayList<DBObject>();
+		batch.urls = new ArrayList<String>();
+		batch.sizes = new ArrayList<Long>();
+		batch.contentSizes = new ArrayList<Long>();
+		batch.bytes = 0;
+		batch.docBytes = 0;
+
+		if (getMongodbParameters().isContinueOnError()) {
+			writeBatch(collection, docs, urls, sizes, contentSizes, docBytes);
+			return;
+		}
+
+		long start = System.nanoTime();
+		try {
+			if (content) {
+				insertWhole(collection, docs);
+			} else {
+				writeContent(collection, docs);
+				if (getMongodbParameters().isUpsertWrites()) {
+					upsert(collection, docs);
+				} else {
+					collection.insert(docs);
+				}
+			}
+		} catch (MongoException e) {
+			_pool.getStats().insertFailed();
+			_pool.getBatchSizer().failed();
+			if (content) {
+				for (DBObject doc : docs) {
+					_pool.forgetStoredDigest(doc.get("_id"));
+				}
 			}
+			logger.log(Level.SEVERE, "Failed bulk insert of " + docs.size() + " docs into " + collection.getFullName() + ": " + urls, e);
+			throw new IOException("Failed bulk insert of " + docs.size() + " docs into " + collection.getFullName(), e);
+		}
+		long nanos = System.nanoTime() - start;
+		_pool.getStats().recordInsert(docs.size(), nanos);
+		_pool.getBatchSizer().succeeded(docs.size(), docBytes, nanos);
+		acknowledge(content ? 0 : docs.size(), bytes);
+		for (int i = 0; i < docs.size(); i++) {
+			acknowledgeRecord(content, sizes.get(i), contentSizes.get(i));
+		}
+	}
 
-			this.getDBCollection().insert(doc);
+	/**
+	 * Insert docs stored once per _id in one unordered bulk write, skipping those that are
+	 * there already.
+	 *
+	 * @throws MongoException if MongoDB rejected the insert for another reason
+	 */
+	protected static void insertWhole(final DBCollection collection, final List<DBObject> docs) {
+		BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+		for (DBObject doc : docs) {
+			bulk.insert(doc);
+		}
+		try {
+			bulk.execute();
+		} catch (BulkWriteException e) {
+			if (e.getWriteConcernError() != null) {
+				throw e;
+			}
+			for (BulkWriteError error : e.getWriteErrors()) {
+				if (MongodbBulkInserter.classify(error.getCode(), error.getMessage()) != MongodbBulkInserter.Outcome.DUPLICATE_KEY) {
+					throw e;
+				}
+			}
+			// stored before, the others went in
 		}
 	}
 
+	/**
+	 * Write the docs of a batch with the pool's bulk inserter, and count and log the docs
+	 * that were not written. Their CrawlURIs have been released by now, so they are not
+	 * annotated. Docs still failing once maxInlineRetryMs is used up are handed to the
+	 * pool, which retries them without holding this writer.
+	 * Only a batch that needed no retry lets the batch sizer grow the batches.
+	 */
+	private void writeBatch(final DBCollection collection, final List<DBObject> docs, final List<String> urls,
+			final List<Long> sizes, final List<Long> contentSizes, final long docBytes) {
+		boolean content = _pool.isContentCollection(collection);
+		long maxSleepMs = getMongodbParameters().getMaxInlineRetryMs();
+		MongodbBulkInserter.Result result = content ? _pool.getBulkInserter().writeWhole(collection, docs, maxSleepMs)
+				: _pool.getBulkInserter().write(collection, docs, getMongodbParameters().isUpsertWrites(), maxSleepMs);
+		int written = 0;
+		long writtenBytes = 0;
+		List<String> failed = new ArrayList<String>();
+		List<DBObject> deferredDocs = new ArrayList<DBObject>();
+		List<String> deferredUrls = new ArrayList<String>();
+		List<Long> deferredSizes = new ArrayList<Long>();
+		List<Long> deferredContentSizes = new ArrayList<Long>();
+		for (int i = 0; i < docs.size(); i++) {
+			MongodbBulkInserter.Outcome outcome = result.getOutcome(i);
+			if (result.isDeferred(i)) {
+				deferredDocs.add(docs.get(i));
+				deferredUrls.add(urls.get(i));
+				deferredSizes.add(sizes.get(i));
+				deferredContentSizes.add(contentSizes.get(i));
+			} else if (outcome == MongodbBulkInserter.Outcome.WRITTEN) {
+				written++;
+				writtenBytes += sizes.get(i);
+				acknowledgeRecord(content, sizes.get(i), contentSizes.get(i));
+			} else if (outcome != MongodbBulkInserter.Outcome.DUPLICATE_KEY) {
+				failed.add(urls.get(i) + " (" + outcome.getReason() + ")");
+				_pool.getStats().writeFailed();
+				if (content) {
+					_pool.forgetStoredDigest(docs.get(i).get("_id"));
+				}
+			}
+		}
+		if (!failed.isEmpty()) {
+			logger.log(Level.SEVERE, "Failed write of " + failed.size() + " of " + docs.size() + " docs into "
+					+ collection.getFullName() + ": " + failed);
+		}
+		if (!deferredDocs.isEmpty()) {
+			_pool.retryLater(collection, deferredDocs, deferredUrls, deferredSizes, deferredContentSizes);
+		}
+		if (result.getFailure() != null || result.isRetried()) {
+			_pool.getBatchSizer().failed();
+		} else {
+			_pool.getBatchSizer().succeeded(docs.size(), docBytes, result.getNanos());
+		}
+		// content docs are not captures, their captures are counted with their own docs
+		acknowledge(content ? 0 : written, writtenBytes);
+	}
+
+	/**
+	 * With split storage, split the recording off the docs and write it first, see
+	 * {@link MongodbContentSplitter#writeContent}.
+	 */
+	private void writeContent(final DBCollection collection, final List<DBObject> docs) {
+		MongodbContentSplitter splitter = _pool.getContentSplitter();
+		if (splitter != null) {
+			splitter.writeContent(collection, docs, getMongodbParameters().isUpsertWrites());
+		}
+	}
+
+	/**
+	 * Estimate the BSON size of a doc from its values, without encoding it. Binary values
+	 * count their length and strings their UTF-8 length, as BSON stores them.
+	 *
+	 * @return the estimated size in bytes
+	 */
+	protected static long estimateSize(final DBObject doc) {
+		long size = 5;
+		for (String key : doc.keySet()) {
+			Object value = doc.get(key);
+			// type, key, terminator and the length prefix or a fixed size value
+			size += utf8Length(key) + 10;
+			if (value instanceof byte[]) {
+				size += ((byte[]) value).length;
+			} else if (value instanceof String) {
+				size += utf8Length((String) value);
+			} else if (value instanceof DBObject) {
+				size += estimateSize((DBObject) value);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes of the string in UTF-8, counted without encoding it.
+	 */
+	protected static long utf8Length(final String s) {
+		long length = s.length();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x800) {
+				if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+					// two chars, four bytes
+					length += 2;
+					i++;
+				} else {
+					length += 2;
+				}
+			} else if (c >= 0x80) {
+				length += 1;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Replace the doc with the same _id as each of the docs, or insert it if there is none,
+	 * in one ordered bulk write so the last capture of a key in the batch wins.
+	 *
+	 * @param collection the collection to write to
+	 * @param docs the docs, each with its key as _id
+	 */
+	protected static void upsert(final DBCollection collection, final List<DBObject> docs) {
+		BulkWriteOperation bulk = collection.initializeOrderedBulkOperation();
+		for (DBObject doc : docs) {
+			bulk.find(new BasicDBObject("_id", doc.get("_id"))).upsert().replaceOne(doc);
+		}
+		bulk.execute();
+	}
+
+	/**
+	 * Flush the batches that have waited longer than maxBatchAgeMs, and drop the empty
+	 * ones, so batches of partitions that have rolled over do not pile up.
+	 *
+	 * @throws IOException if MongoDB rejected any of the bulk writes
+	 */
+	public synchronized void flushIfStale() throws IOException {
+		IOException failure = null;
+		for (Map.Entry<DBCollection, Batch> entry : _batches.entrySet()) {
+			if (isBatchStale(entry.getValue())) {
+				try {
+					flushBatch(entry.getKey(), entry.getValue());
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		}
+		dropEmptyBatches();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void dropEmptyBatches() {
+		Iterator<Batch> batches = _batches.values().iterator();
+		while (batches.hasNext()) {
+			if (batches.next().docs.isEmpty()) {
+				batches.remove();
+			}
+		}
+	}
+
+	private boolean isBatchStale(final Batch batch) {
+		long maxAge = getMongodbParameters().getMaxBatchAgeMs();
+		return !batch.docs.isEmpty() && maxAge > 0 && System.currentTimeMillis() - batch.startedAt >= maxAge;
+	}
+
+	private void acknowledge(int docs, long recordedBytes) {
+		_acknowledgedBytes += recordedBytes;
+		_pool.acknowledged(docs, recordedBytes);
+	}
+
+	private void acknowledgeRecord(final boolean content, final long recordedBytes, final long contentBytes) {
+		_pool.acknowledgedRecord(getRecordKind(content, recordedBytes), contentBytes);
+	}
+
+	/**
+	 * @return recorded bytes of all docs MongoDB has acknowledged from this writer.
+	 */
+	@Override
+	public synchronized long getPosition() {
+		return _acknowledgedBytes;
+	}
+
+	/**
+	 * Called by {@link org.archive.io.WriterPool#flush()} on checkpoint.
+	 */
+	@Override
+	protected void flush() throws IOException {
+		flushBatch();
+	}
+
     
 	public byte[] serialize(byte[] bytes) {
 		if (getMongodbParameters().getSerializer() != null)
@@ -224,8 +974,11 @@ implements Serializer {
 	
 	@Override
 	public void close() throws IOException {
-		this._mongoclient.close();
-		super.close();
+		try {
+			flushBatch();
+		} finally {
+			super.close();
+		}
 	}
 	
 	/**
@@ -273,7 +1026,10 @@ implements Serializer {
      *
      * @param content
      * @return the index of the start of the contents if found, or -1 otherwise.
+     * @deprecated the writer splits headers and content at the recorder's response body offset,
+     * see {@link ReplayInputStream#getHeaderSize()}.
      */
+    @Deprecated
     public static int getContentIndex(String content) {
         if (content == null) return -1;
         int tag = content.indexOf("<!DOCTYPE");
@@ -284,4 +1040,19 @@ implements Serializer {
         return tag;
     }
 
+	/**
+	 * Docs of one collection waiting to be inserted in one bulk write.
+	 */
+	private static class Batch {
+		List<DBObject> docs = new ArrayList<DBObject>();
+		List<String> urls = new ArrayList<String>();
+		// recorded bytes and content bytes of each CrawlURI
+		List<Long> sizes = new ArrayList<Long>();
+		List<Long> contentSizes = new ArrayList<Long>();
+		// recorded bytes of the CrawlURIs, and estimated size of their docs
+		long bytes = 0;
+		long docBytes = 0;
+		long startedAt = 0;
+	}
+
 }
\ No newline at end of file
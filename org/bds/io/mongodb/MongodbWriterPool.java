@@ -8,19 +8,104 @@
 
 package org.bds.io.mongodb;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import org.archive.io.WriterPool;
 import org.archive.io.WriterPoolMember;
 import org.archive.io.WriterPoolSettings;
 
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.gridfs.GridFS;
+
 
 public class MongodbWriterPool extends WriterPool {
 	
 	private static final Logger logger = Logger.getLogger(MongodbWriterPool.class.getName());
 	private MongodbParameters _parameters;
+	private MongodbWriterStats _stats;
+	
+	/** Where docs are written, each with its own client, and so its own connection pool, shared by all writers. */
+	private List<MongodbTarget> _targets = new ArrayList<MongodbTarget>();
+	private MongodbRouter _router;
+	private MongodbBatchSizer _batchSizer;
+	private MongodbBulkInserter _bulkInserter;
+	/** Splits the recording off the docs with split storage, null otherwise. */
+	private MongodbContentSplitter _contentSplitter = null;
+	/** Where all content docs go with splitContentTarget, null otherwise. */
+	private MongodbTarget _contentTarget = null;
+	private GridFS _gridFs = null;
+	private DBCollection _contentCollection = null;
+	
+	/** Most recently used digests whose content is known to be in the content collection. */
+	private Map<String, Boolean> _storedDigests = null;
+
+	/** Every writer made by this pool, idle or borrowed. */
+	private final Set<MongodbWriter> _writers =
+			Collections.newSetFromMap(new ConcurrentHashMap<MongodbWriter, Boolean>());
+
+	/** Docs and bytes of batches MongoDB has acknowledged but the processor has not counted yet. */
+	private final AtomicLong _acknowledgedDocs = new AtomicLong();
+	private final AtomicLong _acknowledgedBytes = new AtomicLong();
+	/** Records and content bytes of acknowledged docs by kind, not counted by the processor yet. */
+	private final Map<String, Map<String, Long>> _acknowledgedRecords = new HashMap<String, Map<String, Long>>();
+
+	/** Flushes batches that have waited longer than maxBatchAgeMs. */
+	private ScheduledExecutorService _flusher = null;
+
+	/** Docs at most waiting to be retried in the background before more are given up. */
+	public static final int MAX_DEFERRED_DOCS = 10000;
+
+	/** Retries docs the writers gave up on after maxInlineRetryMs, with the full backoff. */
+	private ExecutorService _retrier = null;
+	private final AtomicInteger _deferredDocs = new AtomicInteger();
+
+	/** Indexes new partitions and prepares the next one before rollover. */
+	private ScheduledExecutorService _partitioner = null;
+
+	/** Writers leased by thread with STRIPED leasing, null otherwise. */
+	private Stripe[] _stripes = null;
+	/** The stripe of each thread, handed out round-robin as threads first lease. */
+	private ThreadLocal<Stripe> _threadStripes = null;
+	private final AtomicInteger _nextStripe = new AtomicInteger();
+	/** The writer of each thread with THREAD leasing, null otherwise. */
+	private ThreadLocal<MongodbWriter> _threadWriters = null;
+	/** The thread of each writer with THREAD leasing, to retire writers of ended threads. */
+	private final Map<MongodbWriter, Thread> _writerThreads = new ConcurrentHashMap<MongodbWriter, Thread>();
 	
+	/**
+	 * Create a pool of MongodbWriter objects, replaying all spool segments left on disk.
+	 *
+	 * @see #MongodbWriterPool(AtomicInteger, MongodbParameters, WriterPoolSettings, int, int, MongodbWriterStats, Map)
+	 */
+    public MongodbWriterPool(final AtomicInteger serial, final MongodbParameters parameters, final WriterPoolSettings settings,
+            final int poolMaximumActive, final int poolMaximumWait, final MongodbWriterStats stats) {
+    	this(serial, parameters, settings, poolMaximumActive, poolMaximumWait, stats, null);
+    }
+
 	/**
 	 * Create a pool of MongodbWriter objects.
 	 *
@@ -29,18 +114,661 @@ public class MongodbWriterPool extends WriterPool {
 	 * @param parameters the {@link org.archive.io.mongodb.MongodbParameters} object containing your settings
 	 * @param poolMaximumActive the maximum number of writers in the writer pool.
 	 * @param poolMaximumWait the maximum waittime for all writers in the pool.
+	 * @param stats where the writers and spools record their latencies and counters
+	 * @param resumeSpoolSequences spool high-water marks by target file name of the checkpoint
+	 * the crawl is resumed from, or null; later segments are set aside, not replayed
 	 */
     public MongodbWriterPool(final AtomicInteger serial, final MongodbParameters parameters, final WriterPoolSettings settings,
-            final int poolMaximumActive, final int poolMaximumWait) {
+            final int poolMaximumActive, final int poolMaximumWait, final MongodbWriterStats stats,
+            final Map<String, Long> resumeSpoolSequences) {
     	super(serial, settings, poolMaximumActive, poolMaximumWait);
     	_parameters = parameters;
+    	_stats = stats;
+    	if (parameters.isRouteWrites()) {
+    		for (String target : parameters.getTargets()) {
+    			_targets.add(MongodbTarget.parse(target));
+    		}
+    	} else {
+    		_targets.add(new MongodbTarget(parameters.getHost(), parameters.getPort(),
+    				parameters.getDatabase(), parameters.getCollection()));
+    	}
+    	if (parameters.isPartitionWrites()) {
+    		_partitioner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "MongodbWriterPool-partitioner");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    	}
+    	for (MongodbTarget target : _targets) {
+    		try {
+    			target.open(parameters, poolMaximumActive, _partitioner);
+    		} catch (RuntimeException e) {
+    			logger.error("Cannot open mongodb target " + target, e);
+    			closeTargets();
+    			throw e;
+    		}
+    	}
+    	_router = new MongodbRouter(_targets, parameters.getRoutingVirtualNodes());
+    	// a batch may go to any target, so it has to fit the smallest limits
+    	int maxWriteBatchSize = Integer.MAX_VALUE;
+    	int maxMessageSize = Integer.MAX_VALUE;
+    	for (MongodbTarget target : _targets) {
+    		maxWriteBatchSize = Math.min(maxWriteBatchSize, target.getMaxWriteBatchSize());
+    		maxMessageSize = Math.min(maxMessageSize, target.getMaxMessageSize());
+    	}
+    	_batchSizer = new MongodbBatchSizer(parameters, maxWriteBatchSize, maxMessageSize, stats);
+    	if (parameters.isSplitContent()) {
+    		if (!parameters.getSplitContentTarget().isEmpty()) {
+    			_contentTarget = MongodbTarget.parse(parameters.getSplitContentTarget());
+    			try {
+    				_contentTarget.openForContent(parameters, poolMaximumActive);
+    			} catch (RuntimeException e) {
+    				logger.error("Cannot open mongodb content target " + _contentTarget, e);
+    				_contentTarget = null;
+    				closeTargets();
+    				throw e;
+    			}
+    		}
+    		_contentSplitter = new MongodbContentSplitter(parameters, _contentTarget);
+    	}
+    	_bulkInserter = new MongodbBulkInserter(parameters, stats, _contentSplitter);
+    	if (_partitioner != null) {
+    		final long period = parameters.getPartitioning().getPeriodMs();
+    		_partitioner.scheduleWithFixedDelay(new Runnable() {
+    			public void run() {
+    				preparePartitions(System.currentTimeMillis(), period);
+    			}
+    		}, 0, Math.max(period / 60, 1000), TimeUnit.MILLISECONDS);
+    	}
+
+    	// large and deduplicated content is kept in the database of the first target
+    	MongodbTarget primary = _targets.get(0);
+    	if (parameters.isGridFsUsed()) {
+    		_gridFs = new GridFS(primary.getMongoClient().getDB(primary.getDatabase()), parameters.getGridFsBucket());
+    	}
+    	if (parameters.isDeduplicateContent()) {
+    		_contentCollection = primary.getMongoClient().getDB(primary.getDatabase()).getCollection(parameters.getContentCollection());
+    		final int cacheSize = parameters.getDigestCacheSize();
+    		_storedDigests = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+    			private static final long serialVersionUID = 1L;
+    			@Override
+    			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+    				return size() > cacheSize;
+    			}
+    		});
+    	}
+
+    	if (parameters.isSpoolWrites()) {
+    		File directory = new File(parameters.getSpoolDirectory());
+    		try {
+    			for (MongodbTarget target : _targets) {
+    				// without routing the spool stays in the directory itself, as before
+    				File spoolDirectory = _targets.size() == 1 ? directory : new File(directory, target.getFileName());
+    				Long mark = resumeSpoolSequences == null ? null : resumeSpoolSequences.get(target.getFileName());
+    				if (mark != null) {
+    					MongodbSpool.skipSegmentsFrom(spoolDirectory, mark);
+    				}
+    				target.openSpool(spoolDirectory, parameters, this);
+    			}
+    		} catch (IOException e) {
+    			closeTargets();
+    			throw new RuntimeException("Cannot open spool in " + parameters.getSpoolDirectory(), e);
+    		}
+    	} else if (parameters.isBatchWrites() && parameters.getMaxBatchAgeMs() > 0) {
+    		_flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "MongodbWriterPool-flusher");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    		long period = Math.max(parameters.getMaxBatchAgeMs() / 2, 1);
+    		_flusher.scheduleWithFixedDelay(new Runnable() {
+    			public void run() {
+    				flushStaleBatches();
+    			}
+    		}, period, period, TimeUnit.MILLISECONDS);
+    	}
+
+    	if (parameters.isContinueOnError()) {
+    		_retrier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "MongodbWriterPool-retrier");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    	}
+
+    	if (parameters.getWriterLeasing() == MongodbParameters.WriterLeasing.STRIPED) {
+    		int stripes = parameters.getWriterStripes() > 0 ? parameters.getWriterStripes() : Math.max(poolMaximumActive, 1);
+    		_stripes = new Stripe[stripes];
+    		for (int i = 0; i < stripes; i++) {
+    			_stripes[i] = new Stripe((MongodbWriter) makeWriter());
+    		}
+    		_threadStripes = new ThreadLocal<Stripe>() {
+    			@Override
+    			protected Stripe initialValue() {
+    				// thread ids are not dense, round-robin spreads the threads evenly
+    				return _stripes[(_nextStripe.getAndIncrement() & Integer.MAX_VALUE) % _stripes.length];
+    			}
+    		};
+    	} else if (parameters.getWriterLeasing() == MongodbParameters.WriterLeasing.THREAD) {
+    		_threadWriters = new ThreadLocal<MongodbWriter>() {
+    			@Override
+    			protected MongodbWriter initialValue() {
+    				retireEndedThreadWriters();
+    				MongodbWriter writer = (MongodbWriter) makeWriter();
+    				_writerThreads.put(writer, Thread.currentThread());
+    				return writer;
+    			}
+    		};
+    	}
     }
      
+    /**
+     * @return the client of the first target.
+     */
+    public MongoClient getMongoClient() {
+    	return _targets.get(0).getMongoClient();
+    }
+
+    /**
+     * @return the collection of the first target, resolved once for the whole pool.
+     */
+    public DBCollection getDBCollection() {
+    	return _targets.get(0).getDBCollection();
+    }
+
+    public MongodbWriterStats getStats() {
+    	return _stats;
+    }
+
+    public List<MongodbTarget> getTargets() {
+    	return _targets;
+    }
+
+    /**
+     * @return what decides when the batches of all writers and spools are full.
+     */
+    public MongodbBatchSizer getBatchSizer() {
+    	return _batchSizer;
+    }
+
+    /**
+     * @return what writes the batches of all writers and spools with continueOnError.
+     */
+    public MongodbBulkInserter getBulkInserter() {
+    	return _bulkInserter;
+    }
+
+    /**
+     * @return what splits the recording off the docs with split storage, or null.
+     */
+    public MongodbContentSplitter getContentSplitter() {
+    	return _contentSplitter;
+    }
+
+    /**
+     * @return the target the doc of this capture is written to.
+     */
+    public MongodbTarget route(final MongodbCapture capture) {
+    	return _router.route(capture.getHost());
+    }
+
+    /**
+     * @return the GridFS bucket for large content, or null if storeLargeContentInGridFs is off.
+     */
+    public GridFS getGridFS() {
+    	return _gridFs;
+    }
+
+    /**
+     * @return the collection content is stored in once per digest, or null if deduplicateContent is off.
+     */
+    public DBCollection getContentCollection() {
+    	return _contentCollection;
+    }
+
+    /**
+     * @return true if the collection is the one content is stored in once per digest.
+     */
+    public boolean isContentCollection(final DBCollection collection) {
+    	return _contentCollection != null && _contentCollection == collection;
+    }
+
+    /**
+     * @return true if the content with this digest is known to be stored already.
+     */
+    public boolean isStoredDigest(String digest) {
+    	return _storedDigests.containsKey(digest);
+    }
+
+    public void addStoredDigest(String digest) {
+    	_storedDigests.put(digest, Boolean.TRUE);
+    }
+
+    /**
+     * Forget a digest whose content doc could not be written, so the next capture with
+     * the same content stores it again.
+     */
+    public void forgetStoredDigest(Object digest) {
+    	if (_storedDigests != null) {
+    		_storedDigests.remove(digest);
+    	}
+    }
+
+    /**
+     * @return bytes in the spools of all targets not yet acknowledged by MongoDB, 0 without spooling.
+     */
+    public long getSpoolPendingBytes() {
+    	long pending = 0;
+    	for (MongodbTarget target : _targets) {
+    		if (target.getSpool() != null) {
+    			pending += target.getSpool().getPendingBytes();
+    		}
+    	}
+    	return pending;
+    }
+
+    /**
+     * @return spool segment files of all targets on disk, 0 without spooling.
+     */
+    public int getSpoolPendingSegments() {
+    	int pending = 0;
+    	for (MongodbTarget target : _targets) {
+    		if (target.getSpool() != null) {
+    			pending += target.getSpool().getPendingSegments();
+    		}
+    	}
+    	return pending;
+    }
+
+    /**
+     * Lease a writer to the calling thread without the WriterPool's global lock: its own
+     * writer with THREAD leasing, the writer of its stripe with STRIPED leasing, waiting
+     * only while another thread of the same stripe holds it. The time waited is recorded
+     * as contention. Every lease must be followed by {@link #release()} on the same thread.
+     *
+     * @return the leased writer
+     */
+    public MongodbWriter lease() {
+    	if (_threadWriters != null) {
+    		return _threadWriters.get();
+    	}
+    	Stripe stripe = getStripe();
+    	if (!stripe.lock.tryLock()) {
+    		long start = System.nanoTime();
+    		stripe.lock.lock();
+    		_stats.recordContention(System.nanoTime() - start);
+    	}
+    	return stripe.writer;
+    }
+
+    /**
+     * End the lease of the calling thread, see {@link #lease()}.
+     */
+    public void release() {
+    	if (_stripes != null) {
+    		getStripe().lock.unlock();
+    	}
+    }
+
+    /**
+     * @return true if writers are leased rather than borrowed from the WriterPool.
+     */
+    public boolean isLeasing() {
+    	return _stripes != null || _threadWriters != null;
+    }
+
+    private Stripe getStripe() {
+    	// a thread keeps its stripe, so a lease and its release find the same lock
+    	return _threadStripes.get();
+    }
+
+    /**
+     * Flush and close the writers of threads that have ended, with THREAD leasing, so
+     * threads replaced over a crawl do not leave their writers and batches behind.
+     */
+    protected void retireEndedThreadWriters() {
+    	for (Map.Entry<MongodbWriter, Thread> entry : _writerThreads.entrySet()) {
+    		if (entry.getValue().isAlive()) {
+    			continue;
+    		}
+    		MongodbWriter writer = entry.getKey();
+    		_writerThreads.remove(writer);
+    		_writers.remove(writer);
+    		try {
+    			writer.close();
+    		} catch (IOException e) {
+    			logger.error("Failed close of the writer of ended thread " + entry.getValue().getName(), e);
+    		} catch (RuntimeException e) {
+    			logger.error("Failed close of the writer of ended thread " + entry.getValue().getName(), e);
+    		}
+    	}
+    }
+
+    /**
+     * Borrow a writer from the WriterPool, recording the time waited as contention when
+     * no writer was idle.
+     */
+    @Override
+    public WriterPoolMember borrowFile() throws IOException {
+    	WriterPoolMember writer = availableWriters.poll();
+    	if (writer != null) {
+    		return writer;
+    	}
+    	long start = System.nanoTime();
+    	writer = super.borrowFile();
+    	_stats.recordContention(System.nanoTime() - start);
+    	return writer;
+    }
+
     /* (non-Javadoc)
      * @see org.archive.io.WriterPool#makeWriter()
      */
     @Override
     protected WriterPoolMember makeWriter() {
-        return new MongodbWriter(serialNo, settings, _parameters);
+        MongodbWriter writer = new MongodbWriter(serialNo, settings, _parameters, this);
+        _writers.add(writer);
+        return writer;
+    }
+
+    @Override
+    public synchronized void destroyWriter(WriterPoolMember writer) throws IOException {
+    	_writers.remove(writer);
+    	super.destroyWriter(writer);
+    }
+
+    @Override
+    public void close() {
+    	if (_flusher != null) {
+    		// let a flush under way finish, interrupting it would lose its batch
+    		_flusher.shutdown();
+    		try {
+    			_flusher.awaitTermination(1, TimeUnit.MINUTES);
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		}
+    	}
+    	// writers flush their batches on close, so close them before the clients
+    	super.close();
+    	if (_retrier != null) {
+    		// writers may have deferred docs while flushing
+    		_retrier.shutdown();
+    		try {
+    			_retrier.awaitTermination(1, TimeUnit.MINUTES);
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		}
+    	}
+    	if (isLeasing()) {
+    		// leased writers never went through the WriterPool
+    		for (MongodbWriter writer : _writers) {
+    			try {
+    				writer.close();
+    			} catch (IOException e) {
+    				logger.error("Failed close of " + writer, e);
+    			}
+    		}
+    	}
+    	closeTargets();
+    }
+
+    private void closeTargets() {
+    	if (_partitioner != null) {
+    		_partitioner.shutdownNow();
+    	}
+    	for (MongodbTarget target : _targets) {
+    		try {
+    			target.close();
+    		} catch (IOException e) {
+    			logger.error("Failed close of spool of " + target, e);
+    		} catch (RuntimeException e) {
+    			logger.error("Failed close of " + target, e);
+    		}
+    	}
+    	if (_contentTarget != null) {
+    		try {
+    			_contentTarget.close();
+    		} catch (IOException e) {
+    			logger.error("Failed close of " + _contentTarget, e);
+    		} catch (RuntimeException e) {
+    			logger.error("Failed close of " + _contentTarget, e);
+    		}
+    	}
+    }
+
+    /**
+     * Make everything written before a checkpoint durable: wait until no writer is borrowed,
+     * write the batches of all writers, borrowed or leased, and force the spools to disk. Unlike {@link #flush()},
+     * which only logs a failed flush, a rejected batch fails the checkpoint.
+     *
+     * @return the spool high-water mark of every target by file name, empty without spooling
+     * @throws IOException if MongoDB rejected a batch or a spool could not be forced to disk
+     */
+    public Map<String, Long> checkpoint() throws IOException {
+    	Map<String, Long> spoolSequences = new LinkedHashMap<String, Long>();
+    	IOException failure = null;
+    	Collection<WriterPoolMember> writers = drainAllWriters();
+    	try {
+    		for (MongodbWriter writer : _writers) {
+    			try {
+    				writer.flushBatch();
+    			} catch (IOException e) {
+    				logger.error("Failed flush of " + writer + " for checkpoint", e);
+    				failure = e;
+    			}
+    		}
+    		awaitRetries();
+    		for (MongodbTarget target : _targets) {
+    			if (target.getSpool() != null) {
+    				spoolSequences.put(target.getFileName(), target.getSpool().checkpoint());
+    			}
+    		}
+    	} finally {
+    		availableWriters.addAll(writers);
+    	}
+    	if (failure != null) {
+    		throw failure;
+    	}
+    	return spoolSequences;
+    }
+
+    /**
+     * Retry docs a writer gave up on after maxInlineRetryMs on the pool's retrier thread,
+     * with the full backoff and without holding the writer. Docs beyond
+     * {@link #MAX_DEFERRED_DOCS} waiting are given up at once, as failed.
+     *
+     * @param collection the collection the docs go to
+     * @param docs the docs, with their _id set
+     * @param urls their urls, for the log
+     * @param sizes recorded bytes of each doc, counted once it is acknowledged
+     * @param contentSizes content bytes of each doc, counted with its record once it is acknowledged
+     */
+    void retryLater(final DBCollection collection, final List<DBObject> docs, final List<String> urls,
+    		final List<Long> sizes, final List<Long> contentSizes) {
+    	if (_deferredDocs.addAndGet(docs.size()) > MAX_DEFERRED_DOCS) {
+    		_deferredDocs.addAndGet(-docs.size());
+    		for (int i = 0; i < docs.size(); i++) {
+    			_stats.writeFailed();
+    		}
+    		logger.error("Gave up " + docs.size() + " docs into " + collection.getFullName()
+    				+ ", too many are waiting to be retried: " + urls);
+    		return;
+    	}
+    	_retrier.execute(new Runnable() {
+    		public void run() {
+    			try {
+    				retry(collection, docs, urls, sizes, contentSizes);
+    			} finally {
+    				_deferredDocs.addAndGet(-docs.size());
+    			}
+    		}
+    	});
+    }
+
+    private void retry(final DBCollection collection, final List<DBObject> docs, final List<String> urls,
+    		final List<Long> sizes, final List<Long> contentSizes) {
+    	boolean content = isContentCollection(collection);
+    	MongodbBulkInserter.Result result = content ? _bulkInserter.writeWhole(collection, docs, Long.MAX_VALUE)
+    			: _bulkInserter.write(collection, docs, _parameters.isUpsertWrites());
+    	int written = 0;
+    	long writtenBytes = 0;
+    	List<String> failed = new ArrayList<String>();
+    	for (int i = 0; i < docs.size(); i++) {
+    		MongodbBulkInserter.Outcome outcome = result.getOutcome(i);
+    		// a duplicate key is the doc itself, sent before by a writer whose answer was lost;
+    		// for a content doc it may be the content stored by another capture, not a new record
+    		if (outcome == MongodbBulkInserter.Outcome.WRITTEN || outcome == MongodbBulkInserter.Outcome.DUPLICATE_KEY) {
+    			written++;
+    			writtenBytes += sizes.get(i);
+    			if (!content || outcome == MongodbBulkInserter.Outcome.WRITTEN) {
+    				acknowledgedRecord(MongodbWriter.getRecordKind(content, sizes.get(i)), contentSizes.get(i));
+    			}
+    		} else {
+    			failed.add(urls.get(i) + " (" + outcome.getReason() + ")");
+    			_stats.writeFailed();
+    			if (content) {
+    				forgetStoredDigest(docs.get(i).get("_id"));
+    			}
+    		}
+    	}
+    	if (!failed.isEmpty()) {
+    		logger.error("Failed retried write of " + failed.size() + " of " + docs.size() + " docs into "
+    				+ collection.getFullName() + ": " + failed);
+    	}
+    	// content docs are not captures, their captures are counted with their own docs
+    	acknowledged(content ? 0 : written, writtenBytes);
+    }
+
+    /**
+     * Wait until the docs deferred so far have been retried.
+     */
+    protected void awaitRetries() throws IOException {
+    	if (_retrier == null) {
+    		return;
+    	}
+    	// the retrier runs one task at a time, in order
+    	Future<?> done = _retrier.submit(new Runnable() {
+    		public void run() {
+    		}
+    	});
+    	try {
+    		done.get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new InterruptedIOException("Interrupted while waiting for retried docs");
+    	} catch (ExecutionException e) {
+    		throw new IOException(e.getCause());
+    	}
+    }
+
+    /**
+     * Called by a writer or spool once MongoDB has acknowledged one of its batches.
+     *
+     * @param docs number of acknowledged docs
+     * @param bytes recorded bytes of the acknowledged docs
+     */
+    void acknowledged(int docs, long bytes) {
+    	_acknowledgedDocs.addAndGet(docs);
+    	_acknowledgedBytes.addAndGet(bytes);
+    	_stats.acknowledged(docs, bytes);
+    }
+
+    /**
+     * Count an acknowledged doc, or a saved GridFS file, as a record of its kind.
+     *
+     * @param kind the kind of record, see {@link MongodbWriter#getRecordKind(boolean, long)}
+     * @param contentBytes content bytes of its CrawlURI, 0 for a revisit
+     */
+    void acknowledgedRecord(final String kind, final long contentBytes) {
+    	synchronized (_acknowledgedRecords) {
+    		for (String key : new String[] {kind, MongodbWriter.TOTALS}) {
+    			Map<String, Long> substats = _acknowledgedRecords.get(key);
+    			if (substats == null) {
+    				substats = new HashMap<String, Long>();
+    				substats.put(MongodbWriter.NUM_RECORDS, 0L);
+    				substats.put(MongodbWriter.CONTENT_BYTES, 0L);
+    				_acknowledgedRecords.put(key, substats);
+    			}
+    			substats.put(MongodbWriter.NUM_RECORDS, substats.get(MongodbWriter.NUM_RECORDS) + 1);
+    			substats.put(MongodbWriter.CONTENT_BYTES, substats.get(MongodbWriter.CONTENT_BYTES) + contentBytes);
+    		}
+    	}
+    }
+
+    /**
+     * @return records acknowledged since the last call by kind, see
+     * {@link MongodbWriterProcessor#addStats(Map)}; each record is returned only once.
+     */
+    public Map<String, Map<String, Long>> drainAcknowledgedRecords() {
+    	synchronized (_acknowledgedRecords) {
+    		Map<String, Map<String, Long>> records = new HashMap<String, Map<String, Long>>(_acknowledgedRecords);
+    		_acknowledgedRecords.clear();
+    		return records;
+    	}
+    }
+
+    /**
+     * @return bytes acknowledged since the last call; each byte is returned only once.
+     */
+    public long drainAcknowledgedBytes() {
+    	return _acknowledgedBytes.getAndSet(0);
+    }
+
+    /**
+     * @return docs acknowledged since the last call; each doc is returned only once.
+     */
+    public long drainAcknowledgedDocs() {
+    	return _acknowledgedDocs.getAndSet(0);
+    }
+
+    /**
+     * Resolve the current and the next partition of every target, so each is indexed
+     * before the first doc is written to it, and forget those that have rolled over.
+     */
+    protected void preparePartitions(final long now, final long period) {
+    	for (MongodbTarget target : _targets) {
+    		try {
+    			target.evictPartitions(now);
+    			target.getDBCollection(now);
+    			target.getDBCollection(now + period);
+    		} catch (RuntimeException e) {
+    			logger.error("Failed to prepare partitions of " + target, e);
+    		}
+    	}
+    }
+
+    /**
+     * Flush the batches of all writers, borrowed or not, that are older than maxBatchAgeMs.
+     */
+    protected void flushStaleBatches() {
+    	if (_threadWriters != null) {
+    		retireEndedThreadWriters();
+    	}
+    	for (MongodbWriter writer : _writers) {
+    		try {
+    			writer.flushIfStale();
+    		} catch (IOException e) {
+    			logger.error("Failed flush of stale batch in " + writer, e);
+    		} catch (RuntimeException e) {
+    			logger.error("Failed flush of stale batch in " + writer, e);
+    		}
+    	}
+    }
+
+    /**
+     * A writer and the lock of the threads leasing it.
+     */
+    private static final class Stripe {
+    	final ReentrantLock lock = new ReentrantLock();
+    	final MongodbWriter writer;
+
+    	Stripe(final MongodbWriter writer) {
+    		this.writer = writer;
+    	}
     }
 }
\ No newline at end of file
@@ -10,6 +10,9 @@ package org.bds.io.mongodb;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,13 +23,20 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.archive.checkpointing.Checkpoint;
 import org.archive.io.ReplayInputStream;
 import org.archive.io.warc.WARCWriterPoolSettings;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.ProcessResult;
+import org.archive.modules.net.CrawlHost;
+import org.archive.modules.recrawl.RecrawlAttributeConstants;
 import org.archive.modules.writer.WriterPoolProcessor;
 import org.archive.spring.ConfigPath;
 import org.archive.uid.RecordIDGenerator;
+import org.archive.uid.UUIDGenerator;
 import org.bds.io.mongodb.MongodbParameters;
 import org.bds.io.mongodb.MongodbWriter;
 import org.bds.io.mongodb.MongodbWriterPool;
@@ -45,14 +55,38 @@ public class MongodbWriterProcessor extends WriterPoolProcessor implements WARCW
     private static final Logger logger = 
         Logger.getLogger(MongodbWriterProcessor.class.getName());
 
+    /** Annotation of a CrawlURI whose doc was written only after retries, with the number of attempts. */
+    public static final String ANNOTATION_WRITE_ATTEMPTS = "writeAttempts";
+
     private ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> stats = new ConcurrentHashMap<String, ConcurrentMap<String, AtomicLong>>();
 
     private AtomicLong urlsWritten = new AtomicLong();
+
+    /** Latencies and counters of the write path, also registered as an MBean while running. */
+    private final MongodbWriterStats writerStats = new MongodbWriterStats();
+    private ObjectName writerStatsName = null;
     
     /**
      * @see org.bds.io.mongodb.MongodbParameters
      */
     MongodbParameters mongodbParameters = null;
+
+    /** Writes snapshots on background threads, null unless asyncWriterThreads is set. */
+    private MongodbAsyncWriter asyncWriter = null;
+
+    /** Record ids of WARC records written with this processor's settings. */
+    private final RecordIDGenerator recordIDGenerator = new UUIDGenerator();
+
+    /** Works out the _id of a capture's doc, for the write tag. */
+    private MongodbDocumentEncoder keyEncoder = null;
+
+    /** High-water mark of the last checkpoint, saved with it. */
+    private long checkpointedAt = 0;
+    private long checkpointedDocs = 0;
+    private Map<String, Long> checkpointedSpoolSequences = Collections.emptyMap();
+
+    /** Spool high-water marks of the checkpoint the crawl resumes from, until the pool is set up. */
+    private Map<String, Long> resumeSpoolSequences = null;
    
     public synchronized MongodbParameters getMongodbParameters() {
     	return mongodbParameters;
@@ -83,7 +117,9 @@ public class MongodbWriterProcessor extends WriterPoolProcessor implements WARCW
 	 */
 	@Override
 	public List<String> getMetadata() {
-		return null;
+		MongodbParameters parameters = getMongodbParameters();
+		return MongodbWarcExporter.getWarcinfo(parameters == null ? null
+				: "Captures written to MongoDB " + parameters.getHost() + ":" + parameters.getPort() + "/" + parameters.getDatabase());
 	}
 
 	/* (non-Javadoc)
@@ -91,13 +127,115 @@ public class MongodbWriterProcessor extends WriterPoolProcessor implements WARCW
 	 */
 	@Override
 	public RecordIDGenerator getRecordIDGenerator() {
-		return null;
+		return recordIDGenerator;
 	}
     
     
+    /**
+     * @return bytes in the local spool not yet acknowledged by MongoDB, 0 without a spool.
+     */
+    public long getSpoolPendingBytes() {
+    	return getPool() == null ? 0 : ((MongodbWriterPool) getPool()).getSpoolPendingBytes();
+    }
+
+    /**
+     * @return spool segment files on disk, 0 without a spool.
+     */
+    public int getSpoolPendingSegments() {
+    	return getPool() == null ? 0 : ((MongodbWriterPool) getPool()).getSpoolPendingSegments();
+    }
+
+    /**
+     * @return snapshots waiting for an async writer thread, 0 without async writes.
+     */
+    public int getAsyncQueueDepth() {
+    	return asyncWriter == null ? 0 : asyncWriter.getQueueDepth();
+    }
+
+    /**
+     * @return bytes of recordings held by snapshots in the async queue, 0 without async writes.
+     */
+    public long getAsyncQueueBytes() {
+    	return asyncWriter == null ? 0 : asyncWriter.getQueuedBytes();
+    }
+
+    /**
+     * @return total time ToeThreads waited for room in the async queue, in milliseconds.
+     */
+    public long getAsyncQueueBlockedMs() {
+    	return asyncWriter == null ? 0 : asyncWriter.getBlockedMs();
+    }
+
     @Override
     protected void setupPool(final AtomicInteger serialNo) {
-    	setPool(new MongodbWriterPool(serialNo, getMongodbParameters(), this, getPoolMaxActive(), getMaxWaitForIdleMs()));
+    	setPool(new MongodbWriterPool(serialNo, getMongodbParameters(), this, getPoolMaxActive(), getMaxWaitForIdleMs(),
+    			writerStats, resumeSpoolSequences));
+    	// only the first pool resumes, pools set up again on checkpoint keep all their segments
+    	resumeSpoolSequences = null;
+    	keyEncoder = new MongodbDocumentEncoder(getMongodbParameters());
+    	if (asyncWriter == null && getMongodbParameters().isAsyncWrites()) {
+    		asyncWriter = new MongodbAsyncWriter(this, getMongodbParameters().getAsyncQueueCapacity(),
+    				getMongodbParameters().getAsyncQueueBytes(), getMongodbParameters().getAsyncWriterThreads());
+    	}
+    }
+
+    public MongodbWriterStats getWriterStats() {
+    	return writerStats;
+    }
+
+    @Override
+    public synchronized void start() {
+    	if (isRunning()) {
+    		return;
+    	}
+    	super.start();
+    	try {
+    		writerStatsName = new ObjectName("org.bds.io.mongodb:type=MongodbWriterStats,name="
+    				+ ObjectName.quote(getBeanName() == null ? getClass().getSimpleName() : getBeanName()));
+    		ManagementFactory.getPlatformMBeanServer().registerMBean(writerStats, writerStatsName);
+    	} catch (JMException e) {
+    		logger.log(Level.WARNING, "Failed to register writer stats MBean", e);
+    		writerStatsName = null;
+    	}
+    }
+
+    @Override
+    public void stop() {
+    	// write what is queued while the pool is still open
+    	if (asyncWriter != null) {
+    		asyncWriter.close();
+    		asyncWriter = null;
+    	}
+    	super.stop();
+    	// count what the pool flushed and retried while it closed
+    	addAcknowledged();
+    	if (writerStatsName != null) {
+    		try {
+    			ManagementFactory.getPlatformMBeanServer().unregisterMBean(writerStatsName);
+    		} catch (JMException e) {
+    			logger.log(Level.WARNING, "Failed to unregister writer stats MBean", e);
+    		}
+    		writerStatsName = null;
+    	}
+    }
+
+    @Override
+    public void doCheckpoint(Checkpoint checkpointInProgress) throws IOException {
+    	// queued captures belong to this checkpoint, so write them before the pool flushes
+    	if (asyncWriter != null) {
+    		try {
+    			asyncWriter.drain();
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new IOException("Interrupted while draining async writes", e);
+    		}
+    	}
+    	// every capture processed so far has to be acknowledged by MongoDB or forced to the
+    	// spool before the checkpoint completes, a rejected batch fails the checkpoint
+    	checkpointedSpoolSequences = ((MongodbWriterPool) getPool()).checkpoint();
+    	checkpointedAt = System.currentTimeMillis();
+    	checkpointedDocs = writerStats.getDocsWritten();
+    	super.doCheckpoint(checkpointInProgress);
     }
 
     /**
@@ -116,6 +254,9 @@ public class MongodbWriterProcessor extends WriterPoolProcessor implements WARCW
         ReplayInputStream ris = null;
       
         try {
+            if (shouldWriteRevisit(curi)) {
+            	return writeRevisit(curi);
+            }
             if (shouldWrite(curi)) {
                 ris = curi.getRecorder().getRecordedInput().getReplayInputStream();
             	return write(curi, recordLength, ris);
@@ -123,6 +264,7 @@ public class MongodbWriterProcessor extends WriterPoolProcessor implements WARCW
                 copyForwardWriteTagIfDupe(curi);
             }
         } catch (IOException e) {
+            writerStats.writeFailed();
             curi.getNonFatalFailures().add(e);
             logger.log(Level.SEVERE, "Failed write of Records: " +
                 curi.toString(), e);
@@ -182,8 +324,14 @@ public class MongodbWriterProcessor extends WriterPoolProcessor implements WARCW
 			return false;
 		}
 
-		// If the content exceeds the maxContentSize, then dont write.
-		if (curi.getContentSize() > getMaxFileSizeBytes()) {
+		// If the content exceeds the maxContentSize, then dont write, unless large
+		// content is streamed into GridFS or its storage policy leaves it out.
+		boolean gridFs = getMongodbParameters() != null && getMongodbParameters().isStoreLargeContentInGridFs();
+		MongodbParameters.StoragePolicy policy = getMongodbParameters() == null ? null
+				: getMongodbParameters().getStoragePolicy(curi.getContentType());
+		boolean unbounded = gridFs || policy == MongodbParameters.StoragePolicy.LARGE_OBJECT
+				|| policy == MongodbParameters.StoragePolicy.METADATA_ONLY;
+		if (!unbounded && curi.getContentSize() > getMaxFileSizeBytes()) {
 			// content size is too large
 			curi.getAnnotations().add(ANNOTATION_UNWRITTEN + ":size");
 			logger.log(Level.WARNING, "Content size for " + curi.getUURI() + " is too large (" + curi.getContentSize() + ") - maximum content size is: " + getMaxFileSizeBytes());
@@ -193,22 +341,211 @@ public class MongodbWriterProcessor extends WriterPoolProcessor implements WARCW
 		return true;
 	}
 
+	/**
+	 * Whether the CrawlURI is written as a revisit doc: revisits are written and the
+	 * crawler's deduplication gave it a revisit profile, e.g. for a digest identical to
+	 * that of an earlier capture, or a 304 response.
+	 *
+	 * @param curi CrawlURI
+	 *
+	 * @return true if a revisit doc should be written instead of the full capture
+	 */
+	protected boolean shouldWriteRevisit(CrawlURI curi) {
+		if (getMongodbParameters() == null || !getMongodbParameters().isWriteRevisits()) {
+			return false;
+		}
+		if (curi.getFetchStatus() <= 0 || !curi.isHttpTransaction()) {
+			return false;
+		}
+		return curi.isRevisit();
+	}
+
 
     protected ProcessResult write(final CrawlURI curi, long recordLength, InputStream in)
     throws IOException, InterruptedException {
-        MongodbWriter mongodbWriter = (MongodbWriter) getPool().borrowFile();
+        // Content going to GridFS is streamed from the recorder rather than copied, content
+        // left out is not copied at all.
+        MongodbParameters.StoragePolicy policy = getMongodbParameters().getStoragePolicy(curi.getContentType());
+        boolean metadataOnly = policy == MongodbParameters.StoragePolicy.METADATA_ONLY;
+        boolean largeContent = policy == MongodbParameters.StoragePolicy.LARGE_OBJECT
+        		|| (!metadataOnly && MongodbWriter.isLargeContent(getMongodbParameters(), curi.getContentSize()));
+        if (asyncWriter != null && !largeContent) {
+        	// content the pool knows is stored is not copied, the doc only references it
+        	boolean storedContent = getMongodbParameters().isDeduplicateContent()
+        			&& ((MongodbWriterPool) getPool()).isStoredDigest(curi.getContentDigestSchemeString());
+        	MongodbCapture capture = MongodbCapture.snapshot(curi, getServerIp(curi), !metadataOnly && !storedContent);
+        	// tagged by the async writer once the doc is written, see writeSnapshot
+        	asyncWriter.submit(capture);
+        } else {
+        	MongodbCapture capture = MongodbCapture.of(curi, getServerIp(curi));
+        	try {
+        		if (writeCapture(capture)) {
+        			setWriteTag(curi, capture);
+        		}
+        	} finally {
+        		annotateWrite(curi, capture);
+        	}
+        }
+        return checkBytesWritten();
+    }
+
+    /**
+     * @return the IP the CrawlURI was fetched from, as the fetcher noted it or else as the
+     * server cache resolved its host.
+     */
+    protected String getServerIp(final CrawlURI curi) {
+    	if (curi.getServerIP() != null) {
+    		return curi.getServerIP();
+    	}
+    	CrawlHost host = getServerCache().getHostFor(curi.getUURI());
+    	if (host == null || host.getIP() == null) {
+    		throw new NullPointerException("Address is null for " + curi + " " + curi.getVia());
+    	}
+    	return host.getIP().getHostAddress();
+    }
+
+    /**
+     * Write a small doc noting that the content is unchanged since an earlier capture and
+     * where that capture is, without reading the recording.
+     */
+    protected ProcessResult writeRevisit(final CrawlURI curi) throws IOException, InterruptedException {
+    	MongodbCapture capture = MongodbCapture.revisit(curi, getServerIp(curi));
+    	// the write tag keeps pointing at the original, so later revisits refer to it too
+    	copyForwardWriteTagIfDupe(curi);
+    	if (getWriteTag(capture).equals(capture.getRefersTo())) {
+    		// upserted under the key of the original, the revisit would replace the content
+    		curi.getAnnotations().add(ANNOTATION_UNWRITTEN + ":revisitOfSameKey");
+    		return ProcessResult.PROCEED;
+    	}
+    	if (asyncWriter != null) {
+    		asyncWriter.submit(capture);
+    	} else {
+    		try {
+    			writeCapture(capture);
+    		} finally {
+    			annotateWrite(curi, capture);
+    		}
+    	}
+    	return checkBytesWritten();
+    }
+
+    /**
+     * Annotate the CrawlURI of a capture written on its ToeThread with how the write of its
+     * doc ended, if it ended before the writer returned. Batched, spooled and async docs
+     * end after the CrawlURI was released; their outcome is only counted and logged.
+     */
+    protected void annotateWrite(final CrawlURI curi, final MongodbCapture capture) {
+    	if (capture.getWriteOutcome() != null) {
+    		annotateWrite(curi, capture.getWriteOutcome(), capture.getWriteAttempts());
+    	}
+    }
+
+    /**
+     * Annotate a CrawlURI with how the write of its doc ended: why it was not written, and
+     * how many attempts it took if it was retried. Only called on the ToeThread.
+     *
+     * @param curi the CrawlURI of the doc
+     * @param outcome how the write ended
+     * @param attempts bulk writes the doc was sent in
+     */
+    public static void annotateWrite(final CrawlURI curi, final MongodbBulkInserter.Outcome outcome, final int attempts) {
+    	if (outcome != MongodbBulkInserter.Outcome.WRITTEN) {
+    		curi.getAnnotations().add(ANNOTATION_UNWRITTEN + ":" + outcome.getReason());
+    	}
+    	if (attempts > 1) {
+    		curi.getAnnotations().add(ANNOTATION_WRITE_ATTEMPTS + ":" + attempts);
+    	}
+    }
+
+    /**
+     * Record the _id of the capture's doc in the latest fetch history entry, as the WARC
+     * writers record their file name, so a later duplicate can refer to it.
+     */
+    protected void setWriteTag(final CrawlURI curi, final MongodbCapture capture) {
+    	Map<String, Object>[] history = curi.getFetchHistory();
+    	if (history != null && history[0] != null) {
+    		history[0].put(RecrawlAttributeConstants.A_WRITE_TAG, getWriteTag(capture));
+    	}
+    }
+
+    /**
+     * Write a capture submitted to the async writer, on one of its threads, and record the
+     * _id of the doc in the fetch history entry of a snapshot once the writer reports the
+     * write has not failed, as the ToeThread does for the captures it writes itself.
+     *
+     * @param capture a snapshot or a revisit
+     * @throws IOException if the write failed
+     */
+    protected void writeSnapshot(final MongodbCapture capture) throws IOException {
+    	if (!writeCapture(capture) || capture.getFetchHistoryEntry() == null) {
+    		return;
+    	}
+    	MongodbBulkInserter.Outcome outcome = capture.getWriteOutcome();
+    	// no outcome yet for docs batched, spooled or retried in the background
+    	if (outcome == null || outcome == MongodbBulkInserter.Outcome.WRITTEN
+    			|| outcome == MongodbBulkInserter.Outcome.DUPLICATE_KEY) {
+    		capture.getFetchHistoryEntry().put(RecrawlAttributeConstants.A_WRITE_TAG, getWriteTag(capture));
+    	}
+    }
+
+    /**
+     * @return the _id of the capture's doc as a string: its upsert key, or its ObjectId.
+     */
+    protected String getWriteTag(final MongodbCapture capture) {
+    	String key = keyEncoder.getKey(capture.getUrl(), capture.getFetchBeginTime());
+    	return key != null ? key : capture.getId().toString();
+    }
+
+    /**
+     * Borrow a writer from the pool and write one capture with it. Called on the
+     * ToeThread, or on an async writer thread for snapshots.
+     *
+     * @param capture the capture to write
+     * @return false if the writer skipped the capture
+     */
+    protected boolean writeCapture(final MongodbCapture capture) throws IOException {
+        MongodbWriterPool pool = (MongodbWriterPool) getPool();
+        long start = System.nanoTime();
+        MongodbWriter mongodbWriter;
+        // the pool records the time a lease or borrow waited for another thread
+        if (pool.isLeasing()) {
+        	mongodbWriter = pool.lease();
+        } else {
+        	mongodbWriter = (MongodbWriter) pool.borrowFile();
+        }
+        writerStats.recordBorrow(System.nanoTime() - start);
       
-        long position = mongodbWriter.getPosition();
+        boolean written;
         try {                   
-        	mongodbWriter.write(curi, getHostAddress(curi), curi.getRecorder().getRecordedOutput(),
-            		curi.getRecorder().getRecordedInput());
+        	written = mongodbWriter.write(capture);
 		} finally {
-			// log total bytes written
-			setTotalBytesWritten(getTotalBytesWritten() + (mongodbWriter.getPosition() - position));
-			// return the hbaseWriter client back to the pool.
-			getPool().returnFile(mongodbWriter);
+			// count CrawlURIs, records and bytes written, only those of docs MongoDB has acknowledged
+			addAcknowledged();
+			// return the mongodbWriter client back to the pool.
+			if (pool.isLeasing()) {
+				pool.release();
+			} else {
+				pool.returnFile(mongodbWriter);
+			}
         }
-        return checkBytesWritten();
+        return written;
+    }
+    
+    /**
+     * Add the docs, records and bytes of all batches acknowledged since the last call,
+     * including those flushed by the pool's timer, replayed from the spool or retried in
+     * the background, to the CrawlURIs, stats and total bytes written.
+     */
+    protected void addAcknowledged() {
+    	if (getPool() != null) {
+    		MongodbWriterPool pool = (MongodbWriterPool) getPool();
+    		urlsWritten.addAndGet(pool.drainAcknowledgedDocs());
+    		addStats(pool.drainAcknowledgedRecords());
+    		long acknowledged = pool.drainAcknowledgedBytes();
+    		if (acknowledged > 0) {
+    			setTotalBytesWritten(getTotalBytesWritten() + acknowledged);
+    		}
+    	}
     }
     
 
@@ -233,11 +570,50 @@ public class MongodbWriterProcessor extends WriterPoolProcessor implements WARCW
     }
     
     
+    @Override
+    public String report() {
+        addAcknowledged();
+        StringBuilder buf = new StringBuilder();
+        buf.append("Processor: " + getClass().getName() + "\n");
+        buf.append("  Function:          Writes to MongoDB\n");
+        buf.append("  Total CrawlURIs:   " + urlsWritten + "\n");
+        buf.append("  Records:           " + getStat(MongodbWriter.TOTALS, MongodbWriter.NUM_RECORDS) + "\n");
+        buf.append("  Content bytes:     " + getStat(MongodbWriter.TOTALS, MongodbWriter.CONTENT_BYTES) + "\n");
+        if (getMongodbParameters() != null && getMongodbParameters().isWriteRevisits()) {
+        	buf.append("  Revisits:          " + getStat(MongodbWriter.REVISIT_DOCS, MongodbWriter.NUM_RECORDS) + "\n");
+        }
+        buf.append(writerStats.report());
+        if (asyncWriter != null) {
+        	buf.append("  Async queue:       " + getAsyncQueueDepth() + " waiting (" + getAsyncQueueBytes()
+        			+ " bytes), blocked " + getAsyncQueueBlockedMs() + "ms\n");
+        }
+        if (getMongodbParameters() != null && getMongodbParameters().isSpoolWrites()) {
+        	buf.append("  Spool:             " + getSpoolPendingBytes() + " bytes in " + getSpoolPendingSegments() + " segments\n");
+        }
+        buf.append("\n");
+        return buf.toString();
+    }
+
+    protected long getStat(String key, String subkey) {
+        Map<String, AtomicLong> substats = stats.get(key);
+        if (substats == null || substats.get(subkey) == null) {
+            return 0;
+        }
+        return substats.get(subkey).get();
+    }
+
     @Override
     protected JSONObject toCheckpointJson() throws JSONException {
+        addAcknowledged();
         JSONObject json = super.toCheckpointJson();
         json.put("urlsWritten", urlsWritten);
         json.put("stats", stats);
+        json.put("writerStats", writerStats.toJson());
+        JSONObject highWaterMark = new JSONObject();
+        highWaterMark.put("checkpointedAt", checkpointedAt);
+        highWaterMark.put("docsAcknowledged", checkpointedDocs);
+        highWaterMark.put("spoolSequences", checkpointedSpoolSequences);
+        json.put("highWaterMark", highWaterMark);
         return json;
     }
     
@@ -251,6 +627,26 @@ public class MongodbWriterProcessor extends WriterPoolProcessor implements WARCW
             urlsWritten.set(json.getLong("urlsWritten"));
         }
         
+        if (json.has("writerStats")) {
+            writerStats.fromJson(json.getJSONObject("writerStats"));
+        }
+
+        if (json.has("highWaterMark")) {
+            JSONObject highWaterMark = json.getJSONObject("highWaterMark");
+            checkpointedAt = highWaterMark.getLong("checkpointedAt");
+            checkpointedDocs = highWaterMark.getLong("docsAcknowledged");
+            // spooled docs up to the mark are replayed, later ones are set aside
+            resumeSpoolSequences = new HashMap<String, Long>();
+            JSONObject spoolSequences = highWaterMark.getJSONObject("spoolSequences");
+            if (JSONObject.getNames(spoolSequences) != null) {
+                for (String target: JSONObject.getNames(spoolSequences)) {
+                    resumeSpoolSequences.put(target, spoolSequences.getLong(target));
+                }
+            }
+            logger.info("Resuming from checkpoint of " + new Date(checkpointedAt) + " with " + checkpointedDocs
+                    + " docs acknowledged, docs written after it are written again by the resumed crawl");
+        }
+
         if (json.has("stats")) {
             HashMap<String, Map<String, Long>> cpStats = new HashMap<String, Map<String, Long>>();
             JSONObject jsonStats = json.getJSONObject("stats");
@@ -0,0 +1,308 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters and latency histograms of the write path, shared by the processor, its pool,
+ * writers and spools, so a slow crawl can be told apart from a slow MongoDB.
+ *
+ * <p>Latencies are kept in power-of-two buckets of microseconds; percentiles are the
+ * upper bound of the bucket they fall in.
+ */
+public class MongodbWriterStats implements MongodbWriterStatsMBean {
+
+	/** Time to borrow a writer from the pool. */
+	private final Histogram borrow = new Histogram();
+	/** Time to build the doc, including reading the recording and storing large or deduplicated content. */
+	private final Histogram encode = new Histogram();
+	/** Time of one insert or bulk insert, until MongoDB acknowledged it. */
+	private final Histogram insert = new Histogram();
+	/** Docs per insert. */
+	private final Histogram batchSizes = new Histogram();
+
+	private final AtomicLong docsWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong insertErrors = new AtomicLong();
+	private final AtomicLong writeErrors = new AtomicLong();
+	/** Docs written again after a network error or without a primary, and docs whose key was taken. */
+	private final AtomicLong retriedDocs = new AtomicLong();
+	private final AtomicLong duplicateDocs = new AtomicLong();
+	/** Time ToeThreads waited for a writer, and how many of the borrows or leases waited. */
+	private final AtomicLong contentionNanos = new AtomicLong();
+	private final AtomicLong contendedLeases = new AtomicLong();
+	private final long startedAt = System.nanoTime();
+	/** Time counted by the run the counters were restored from, so rates span both runs. */
+	private volatile long restoredNanos = 0;
+
+	/** Limits batches are currently cut at, see {@link MongodbBatchSizer}. */
+	private volatile int batchDocLimit = 0;
+	private volatile long batchByteLimit = 0;
+
+	public void recordBorrow(long nanos) {
+		borrow.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * A borrow or lease that had to wait for another thread. With POOL leasing, a borrow
+	 * that found no idle writer and went to the WriterPool, which takes its global lock;
+	 * with STRIPED leasing, the lease of a stripe another thread held. THREAD leases never
+	 * wait.
+	 *
+	 * @param nanos time waited
+	 */
+	public void recordContention(long nanos) {
+		contentionNanos.addAndGet(nanos);
+		contendedLeases.incrementAndGet();
+	}
+
+	public void recordEncode(long nanos) {
+		encode.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * @param docs number of docs in the insert
+	 * @param nanos time until MongoDB answered
+	 */
+	public void recordInsert(int docs, long nanos) {
+		insert.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		batchSizes.record(docs);
+	}
+
+	/**
+	 * @param docs number of docs MongoDB acknowledged
+	 * @param bytes their recorded bytes
+	 */
+	public void acknowledged(int docs, long bytes) {
+		docsWritten.addAndGet(docs);
+		bytesWritten.addAndGet(bytes);
+	}
+
+	/** An insert or bulk insert MongoDB rejected. */
+	public void insertFailed() {
+		insertErrors.incrementAndGet();
+	}
+
+	/** A CrawlURI that could not be written. */
+	public void writeFailed() {
+		writeErrors.incrementAndGet();
+	}
+
+	/**
+	 * @param docs docs of a bulk write sent again
+	 */
+	public void recordRetry(int docs) {
+		retriedDocs.addAndGet(docs);
+	}
+
+	/**
+	 * @param docs docs not written because a doc with their _id was there already
+	 */
+	public void recordDuplicates(int docs) {
+		duplicateDocs.addAndGet(docs);
+	}
+
+	/**
+	 * @param docs docs at which a batch is written now
+	 * @param bytes bytes at which a batch is written now
+	 */
+	public void recordBatchLimits(int docs, long bytes) {
+		batchDocLimit = docs;
+		batchByteLimit = bytes;
+	}
+
+	public long getDocsWritten() {
+		return docsWritten.get();
+	}
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+	public double getDocsPerSecond() {
+		return perSecond(docsWritten.get());
+	}
+	public double getBytesPerSecond() {
+		return perSecond(bytesWritten.get());
+	}
+	public long getBatches() {
+		return batchSizes.getCount();
+	}
+	public double getMeanBatchSize() {
+		return batchSizes.getMean();
+	}
+	public int getBatchDocLimit() {
+		return batchDocLimit;
+	}
+	public long getBatchByteLimit() {
+		return batchByteLimit;
+	}
+	public long getInsertErrors() {
+		return insertErrors.get();
+	}
+	public long getWriteErrors() {
+		return writeErrors.get();
+	}
+	public long getRetriedDocs() {
+		return retriedDocs.get();
+	}
+	public long getDuplicateDocs() {
+		return duplicateDocs.get();
+	}
+	public double getMeanBorrowMs() {
+		return borrow.getMean() / 1000;
+	}
+	public double getBorrowMs99() {
+		return borrow.getPercentile(0.99) / 1000.0;
+	}
+	public double getContentionMs() {
+		return contentionNanos.get() / 1e6;
+	}
+	public long getContendedLeases() {
+		return contendedLeases.get();
+	}
+	public long getLeases() {
+		return borrow.getCount();
+	}
+	public double getMeanEncodeMs() {
+		return encode.getMean() / 1000;
+	}
+	public double getEncodeMs99() {
+		return encode.getPercentile(0.99) / 1000.0;
+	}
+	public double getMeanInsertMs() {
+		return insert.getMean() / 1000;
+	}
+	public double getInsertMs99() {
+		return insert.getPercentile(0.99) / 1000.0;
+	}
+	public double getMaxInsertMs() {
+		return insert.getMax() / 1000.0;
+	}
+
+	/**
+	 * @return time the counters have been counting for, including the runs they were restored from.
+	 */
+	public long getElapsedMs() {
+		return TimeUnit.NANOSECONDS.toMillis(restoredNanos + System.nanoTime() - startedAt);
+	}
+
+	private double perSecond(long count) {
+		double seconds = (restoredNanos + System.nanoTime() - startedAt) / 1e9;
+		return seconds <= 0 ? 0 : count / seconds;
+	}
+
+	/**
+	 * @return a multi-line summary for the processor report.
+	 */
+	public String report() {
+		StringBuilder buf = new StringBuilder();
+		buf.append(String.format("  Docs written:      %d (%.1f/s)\n", getDocsWritten(), getDocsPerSecond()));
+		buf.append(String.format("  Bytes written:     %d (%.0f/s)\n", getBytesWritten(), getBytesPerSecond()));
+		buf.append(String.format("  Inserts:           %d (mean %.1f docs)\n", getBatches(), getMeanBatchSize()));
+		buf.append(String.format("  Batch limits:      %d docs, %d bytes\n", getBatchDocLimit(), getBatchByteLimit()));
+		buf.append(String.format("  Errors:            %d inserts, %d CrawlURIs\n", getInsertErrors(), getWriteErrors()));
+		buf.append(String.format("  Retries:           %d docs, %d duplicate keys\n", getRetriedDocs(), getDuplicateDocs()));
+		buf.append(String.format("  Borrow ms:         mean %.2f, p99 %.2f\n", getMeanBorrowMs(), getBorrowMs99()));
+		buf.append(String.format("  Contention:        %.1f ms in %d of %d leases\n", getContentionMs(), getContendedLeases(), getLeases()));
+		buf.append(String.format("  Encode ms:         mean %.2f, p99 %.2f\n", getMeanEncodeMs(), getEncodeMs99()));
+		buf.append(String.format("  Insert ms:         mean %.2f, p99 %.2f, max %.2f\n", getMeanInsertMs(), getInsertMs99(), getMaxInsertMs()));
+		return buf.toString();
+	}
+
+	/**
+	 * @return the counters and the time they have been counting for, for the checkpoint.
+	 * Histograms start over after a recovery.
+	 */
+	public JSONObject toJson() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("elapsedMs", getElapsedMs());
+		json.put("docsWritten", docsWritten.get());
+		json.put("bytesWritten", bytesWritten.get());
+		json.put("insertErrors", insertErrors.get());
+		json.put("writeErrors", writeErrors.get());
+		json.put("retriedDocs", retriedDocs.get());
+		json.put("duplicateDocs", duplicateDocs.get());
+		return json;
+	}
+
+	public void fromJson(JSONObject json) throws JSONException {
+		restoredNanos = TimeUnit.MILLISECONDS.toNanos(json.optLong("elapsedMs"));
+		docsWritten.set(json.optLong("docsWritten"));
+		bytesWritten.set(json.optLong("bytesWritten"));
+		insertErrors.set(json.optLong("insertErrors"));
+		writeErrors.set(json.optLong("writeErrors"));
+		retriedDocs.set(json.optLong("retriedDocs"));
+		duplicateDocs.set(json.optLong("duplicateDocs"));
+	}
+
+	/**
+	 * Counts of values in power-of-two buckets: bucket i holds values below 2^i.
+	 */
+	public static class Histogram {
+
+		private static final int BUCKETS = 40;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			int bucket = Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long current;
+			while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+				// retry until the max is at least this value
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public double getMean() {
+			long n = count.get();
+			return n == 0 ? 0 : (double) sum.get() / n;
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * @param fraction e.g. 0.99
+		 * @return the upper bound of the bucket the percentile falls in, at most the max.
+		 */
+		public long getPercentile(double fraction) {
+			long n = count.get();
+			if (n == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(fraction * n);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+				}
+			}
+			return max.get();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+/**
+ * JMX view of {@link MongodbWriterStats}. Latencies are in milliseconds.
+ */
+public interface MongodbWriterStatsMBean {
+
+	long getDocsWritten();
+	long getBytesWritten();
+	double getDocsPerSecond();
+	double getBytesPerSecond();
+
+	long getBatches();
+	double getMeanBatchSize();
+	int getBatchDocLimit();
+	long getBatchByteLimit();
+
+	long getInsertErrors();
+	long getWriteErrors();
+	long getRetriedDocs();
+	long getDuplicateDocs();
+
+	double getMeanBorrowMs();
+	double getBorrowMs99();
+	double getContentionMs();
+	long getContendedLeases();
+	long getLeases();
+	double getMeanEncodeMs();
+	double getEncodeMs99();
+	double getMeanInsertMs();
+	double getInsertMs99();
+	double getMaxInsertMs();
+}
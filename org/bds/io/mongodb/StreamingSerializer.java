@@ -0,0 +1,39 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link Serializer} that compresses while the content is copied, so the
+ * content never has to be held uncompressed in a byte array.
+ */
+public interface StreamingSerializer extends Serializer {
+
+	/**
+	 * @return the name stored with each doc, so readers know how to undo the serialization.
+	 */
+	public String getName();
+
+	/**
+	 * @param out the stream receiving the serialized bytes
+	 * @return a stream that serializes everything written to it into out; closing it closes out.
+	 * @throws IOException
+	 */
+	public OutputStream wrap(OutputStream out) throws IOException;
+
+	/**
+	 * @param in serialized bytes, as written through {@link #wrap(OutputStream)}
+	 * @return a stream of the original bytes
+	 * @throws IOException
+	 */
+	public InputStream unwrap(InputStream in) throws IOException;
+}
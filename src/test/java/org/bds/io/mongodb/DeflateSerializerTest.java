@@ -0,0 +1,86 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import static org.bds.io.mongodb.GzipSerializerTest.page;
+import static org.bds.io.mongodb.GzipSerializerTest.unwrap;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class DeflateSerializerTest {
+
+	private static byte[] trainedDictionary() {
+		DeflateDictionaryTrainer trainer = new DeflateDictionaryTrainer();
+		for (int i = 0; i < 20; i++) {
+			trainer.addSample(page(i));
+		}
+		return trainer.train(DeflateSerializer.MAX_DICTIONARY_SIZE);
+	}
+
+	@Test
+	public void testSerializeRoundTrip() throws IOException {
+		DeflateSerializer serializer = new DeflateSerializer();
+		byte[] page = page(1);
+
+		assertArrayEquals(page, unwrap(serializer, serializer.serialize(page)));
+		serializer.setLevel(Deflater.BEST_SPEED);
+		assertArrayEquals(page, unwrap(serializer, serializer.serialize(page)));
+	}
+
+	@Test
+	public void testDictionaryRoundTrip() throws IOException {
+		byte[] dictionary = trainedDictionary();
+		assertTrue(dictionary.length > 0);
+		assertTrue(dictionary.length <= DeflateSerializer.MAX_DICTIONARY_SIZE);
+
+		DeflateSerializer plain = new DeflateSerializer();
+		DeflateSerializer serializer = new DeflateSerializer();
+		serializer.setDictionary(dictionary);
+		byte[] page = page(100);
+		byte[] serialized = serializer.serialize(page);
+
+		assertTrue(serialized.length < plain.serialize(page).length);
+		assertArrayEquals(page, unwrap(serializer, serialized));
+	}
+
+	@Test
+	public void testWrapRoundTrip() throws IOException {
+		DeflateSerializer serializer = new DeflateSerializer();
+		serializer.setDictionary(trainedDictionary());
+		byte[] page = page(3);
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		OutputStream out = serializer.wrap(serialized);
+		out.write(page, 0, 100);
+		out.write(page, 100, page.length - 100);
+		out.close();
+
+		assertArrayEquals(page, unwrap(serializer, serialized.toByteArray()));
+	}
+
+	@Test
+	public void testDictionaryRequired() throws IOException {
+		DeflateSerializer serializer = new DeflateSerializer();
+		serializer.setDictionary(trainedDictionary());
+		byte[] serialized = serializer.serialize(page(4));
+		try {
+			unwrap(new DeflateSerializer(), serialized);
+			fail("content deflated with a dictionary was read without it");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
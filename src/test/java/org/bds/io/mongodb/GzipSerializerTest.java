@@ -0,0 +1,74 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+public class GzipSerializerTest {
+
+	static byte[] page(final int i) {
+		StringBuilder page = new StringBuilder("<!DOCTYPE html><html><head><title>Page ").append(i)
+				.append("</title><link rel=\"stylesheet\" href=\"/static/site.css\"></head><body>");
+		for (int j = 0; j < 50; j++) {
+			page.append("<div class=\"item\"><a href=\"/item/").append(i * 50 + j).append("\">Item ")
+					.append(j).append("</a></div>");
+		}
+		return page.append("</body></html>").toString().getBytes();
+	}
+
+	static byte[] unwrap(final StreamingSerializer serializer, final byte[] serialized) throws IOException {
+		InputStream in = serializer.unwrap(new ByteArrayInputStream(serialized));
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int n; (n = in.read(buffer)) > 0;) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testSerializeRoundTrip() throws IOException {
+		GzipSerializer serializer = new GzipSerializer();
+		byte[] page = page(1);
+		byte[] serialized = serializer.serialize(page);
+
+		assertTrue(serialized.length < page.length);
+		assertArrayEquals(page, unwrap(serializer, serialized));
+	}
+
+	@Test
+	public void testWrapRoundTrip() throws IOException {
+		GzipSerializer serializer = new GzipSerializer();
+		byte[] page = page(2);
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		OutputStream out = serializer.wrap(serialized);
+		// written in pieces, as streamed recordings are
+		out.write(page, 0, 100);
+		out.write(page, 100, page.length - 100);
+		out.close();
+
+		assertArrayEquals(page, unwrap(serializer, serialized.toByteArray()));
+		assertArrayEquals(new byte[0], unwrap(serializer, serializer.serialize(new byte[0])));
+		assertEquals(GzipSerializer.NAME, serializer.getName());
+	}
+}
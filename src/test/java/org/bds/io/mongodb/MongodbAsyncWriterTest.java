@@ -0,0 +1,147 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The count and byte bounds of the {@link MongodbAsyncWriter} queue, with a writer thread
+ * that holds on to the capture it took until the test lets it go.
+ */
+public class MongodbAsyncWriterTest {
+
+	private static final long TIMEOUT_MS = 10000;
+	private static final String IP = "192.0.2.1";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MongodbStandIn standIn;
+	private MongodbWriterProcessor processor;
+	private MongodbAsyncWriter asyncWriter;
+	// counted down by the writer thread once it holds a capture, and by the test to let it go
+	private final CountDownLatch taken = new CountDownLatch(1);
+	private final CountDownLatch written = new CountDownLatch(1);
+
+	@Before
+	public void setUp() throws IOException {
+		standIn = new MongodbStandIn();
+		processor = TestCaptures.processor(new MongodbWriterProcessor() {
+			@Override
+			protected void writeSnapshot(final MongodbCapture capture) throws IOException {
+				taken.countDown();
+				try {
+					written.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, standIn, new MongodbParameters());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		written.countDown();
+		if (asyncWriter != null) {
+			asyncWriter.close();
+		}
+		standIn.close();
+	}
+
+	private MongodbCapture snapshot(final int i) throws IOException {
+		return MongodbCapture.snapshot(TestCaptures.capture(processor, folder.getRoot(), i,
+				"<html><body>page " + i + "</body></html>", TestCaptures.digest(i)), IP);
+	}
+
+	/**
+	 * Submit a capture on a thread of its own.
+	 */
+	private Thread submit(final MongodbCapture capture) {
+		Thread submitter = new Thread() {
+			public void run() {
+				try {
+					asyncWriter.submit(capture);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		submitter.start();
+		return submitter;
+	}
+
+	@Test
+	public void testSubmitBlocksWhileQueueIsFull() throws Exception {
+		asyncWriter = new MongodbAsyncWriter(processor, 2, 1024 * 1024, 1);
+		asyncWriter.submit(snapshot(0));
+		assertTrue(taken.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		asyncWriter.submit(snapshot(1));
+		asyncWriter.submit(snapshot(2));
+		assertEquals(2, asyncWriter.getQueueDepth());
+
+		Thread blocked = submit(snapshot(3));
+		blocked.join(200);
+		assertTrue(blocked.isAlive());
+
+		written.countDown();
+		blocked.join(TIMEOUT_MS);
+		assertFalse(blocked.isAlive());
+		asyncWriter.drain();
+		assertEquals(4, asyncWriter.getSubmitted());
+		assertEquals(1, asyncWriter.getBlockedSubmits());
+		assertEquals(0, asyncWriter.getQueuedBytes());
+	}
+
+	@Test
+	public void testSubmitBlocksWhileBytesAreHeld() throws Exception {
+		MongodbCapture first = snapshot(0);
+		// room for the first snapshot, not for a second one as well
+		asyncWriter = new MongodbAsyncWriter(processor, 100, first.getSnapshotBytes() * 3 / 2, 1);
+		asyncWriter.submit(first);
+		assertTrue(taken.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		// bytes are held until the capture is written, not only while it is queued
+		assertEquals(0, asyncWriter.getQueueDepth());
+		assertEquals(first.getSnapshotBytes(), asyncWriter.getQueuedBytes());
+
+		Thread blocked = submit(snapshot(1));
+		blocked.join(200);
+		assertTrue(blocked.isAlive());
+
+		written.countDown();
+		blocked.join(TIMEOUT_MS);
+		assertFalse(blocked.isAlive());
+		asyncWriter.drain();
+		assertEquals(1, asyncWriter.getBlockedSubmits());
+		assertEquals(0, asyncWriter.getQueuedBytes());
+	}
+
+	@Test
+	public void testLargerSnapshotThanBoundGoesThroughAlone() throws Exception {
+		asyncWriter = new MongodbAsyncWriter(processor, 100, 1, 1);
+		written.countDown();
+		for (int i = 0; i < 3; i++) {
+			asyncWriter.submit(snapshot(i));
+		}
+		asyncWriter.drain();
+		assertEquals(3, asyncWriter.getSubmitted());
+		assertEquals(0, asyncWriter.getQueuedBytes());
+	}
+}
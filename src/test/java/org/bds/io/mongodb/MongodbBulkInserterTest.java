@@ -0,0 +1,164 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bds.io.mongodb.MongodbBulkInserter.Outcome;
+import org.bds.io.mongodb.MongodbBulkInserter.Result;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+
+/**
+ * Outcomes of bulk writes, classified from the errors a {@link MongodbStandIn} answers with.
+ */
+public class MongodbBulkInserterTest {
+
+	private MongodbStandIn standIn;
+	private MongoClient client;
+	private DBCollection collection;
+	private MongodbParameters parameters;
+	private MongodbWriterStats stats;
+
+	@Before
+	public void setUp() throws IOException {
+		standIn = new MongodbStandIn();
+		client = new MongoClient("127.0.0.1", standIn.getPort());
+		collection = client.getDB("crawl").getCollection("pages");
+		parameters = new MongodbParameters();
+		parameters.setRetryBackoffMs(10);
+		parameters.setMaxWriteRetries(2);
+		stats = new MongodbWriterStats();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		client.close();
+		standIn.close();
+	}
+
+	private MongodbBulkInserter inserter() {
+		return new MongodbBulkInserter(parameters, stats, null);
+	}
+
+	private static List<DBObject> docs(final int n) {
+		List<DBObject> docs = new ArrayList<DBObject>();
+		for (int i = 0; i < n; i++) {
+			docs.add(new BasicDBObject("_id", new ObjectId()).append("curi:url", "http://example.com/" + i));
+		}
+		return docs;
+	}
+
+	@Test
+	public void testClassify() {
+		assertEquals(Outcome.DUPLICATE_KEY, MongodbBulkInserter.classify(11000, "E11000 duplicate key error"));
+		assertEquals(Outcome.TOO_LARGE, MongodbBulkInserter.classify(10334, null));
+		assertEquals(Outcome.NOT_PRIMARY, MongodbBulkInserter.classify(10107, null));
+		assertEquals(Outcome.NOT_PRIMARY, MongodbBulkInserter.classify(-1, "not master"));
+		assertEquals(Outcome.TRANSIENT, MongodbBulkInserter.classify(89, null));
+		assertEquals(Outcome.REJECTED, MongodbBulkInserter.classify(2, "bad value"));
+		assertTrue(Outcome.NOT_PRIMARY.isRetryable());
+		assertTrue(Outcome.TRANSIENT.isRetryable());
+		assertFalse(Outcome.DUPLICATE_KEY.isRetryable());
+		assertFalse(Outcome.REJECTED.isRetryable());
+	}
+
+	@Test
+	public void testWritten() {
+		Result result = inserter().write(collection, docs(10), false);
+
+		assertEquals(10, result.count(Outcome.WRITTEN));
+		assertEquals(0, result.getFailed());
+		assertFalse(result.isRetried());
+		assertEquals(10, standIn.getDocsInserted());
+	}
+
+	@Test
+	public void testDuplicateKeys() {
+		standIn.setDuplicateRate(1);
+		Result result = inserter().write(collection, docs(10), false);
+
+		assertEquals(10, result.count(Outcome.DUPLICATE_KEY));
+		assertEquals(0, result.getFailed());
+		assertEquals(10, stats.getDuplicateDocs());
+		assertEquals(1, standIn.getWrites());
+	}
+
+	@Test
+	public void testNotPrimaryIsRetried() {
+		standIn.setFailWrites(0, 1);
+		Result result = inserter().write(collection, docs(10), false);
+
+		assertEquals(10, result.count(Outcome.WRITTEN));
+		assertTrue(result.isRetried());
+		assertEquals(2, result.getAttempts(0));
+		assertEquals(10, stats.getRetriedDocs());
+		assertEquals(10, standIn.getDocsInserted());
+	}
+
+	@Test
+	public void testNotPrimaryAfterRetries() {
+		standIn.setFailWrites(0, 100);
+		Result result = inserter().write(collection, docs(10), false);
+
+		assertEquals(10, result.count(Outcome.NOT_PRIMARY));
+		assertEquals(10, result.getFailed());
+		assertEquals(parameters.getMaxWriteRetries() + 1, result.getAttempts(0));
+		assertFalse(result.isDeferred(0));
+		assertNotNull(result.getFailure());
+	}
+
+	@Test
+	public void testRetriesDeferredPastMaxSleep() {
+		parameters.setRetryBackoffMs(1000);
+		standIn.setFailWrites(0, 100);
+		Result result = inserter().write(collection, docs(10), false, 100);
+
+		assertEquals(10, result.count(Outcome.NOT_PRIMARY));
+		assertTrue(result.isDeferred(0));
+		assertEquals(1, standIn.getWrites());
+	}
+
+	@Test
+	public void testRejectedIsNotRetried() {
+		standIn.setErrorRate(1);
+		Result result = inserter().write(collection, docs(10), false);
+
+		assertEquals(10, result.count(Outcome.REJECTED));
+		assertEquals(1, result.getAttempts(0));
+		assertEquals(1, standIn.getWrites());
+	}
+
+	@Test
+	public void testTooLargeIsNotSent() {
+		List<DBObject> docs = docs(3);
+		docs.get(1).put("b", new byte[client.getMaxBsonObjectSize() + 1]);
+		Result result = inserter().write(collection, docs, false);
+
+		assertEquals(Outcome.WRITTEN, result.getOutcome(0));
+		assertEquals(Outcome.TOO_LARGE, result.getOutcome(1));
+		assertEquals(0, result.getAttempts(1));
+		assertEquals(Outcome.WRITTEN, result.getOutcome(2));
+		assertEquals(2, standIn.getDocsInserted());
+	}
+}
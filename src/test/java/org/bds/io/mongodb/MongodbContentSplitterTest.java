@@ -0,0 +1,100 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class MongodbContentSplitterTest {
+
+	private static DBObject capture(final MongodbParameters parameters) {
+		return new BasicDBObject("_id", new ObjectId())
+				.append(parameters.getUrlColumnName(), "http://www.example.com/")
+				.append(parameters.getDigestColumnName(), "sha1:ABCDEF")
+				.append(parameters.getCharsetColumnName(), "UTF-8")
+				.append(parameters.getRequestColumnName(), "GET / HTTP/1.1")
+				.append(parameters.getHeadersColumnName(), "HTTP/1.1 200 OK")
+				.append(parameters.getContentColumnName(), new byte[] {1, 2, 3});
+	}
+
+	private static void assertSplitJoin(final MongodbParameters parameters) {
+		MongodbSchema schema = MongodbSchema.of(parameters);
+		MongodbContentSplitter splitter = new MongodbContentSplitter(parameters, null);
+		DBObject original = capture(parameters);
+		// a copy, split removes the recording from the doc it is given
+		DBObject doc = schema.compact(new BasicDBObject(original.toMap()));
+
+		DBObject content = splitter.split(doc);
+		assertEquals(doc.get("_id"), content.get("_id"));
+		assertNull(schema.get(doc, parameters.getContentColumnName()));
+		assertNull(schema.get(doc, parameters.getCharsetColumnName()));
+		assertEquals("sha1:ABCDEF", schema.get(doc, parameters.getDigestColumnName()));
+		assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) schema.get(content, parameters.getContentColumnName()));
+		assertFalse(content.containsField(schema.getPath(parameters.getUrlColumnName())));
+
+		DBObject joined = schema.expand(MongodbContentSplitter.join(doc, content));
+		assertEquals(original.keySet(), joined.keySet());
+		for (String key : original.keySet()) {
+			if (original.get(key) instanceof byte[]) {
+				assertArrayEquals(key, (byte[]) original.get(key), (byte[]) joined.get(key));
+			} else {
+				assertEquals(key, original.get(key), joined.get(key));
+			}
+		}
+	}
+
+	@Test
+	public void testSplitJoin() {
+		assertSplitJoin(new MongodbParameters());
+	}
+
+	@Test
+	public void testSplitJoinCompact() {
+		MongodbParameters parameters = new MongodbParameters();
+		parameters.setCompactSchema(true);
+		assertSplitJoin(parameters);
+	}
+
+	@Test
+	public void testSplitCopyLeavesDoc() {
+		MongodbParameters parameters = new MongodbParameters();
+		parameters.setCompactSchema(true);
+		MongodbSchema schema = MongodbSchema.of(parameters);
+		MongodbContentSplitter splitter = new MongodbContentSplitter(parameters, null);
+		DBObject doc = schema.compact(capture(parameters));
+
+		DBObject copy = MongodbContentSplitter.copy(doc);
+		DBObject content = splitter.split(copy);
+		assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) schema.get(content, parameters.getContentColumnName()));
+		assertNull(schema.get(copy, parameters.getCharsetColumnName()));
+		// the doc keeps its recording, and its groups, for a later retry
+		assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) schema.get(doc, parameters.getContentColumnName()));
+		assertEquals("UTF-8", schema.get(doc, parameters.getCharsetColumnName()));
+	}
+
+	@Test
+	public void testNothingToSplit() {
+		MongodbParameters parameters = new MongodbParameters();
+		MongodbContentSplitter splitter = new MongodbContentSplitter(parameters, null);
+		DBObject doc = new BasicDBObject("_id", 1).append(parameters.getUrlColumnName(), "dns:example.com");
+
+		assertNull(splitter.split(doc));
+		assertSame(doc, MongodbContentSplitter.join(doc, null));
+		assertEquals(2, doc.keySet().size());
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MongodbRouterTest {
+
+	private static final int HOSTS = 30000;
+
+	private static List<MongodbTarget> targets(final int n) {
+		List<MongodbTarget> targets = new ArrayList<MongodbTarget>();
+		for (int i = 0; i < n; i++) {
+			targets.add(MongodbTarget.parse("mongo" + i + ":27017/crawl/pages"));
+		}
+		return targets;
+	}
+
+	@Test
+	public void testSurtHost() {
+		assertEquals("com,example,www,", MongodbRouter.surtHost("www.example.com"));
+		assertEquals("uk,co,example,", MongodbRouter.surtHost("example.co.uk"));
+		assertEquals("", MongodbRouter.surtHost(""));
+	}
+
+	@Test
+	public void testSpreadsHosts() {
+		MongodbRouter router = new MongodbRouter(targets(3), 160);
+		Map<MongodbTarget, Integer> counts = new HashMap<MongodbTarget, Integer>();
+		for (int i = 0; i < HOSTS; i++) {
+			MongodbTarget target = router.route("www.site" + i + ".com");
+			assertSame(target, router.route("www.site" + i + ".com"));
+			Integer count = counts.get(target);
+			counts.put(target, count == null ? 1 : count + 1);
+		}
+		assertEquals(3, counts.size());
+		for (int count : counts.values()) {
+			assertTrue("unbalanced: " + counts, count > HOSTS / 3 * 0.7 && count < HOSTS / 3 * 1.3);
+		}
+	}
+
+	@Test
+	public void testAddedTargetOnlyTakesHosts() {
+		List<MongodbTarget> three = targets(3);
+		List<MongodbTarget> four = new ArrayList<MongodbTarget>(three);
+		MongodbTarget added = MongodbTarget.parse("mongo3:27017/crawl/pages");
+		four.add(added);
+		MongodbRouter before = new MongodbRouter(three, 160);
+		MongodbRouter after = new MongodbRouter(four, 160);
+
+		int moved = 0;
+		for (int i = 0; i < HOSTS; i++) {
+			String host = "www.site" + i + ".com";
+			MongodbTarget target = after.route(host);
+			if (target != before.route(host)) {
+				// a host only ever moves to the new target, never between the old ones
+				assertSame(host, added, target);
+				moved++;
+			}
+		}
+		// about a quarter of the hosts move, not all of them as with a modulo
+		assertTrue("moved " + moved, moved > HOSTS / 4 * 0.7 && moved < HOSTS / 4 * 1.3);
+	}
+
+	@Test
+	public void testSingleTarget() {
+		MongodbTarget target = MongodbTarget.parse("localhost/crawl/pages");
+		MongodbRouter router = new MongodbRouter(Arrays.asList(target), 160);
+		assertSame(target, router.route("www.example.com"));
+		assertSame(target, router.route(""));
+	}
+}
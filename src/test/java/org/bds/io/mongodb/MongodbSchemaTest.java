@@ -0,0 +1,103 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class MongodbSchemaTest {
+
+	private static MongodbParameters compactParameters() {
+		MongodbParameters parameters = new MongodbParameters();
+		parameters.setCompactSchema(true);
+		return parameters;
+	}
+
+	private static DBObject capture(final MongodbParameters parameters) {
+		return new BasicDBObject("_id", new ObjectId())
+				.append(parameters.getUrlColumnName(), "http://www.example.com/")
+				.append(parameters.getIpColumnName(), "192.0.2.1")
+				.append(parameters.getFetchedAtColumnName(), new Date(1414000000000L))
+				.append(parameters.getHeadersColumnName(), "HTTP/1.1 200 OK")
+				.append(parameters.getContentColumnName(), new byte[] {1, 2, 3})
+				.append("extra", 42);
+	}
+
+	@Test
+	public void testCompactExpandRoundTrip() {
+		MongodbParameters parameters = compactParameters();
+		MongodbSchema schema = MongodbSchema.of(parameters);
+		DBObject doc = capture(parameters);
+
+		DBObject compact = schema.compact(doc);
+		assertEquals(parameters.getSchemaVersion(), compact.get(MongodbSchema.VERSION_KEY));
+		assertEquals("http://www.example.com/", ((DBObject) compact.get("m")).get("u"));
+		assertEquals("HTTP/1.1 200 OK", compact.get("h"));
+		assertEquals(42, compact.get("extra"));
+		assertFalse(compact.containsField(parameters.getUrlColumnName()));
+
+		DBObject expanded = schema.expand(compact);
+		assertEquals(doc.keySet(), expanded.keySet());
+		for (String key : doc.keySet()) {
+			assertEquals(key, doc.get(key), expanded.get(key));
+		}
+	}
+
+	@Test
+	public void testGetReadsCompactDocs() {
+		MongodbParameters parameters = compactParameters();
+		MongodbSchema schema = MongodbSchema.of(parameters);
+		DBObject compact = schema.compact(capture(parameters));
+
+		assertEquals("192.0.2.1", schema.get(compact, parameters.getIpColumnName()));
+		assertEquals(new Date(1414000000000L), schema.get(compact, parameters.getFetchedAtColumnName()));
+		assertEquals(42, schema.get(compact, "extra"));
+		assertNull(schema.get(compact, parameters.getViaColumnName()));
+		assertEquals("m.u", schema.getPath(parameters.getUrlColumnName()));
+	}
+
+	@Test
+	public void testIdentityWithoutCompactSchema() {
+		MongodbParameters parameters = new MongodbParameters();
+		MongodbSchema schema = MongodbSchema.of(parameters);
+		DBObject doc = capture(parameters);
+
+		assertFalse(schema.isCompact());
+		assertSame(doc, schema.compact(doc));
+		assertSame(doc, schema.expand(doc));
+		assertEquals(parameters.getUrlColumnName(), schema.getPath(parameters.getUrlColumnName()));
+	}
+
+	@Test
+	public void testExtractRemovesEmptyGroups() {
+		MongodbParameters parameters = compactParameters();
+		MongodbSchema schema = MongodbSchema.of(parameters);
+		DBObject doc = new BasicDBObject("_id", 1).append(parameters.getCharsetColumnName(), "UTF-8")
+				.append(parameters.getContentColumnName(), new byte[] {1});
+		DBObject compact = schema.compact(doc);
+
+		DBObject extracted = schema.extract(compact, Arrays.asList(parameters.getCharsetColumnName()));
+		assertEquals(1, extracted.get("_id"));
+		assertEquals("UTF-8", ((DBObject) extracted.get("c")).get("cs"));
+		assertFalse(compact.containsField("c"));
+		assertTrue(compact.containsField("b"));
+	}
+}
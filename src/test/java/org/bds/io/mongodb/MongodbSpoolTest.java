@@ -0,0 +1,206 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Spool append, recovery of a segment torn by a crash, and replay after failed batches,
+ * against a {@link MongodbStandIn}.
+ */
+public class MongodbSpoolTest {
+
+	private static final long TIMEOUT_MS = 30000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MongodbStandIn standIn;
+	private MongodbParameters parameters;
+	private MongodbWriterStats stats;
+	private MongodbWriterPool pool;
+
+	@Before
+	public void setUp() throws IOException {
+		standIn = new MongodbStandIn();
+		parameters = new MongodbParameters();
+		parameters.setHost("127.0.0.1");
+		parameters.setPort(standIn.getPort());
+		parameters.setDatabase("crawl");
+		parameters.setCollection("pages");
+		parameters.setBulkDocNumber(10);
+		parameters.setMaxBatchAgeMs(600000);
+		parameters.setRetryBackoffMs(10);
+		parameters.setMaxWriteRetries(0);
+		parameters.setSpoolDirectory(folder.getRoot().getPath());
+		stats = new MongodbWriterStats();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (pool != null) {
+			pool.close();
+		}
+		standIn.close();
+	}
+
+	private MongodbSpool openSpool() {
+		pool = new MongodbWriterPool(new AtomicInteger(), parameters, new MongodbWriterProcessor(), 1, 1000, stats);
+		return pool.getTargets().get(0).getSpool();
+	}
+
+	private static void awaitReplay(final MongodbSpool spool) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (spool.getPendingBytes() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals("bytes left in the spool", 0, spool.getPendingBytes());
+	}
+
+	private static DBObject doc(final int i) {
+		return new BasicDBObject("_id", new ObjectId()).append("curi:url", "http://example.com/" + i);
+	}
+
+	@Test
+	public void testAppendedDocsAreReplayed() throws Exception {
+		MongodbSpool spool = openSpool();
+		for (int i = 0; i < 25; i++) {
+			spool.append(doc(i), 100, 40);
+		}
+		spool.checkpoint();
+		awaitReplay(spool);
+
+		assertEquals(25, standIn.getDocsInserted());
+		assertEquals(25, stats.getDocsWritten());
+		assertEquals(2500, stats.getBytesWritten());
+		assertEquals(25, pool.drainAcknowledgedDocs());
+		Map<String, Long> records = pool.drainAcknowledgedRecords().get(MongodbWriter.DOCS);
+		assertEquals(25, (long) records.get(MongodbWriter.NUM_RECORDS));
+		assertEquals(1000, (long) records.get(MongodbWriter.CONTENT_BYTES));
+		assertEquals(0, MongodbSpool.listSegments(folder.getRoot()).length);
+	}
+
+	@Test
+	public void testConcurrentAppendsAreSyncedAndReplayed() throws Exception {
+		// segments roll over every few docs while the appenders force them to disk
+		parameters.setSpoolSegmentSize(4096);
+		parameters.setSpoolSyncIntervalMs(1);
+		final MongodbSpool spool = openSpool();
+		final AtomicInteger failed = new AtomicInteger();
+		Thread[] appenders = new Thread[4];
+		for (int t = 0; t < appenders.length; t++) {
+			final int first = t * 50;
+			appenders[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = first; i < first + 50; i++) {
+							spool.append(doc(i), 10, 4);
+						}
+					} catch (IOException e) {
+						failed.incrementAndGet();
+					}
+				}
+			};
+			appenders[t].start();
+		}
+		for (Thread appender : appenders) {
+			appender.join();
+		}
+		spool.checkpoint();
+		awaitReplay(spool);
+
+		assertEquals(0, failed.get());
+		assertEquals(200, standIn.getDocsInserted());
+		assertEquals(200, stats.getDocsWritten());
+		assertEquals(2000, stats.getBytesWritten());
+	}
+
+	@Test
+	public void testTornRecordIsIgnored() throws Exception {
+		// a segment left by a crash in the middle of its sixth record
+		File segment = new File(folder.getRoot(), String.format("%s%016d%s", MongodbSpool.SEGMENT_PREFIX, 0,
+				MongodbSpool.SEGMENT_SUFFIX));
+		FileOutputStream out = new FileOutputStream(segment);
+		try {
+			for (int i = 0; i < 6; i++) {
+				byte[] bson = new BasicBSONEncoder().encode(doc(i));
+				ByteBuffer record = ByteBuffer.allocate(16 + bson.length).order(ByteOrder.LITTLE_ENDIAN);
+				record.putLong(100).putLong(40).put(bson);
+				out.write(record.array(), 0, i < 5 ? record.capacity() : record.capacity() / 2);
+			}
+		} finally {
+			out.close();
+		}
+
+		MongodbSpool spool = openSpool();
+		awaitReplay(spool);
+
+		assertEquals(5, standIn.getDocsInserted());
+		assertEquals(5, stats.getDocsWritten());
+		assertFalse(segment.exists());
+	}
+
+	@Test
+	public void testReplayResumesAfterFailedBatch() throws Exception {
+		// the fourth of ten batches fails, the replay is retried from that batch on
+		standIn.setFailWrites(3, 1);
+		MongodbSpool spool = openSpool();
+		for (int i = 0; i < 100; i++) {
+			spool.append(doc(i), 10, 4);
+		}
+		spool.checkpoint();
+		awaitReplay(spool);
+
+		assertEquals(1, standIn.getFailedWrites());
+		assertEquals(100, standIn.getDocsInserted());
+		assertEquals(100, stats.getDocsWritten());
+		assertEquals(1000, stats.getBytesWritten());
+	}
+
+	@Test
+	public void testRejectedDocsFailReplayWithoutContinueOnError() throws Exception {
+		parameters.setContinueOnError(false);
+		standIn.setErrorRate(1);
+		MongodbSpool spool = openSpool();
+		for (int i = 0; i < 10; i++) {
+			spool.append(doc(i), 10, 4);
+		}
+		spool.checkpoint();
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (standIn.getFailedWrites() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+
+		assertEquals(0, stats.getDocsWritten());
+		assertEquals(1, spool.getPendingSegments());
+		standIn.setErrorRate(0);
+		awaitReplay(spool);
+		assertEquals(10, stats.getDocsWritten());
+	}
+}
@@ -0,0 +1,423 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+
+/**
+ * An in-process server speaking just enough of the MongoDB wire protocol for the writer:
+ * the handshake, MONGODB-CR authentication, inserts as write commands or OP_INSERT, index
+ * creation and empty query results. Documents are counted and thrown away, unless they
+ * are asked to be kept for a test to look at.
+ *
+ * <p>Every write can be delayed by a fixed latency plus random jitter, and a fraction of
+ * the write commands can be failed, to see how the writer behaves against a slow or
+ * failing server. A fraction of the docs can be answered as duplicate keys, and for a
+ * while the server can answer every write as a secondary would during a failover.
+ */
+public class MongodbStandIn {
+
+	private static final Logger logger = Logger.getLogger(MongodbStandIn.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int OP_REPLY = 1;
+	private static final int OP_UPDATE = 2001;
+	private static final int OP_INSERT = 2002;
+	private static final int OP_QUERY = 2004;
+	private static final int OP_GET_MORE = 2005;
+	private static final int OP_DELETE = 2006;
+
+	private final ServerSocket serverSocket;
+	private final List<Socket> connections = new CopyOnWriteArrayList<Socket>();
+	private final AtomicInteger nextRequestId = new AtomicInteger();
+	private final Random random = new Random();
+	private volatile boolean running = true;
+
+	private volatile long latencyMs = 0;
+	private volatile long jitterMs = 0;
+	private volatile double errorRate = 0;
+	private volatile double duplicateRate = 0;
+	private volatile long failoverFrom = 0;
+	private volatile long failoverUntil = 0;
+	private volatile long failWritesFrom = 0;
+	private volatile long failWritesUntil = 0;
+
+	private final AtomicLong docsInserted = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong failedWrites = new AtomicLong();
+
+	// Docs written by write commands by collection name, only with keepDocs
+	private volatile boolean keepDocs = false;
+	private final ConcurrentMap<String, List<BSONObject>> keptDocs = new ConcurrentHashMap<String, List<BSONObject>>();
+
+	/**
+	 * Start listening on a free port of the loopback interface.
+	 */
+	public MongodbStandIn() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "MongodbStandIn-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @param latencyMs delay before every write is answered
+	 * @param jitterMs up to this much more delay, uniformly distributed
+	 */
+	public void setLatency(final long latencyMs, final long jitterMs) {
+		this.latencyMs = latencyMs;
+		this.jitterMs = jitterMs;
+	}
+
+	/**
+	 * @param errorRate fraction of write commands answered with an error, between 0 and 1
+	 */
+	public void setErrorRate(final double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * @param duplicateRate fraction of inserted docs answered with a duplicate key error, between 0 and 1
+	 */
+	public void setDuplicateRate(final double duplicateRate) {
+		this.duplicateRate = duplicateRate;
+	}
+
+	/**
+	 * Answer every write with "not master" for a while, as a former primary does until
+	 * the driver notices the new one.
+	 *
+	 * @param afterMs time from now the failover starts
+	 * @param durationMs time it lasts
+	 */
+	public void setFailover(final long afterMs, final long durationMs) {
+		failoverFrom = System.currentTimeMillis() + afterMs;
+		failoverUntil = failoverFrom + durationMs;
+	}
+
+	/**
+	 * Answer some writes with "not master", to fail exactly the writes a test expects.
+	 *
+	 * @param fromWrite writes answered so far before the first failing one
+	 * @param count writes that fail
+	 */
+	public void setFailWrites(final long fromWrite, final long count) {
+		failWritesFrom = fromWrite;
+		failWritesUntil = fromWrite + count;
+	}
+
+	/**
+	 * @param keepDocs true to keep the docs written from now on, see {@link #getDocs(String)}
+	 */
+	public void setKeepDocs(final boolean keepDocs) {
+		this.keepDocs = keepDocs;
+	}
+
+	/**
+	 * @param collection name of a collection, without the database
+	 * @return the docs inserted into it, or replacing a doc, since keepDocs was set, in the
+	 * order they were received.
+	 */
+	public List<BSONObject> getDocs(final String collection) {
+		List<BSONObject> docs = keptDocs.get(collection);
+		return docs == null ? new ArrayList<BSONObject>() : new ArrayList<BSONObject>(docs);
+	}
+
+	public long getDocsInserted() {
+		return docsInserted.get();
+	}
+	public long getWrites() {
+		return writes.get();
+	}
+	public long getFailedWrites() {
+		return failedWrites.get();
+	}
+
+	public void close() throws IOException {
+		running = false;
+		serverSocket.close();
+		for (Socket connection : connections) {
+			connection.close();
+		}
+	}
+
+	private void accept() {
+		while (running) {
+			try {
+				final Socket connection = serverSocket.accept();
+				connection.setTcpNoDelay(true);
+				connections.add(connection);
+				Thread handler = new Thread(new Runnable() {
+					public void run() {
+						serve(connection);
+					}
+				}, "MongodbStandIn-connection-" + connections.size());
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException e) {
+				if (running) {
+					logger.log(Level.WARNING, "Failed accept", e);
+				}
+			}
+		}
+	}
+
+	private void serve(final Socket connection) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+			byte[] lengthBytes = new byte[4];
+			while (running) {
+				try {
+					in.readFully(lengthBytes);
+				} catch (EOFException e) {
+					break;
+				}
+				int length = ByteBuffer.wrap(lengthBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+				byte[] message = new byte[length - 4];
+				in.readFully(message);
+				ByteBuffer buffer = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+				int requestId = buffer.getInt();
+				buffer.getInt(); // responseTo
+				int opCode = buffer.getInt();
+
+				BSONObject reply = handle(opCode, buffer);
+				if (reply != null) {
+					out.write(encodeReply(requestId, opCode == OP_GET_MORE ? null : reply));
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				logger.log(Level.FINE, "Connection closed", e);
+			}
+		} finally {
+			connections.remove(connection);
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+	}
+
+	/**
+	 * @return the doc to answer with, an empty doc for a reply without documents, or null
+	 * for messages that get no reply.
+	 */
+	private BSONObject handle(final int opCode, final ByteBuffer buffer) throws IOException {
+		switch (opCode) {
+		case OP_QUERY: {
+			buffer.getInt(); // flags
+			String collection = readCString(buffer);
+			buffer.getInt(); // numberToSkip
+			buffer.getInt(); // numberToReturn
+			BSONObject query = readDocument(buffer);
+			if (collection.endsWith(".$cmd")) {
+				return command(query);
+			}
+			// queries find nothing
+			return new BasicBSONObject();
+		}
+		case OP_INSERT: {
+			buffer.getInt(); // flags
+			readCString(buffer);
+			int docs = 0;
+			while (buffer.hasRemaining()) {
+				int length = buffer.getInt(buffer.position());
+				buffer.position(buffer.position() + length);
+				docs++;
+			}
+			delay();
+			writes.incrementAndGet();
+			docsInserted.addAndGet(docs);
+			return null;
+		}
+		case OP_GET_MORE:
+			return new BasicBSONObject();
+		case OP_UPDATE:
+		case OP_DELETE:
+			delay();
+			writes.incrementAndGet();
+			return null;
+		default:
+			// OP_KILL_CURSORS and anything else get no reply
+			return null;
+		}
+	}
+
+	private BSONObject command(final BSONObject command) {
+		String name = command.keySet().iterator().next();
+		BasicBSONObject reply = new BasicBSONObject();
+		if ("isMaster".equalsIgnoreCase(name)) {
+			reply.put("ismaster", true);
+			reply.put("maxBsonObjectSize", 16 * 1024 * 1024);
+			reply.put("maxMessageSizeBytes", 48000000);
+			reply.put("maxWriteBatchSize", 1000);
+			reply.put("localTime", new Date());
+			reply.put("minWireVersion", 0);
+			reply.put("maxWireVersion", 2);
+		} else if ("buildinfo".equalsIgnoreCase(name)) {
+			// the driver reads the server version from this on connect
+			reply.put("version", "2.6.0");
+			reply.put("versionArray", Arrays.asList(2, 6, 0, 0));
+		} else if ("getnonce".equals(name)) {
+			reply.put("nonce", Long.toHexString(random.nextLong()));
+		} else if ("insert".equals(name) || "update".equals(name) || "delete".equals(name)) {
+			delay();
+			long write = writes.incrementAndGet();
+			if (errorRate > 0 && random.nextDouble() < errorRate) {
+				failedWrites.incrementAndGet();
+				reply.put("ok", 0.0);
+				reply.put("errmsg", "stand-in: injected failure");
+				reply.put("code", 8000);
+				return reply;
+			}
+			long now = System.currentTimeMillis();
+			if ((now >= failoverFrom && now < failoverUntil) || (write > failWritesFrom && write <= failWritesUntil)) {
+				failedWrites.incrementAndGet();
+				reply.put("ok", 0.0);
+				reply.put("errmsg", "not master");
+				reply.put("code", 10107);
+				return reply;
+			}
+			int n = 0;
+			Object docs = command.get("insert".equals(name) ? "documents" : "update".equals(name) ? "updates" : "deletes");
+			if (docs instanceof List) {
+				n = ((List<?>) docs).size();
+			}
+			boolean[] duplicate = new boolean[n];
+			if ("insert".equals(name) && duplicateRate > 0) {
+				List<BSONObject> writeErrors = new ArrayList<BSONObject>();
+				for (int i = 0; i < n; i++) {
+					if (random.nextDouble() < duplicateRate) {
+						BasicBSONObject error = new BasicBSONObject("index", i);
+						error.put("code", 11000);
+						error.put("errmsg", "E11000 duplicate key error index: stand-in");
+						writeErrors.add(error);
+						duplicate[i] = true;
+					}
+				}
+				if (!writeErrors.isEmpty()) {
+					reply.put("writeErrors", writeErrors);
+					n -= writeErrors.size();
+				}
+			}
+			if (keepDocs && docs instanceof List && !"delete".equals(name)) {
+				keep(command.get(name).toString(), (List<?>) docs, "update".equals(name), duplicate);
+			}
+			if (!"delete".equals(name)) {
+				// an upsert inserts or replaces a whole doc, so it counts as one written
+				docsInserted.addAndGet(n);
+			}
+			reply.put("n", n);
+		} else {
+			// authenticate, createIndexes, count, ping, getlasterror...
+			reply.put("n", 0);
+		}
+		reply.put("ok", 1.0);
+		return reply;
+	}
+
+	private void keep(final String collection, final List<?> docs, final boolean update, final boolean[] duplicate) {
+		List<BSONObject> kept = keptDocs.get(collection);
+		if (kept == null) {
+			keptDocs.putIfAbsent(collection, new CopyOnWriteArrayList<BSONObject>());
+			kept = keptDocs.get(collection);
+		}
+		for (int i = 0; i < docs.size(); i++) {
+			if (!duplicate[i]) {
+				BSONObject doc = (BSONObject) docs.get(i);
+				// an update carries the replacement doc in u
+				kept.add(update ? (BSONObject) doc.get("u") : doc);
+			}
+		}
+	}
+
+	private void delay() {
+		long delay = latencyMs + (jitterMs > 0 ? (long) (random.nextDouble() * jitterMs) : 0);
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private byte[] encodeReply(final int responseTo, final BSONObject reply) throws IOException {
+		byte[] doc = reply == null || reply.keySet().isEmpty() ? new byte[0] : new BasicBSONEncoder().encode(reply);
+		ByteBuffer header = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(36 + doc.length);
+		header.putInt(nextRequestId.incrementAndGet());
+		header.putInt(responseTo);
+		header.putInt(OP_REPLY);
+		header.putInt(0); // responseFlags
+		header.putLong(0); // cursorID
+		header.putInt(0); // startingFrom
+		header.putInt(doc.length == 0 ? 0 : 1);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(36 + doc.length);
+		bytes.write(header.array());
+		bytes.write(doc);
+		return bytes.toByteArray();
+	}
+
+	private static String readCString(final ByteBuffer buffer) {
+		int start = buffer.position();
+		while (buffer.get() != 0) {
+			// find the terminating zero
+		}
+		return new String(buffer.array(), start, buffer.position() - start - 1, UTF8);
+	}
+
+	private static BSONObject readDocument(final ByteBuffer buffer) {
+		int length = buffer.getInt(buffer.position());
+		byte[] bson = new byte[length];
+		buffer.get(bson);
+		return new BasicBSONDecoder().readObject(bson);
+	}
+}
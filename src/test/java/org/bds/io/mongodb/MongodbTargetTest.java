@@ -0,0 +1,92 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.DBCollection;
+
+/**
+ * Partitions of a {@link MongodbTarget} by fetch time, against a {@link MongodbStandIn}.
+ */
+public class MongodbTargetTest {
+
+	private static final long DAY = MongodbParameters.Partitioning.DAILY.getPeriodMs();
+	// 2014-10-21T00:00:00Z
+	private static final long TODAY = 1413849600000L;
+
+	private MongodbStandIn standIn;
+	private MongodbParameters parameters;
+	private MongodbTarget target;
+
+	@Before
+	public void setUp() throws IOException {
+		standIn = new MongodbStandIn();
+		parameters = new MongodbParameters();
+		parameters.setPartitioning(MongodbParameters.Partitioning.DAILY);
+		target = new MongodbTarget("127.0.0.1", standIn.getPort(), "crawl", "pages");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		target.close();
+		standIn.close();
+	}
+
+	private void open() {
+		target.open(parameters, 1, new Executor() {
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+	}
+
+	@Test
+	public void testPartitionOfFetchTime() {
+		open();
+		assertEquals("pages_20141021", target.getPartitionName(TODAY));
+		assertEquals("pages_20141021", target.getDBCollection(TODAY + DAY - 1).getName());
+		assertEquals("pages_20141022", target.getDBCollection(TODAY + DAY).getName());
+		assertSame(target.getDBCollection(TODAY), target.getDBCollection(TODAY + 1000));
+	}
+
+	@Test
+	public void testEvictionKeepsPreviousCurrentAndNextPartition() {
+		open();
+		DBCollection[] partitions = new DBCollection[5];
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i] = target.getDBCollection(TODAY + (i - 3) * DAY);
+		}
+
+		assertEquals(2, target.evictPartitions(TODAY + DAY / 2));
+		assertSame(partitions[2], target.getDBCollection(TODAY - DAY));
+		assertSame(partitions[3], target.getDBCollection(TODAY));
+		assertSame(partitions[4], target.getDBCollection(TODAY + DAY));
+		assertEquals(0, target.evictPartitions(TODAY + DAY / 2));
+		// a late doc resolves a forgotten partition again
+		assertEquals(partitions[0].getName(), target.getDBCollection(TODAY - 3 * DAY).getName());
+		assertEquals(1, target.evictPartitions(TODAY + DAY / 2));
+	}
+
+	@Test
+	public void testNothingToEvictWithoutPartitioning() {
+		parameters.setPartitioning(MongodbParameters.Partitioning.NONE);
+		open();
+		assertSame(target.getDBCollection(), target.getDBCollection(TODAY));
+		assertEquals(0, target.evictPartitions(TODAY));
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writers leased by ToeThreads with STRIPED and THREAD leasing, against a {@link MongodbStandIn}.
+ */
+public class MongodbWriterPoolTest {
+
+	private static final String IP = "192.0.2.1";
+	private static final int THREADS = 4;
+	private static final int CAPTURES_PER_THREAD = 25;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MongodbStandIn standIn;
+	private MongodbParameters parameters;
+	private MongodbWriterProcessor processor;
+	private MongodbWriterStats stats;
+	private MongodbWriterPool pool;
+
+	@Before
+	public void setUp() throws IOException {
+		standIn = new MongodbStandIn();
+		parameters = new MongodbParameters();
+		parameters.setBulkDocNumber(10);
+		parameters.setMaxBatchAgeMs(0);
+		// only resolves the IPs of the captures, the pool is made by the tests
+		processor = TestCaptures.processor(standIn, parameters);
+		stats = new MongodbWriterStats();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (pool != null) {
+			pool.close();
+		}
+		standIn.close();
+	}
+
+	private MongodbWriterPool openPool() {
+		pool = new MongodbWriterPool(new AtomicInteger(), parameters, processor, THREADS, 1000, stats);
+		return pool;
+	}
+
+	/**
+	 * Write the captures of each thread on a thread of its own, a lease per capture.
+	 */
+	private void writeOnThreads() throws Exception {
+		final List<List<MongodbCapture>> captures = new ArrayList<List<MongodbCapture>>();
+		for (int t = 0; t < THREADS; t++) {
+			List<MongodbCapture> own = new ArrayList<MongodbCapture>();
+			for (int i = t * CAPTURES_PER_THREAD; i < (t + 1) * CAPTURES_PER_THREAD; i++) {
+				own.add(MongodbCapture.of(TestCaptures.capture(processor, folder.getRoot(), i,
+						"<html><body>page " + i + "</body></html>", TestCaptures.digest(i)), IP));
+			}
+			captures.add(own);
+		}
+		final AtomicInteger failed = new AtomicInteger();
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final List<MongodbCapture> own = captures.get(t);
+			threads[t] = new Thread("ToeThread #" + t) {
+				public void run() {
+					for (MongodbCapture capture : own) {
+						MongodbWriter writer = pool.lease();
+						try {
+							writer.write(capture);
+						} catch (IOException e) {
+							failed.incrementAndGet();
+						} finally {
+							pool.release();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, failed.get());
+	}
+
+	@Test
+	public void testStripedLeasingWritesEveryDoc() throws Exception {
+		parameters.setWriterLeasing(MongodbParameters.WriterLeasing.STRIPED);
+		// two threads share each stripe
+		parameters.setWriterStripes(2);
+		openPool();
+		writeOnThreads();
+		pool.close();
+
+		assertEquals(THREADS * CAPTURES_PER_THREAD, standIn.getDocsInserted());
+		assertEquals(THREADS * CAPTURES_PER_THREAD, stats.getDocsWritten());
+		assertEquals(THREADS * CAPTURES_PER_THREAD, pool.drainAcknowledgedDocs());
+		pool = null;
+	}
+
+	@Test
+	public void testThreadLeasingWritesEveryDoc() throws Exception {
+		parameters.setWriterLeasing(MongodbParameters.WriterLeasing.THREAD);
+		openPool();
+		writeOnThreads();
+		pool.close();
+
+		assertEquals(THREADS * CAPTURES_PER_THREAD, standIn.getDocsInserted());
+		assertEquals(THREADS * CAPTURES_PER_THREAD, stats.getDocsWritten());
+		assertEquals(THREADS * CAPTURES_PER_THREAD, pool.drainAcknowledgedDocs());
+		assertEquals(0, stats.getContendedLeases());
+		pool = null;
+	}
+
+	@Test
+	public void testWriterOfEndedThreadIsFlushed() throws Exception {
+		parameters.setWriterLeasing(MongodbParameters.WriterLeasing.THREAD);
+		openPool();
+		final List<MongodbCapture> captures = new ArrayList<MongodbCapture>();
+		for (int i = 0; i < 5; i++) {
+			captures.add(MongodbCapture.of(TestCaptures.capture(processor, folder.getRoot(), i,
+					"<html><body>page " + i + "</body></html>", TestCaptures.digest(i)), IP));
+		}
+		// the thread ends with its docs in a batch that is not full
+		Thread thread = new Thread("ToeThread #0") {
+			public void run() {
+				for (MongodbCapture capture : captures) {
+					MongodbWriter writer = pool.lease();
+					try {
+						writer.write(capture);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					} finally {
+						pool.release();
+					}
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		assertEquals(0, standIn.getDocsInserted());
+
+		pool.retireEndedThreadWriters();
+		assertEquals(5, standIn.getDocsInserted());
+		assertEquals(5, pool.drainAcknowledgedDocs());
+	}
+}
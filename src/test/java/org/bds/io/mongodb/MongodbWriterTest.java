@@ -0,0 +1,330 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.archive.modules.CrawlURI;
+import org.archive.modules.recrawl.RecrawlAttributeConstants;
+import org.bson.BSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The write path of {@link MongodbWriter} through the processor, against a {@link MongodbStandIn}.
+ */
+public class MongodbWriterTest {
+
+	private static final long TIMEOUT_MS = 10000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MongodbStandIn standIn;
+	private MongodbParameters parameters;
+	private MongodbWriterProcessor processor;
+
+	@Before
+	public void setUp() throws IOException {
+		standIn = new MongodbStandIn();
+		standIn.setKeepDocs(true);
+		parameters = new MongodbParameters();
+		parameters.setRetryBackoffMs(10);
+		parameters.setMaxWriteRetries(3);
+		processor = TestCaptures.processor(standIn, parameters);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		processor.stop();
+		standIn.close();
+	}
+
+	private static String page(final int i) {
+		return "<html><body>page " + i + "</body></html>";
+	}
+
+	@Test
+	public void testDeferredSplitContentKeepsBody() throws Exception {
+		parameters.setSplitContent(true);
+		parameters.setBulkDocNumber(1);
+		// the content write fails once and is not retried inline, the pool retries the doc
+		parameters.setMaxInlineRetryMs(0);
+		standIn.setFailWrites(0, 1);
+		processor.start();
+
+		processor.innerProcessResult(TestCaptures.capture(processor, folder.getRoot(), 1, page(1), TestCaptures.digest(1)));
+		// waits for the retries
+		processor.stop();
+
+		assertEquals(1, standIn.getFailedWrites());
+		List<BSONObject> contents = standIn.getDocs("pages.content");
+		assertEquals(1, contents.size());
+		assertEquals(page(1), contents.get(0).get(parameters.getContentColumnName()));
+		List<BSONObject> docs = standIn.getDocs("pages");
+		assertEquals(1, docs.size());
+		assertEquals(contents.get(0).get("_id"), docs.get(0).get("_id"));
+		assertFalse(docs.get(0).containsField(parameters.getContentColumnName()));
+		assertEquals(1, processor.getWriterStats().getDocsWritten());
+	}
+
+	@Test
+	public void testDeferredSplitContentInBatchKeepsBody() throws Exception {
+		parameters.setSplitContent(true);
+		parameters.setBulkDocNumber(5);
+		parameters.setMaxInlineRetryMs(0);
+		standIn.setFailWrites(0, 1);
+		processor.start();
+
+		for (int i = 0; i < 5; i++) {
+			processor.innerProcessResult(TestCaptures.capture(processor, folder.getRoot(), i, page(i), TestCaptures.digest(i)));
+		}
+		processor.stop();
+
+		List<BSONObject> contents = standIn.getDocs("pages.content");
+		assertEquals(5, contents.size());
+		for (BSONObject content : contents) {
+			assertEquals(String.class, content.get(parameters.getContentColumnName()).getClass());
+		}
+		assertEquals(5, standIn.getDocs("pages").size());
+		assertNull(standIn.getDocs("pages").get(0).get(parameters.getContentColumnName()));
+		assertEquals(5, processor.getWriterStats().getDocsWritten());
+	}
+
+	@Test
+	public void testRecordsAreCountedOnceAcknowledged() throws Exception {
+		parameters.setBulkDocNumber(5);
+		parameters.setMaxBatchAgeMs(0);
+		processor.start();
+
+		long contentBytes = 0;
+		for (int i = 0; i < 5; i++) {
+			CrawlURI curi = TestCaptures.capture(processor, folder.getRoot(), i, page(i), TestCaptures.digest(i));
+			contentBytes += curi.getContentSize();
+			processor.innerProcessResult(curi);
+			if (i == 3) {
+				// four docs wait in the batch
+				processor.addAcknowledged();
+				assertEquals(0, processor.getStat(MongodbWriter.TOTALS, MongodbWriter.NUM_RECORDS));
+				assertEquals(0, processor.getStat(MongodbWriter.TOTALS, MongodbWriter.CONTENT_BYTES));
+			}
+		}
+		processor.addAcknowledged();
+
+		assertEquals(5, processor.getStat(MongodbWriter.DOCS, MongodbWriter.NUM_RECORDS));
+		assertEquals(5, processor.getStat(MongodbWriter.TOTALS, MongodbWriter.NUM_RECORDS));
+		assertEquals(contentBytes, processor.getStat(MongodbWriter.TOTALS, MongodbWriter.CONTENT_BYTES));
+	}
+
+	@Test
+	public void testRejectedDocsAreNotCounted() throws Exception {
+		parameters.setBulkDocNumber(1);
+		standIn.setErrorRate(1);
+		processor.start();
+
+		for (int i = 0; i < 3; i++) {
+			processor.innerProcessResult(TestCaptures.capture(processor, folder.getRoot(), i, page(i), TestCaptures.digest(i)));
+		}
+		processor.stop();
+
+		assertEquals(3, processor.getWriterStats().getWriteErrors());
+		assertEquals(0, processor.getStat(MongodbWriter.TOTALS, MongodbWriter.NUM_RECORDS));
+		assertEquals(0, processor.getStat(MongodbWriter.TOTALS, MongodbWriter.CONTENT_BYTES));
+	}
+
+	/**
+	 * @return the latest fetch history entry of a new history of the CrawlURI.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> fetchHistory(final CrawlURI curi) {
+		curi.setFetchHistory(new HashMap[] {new HashMap<String, Object>(), null});
+		return curi.getFetchHistory()[0];
+	}
+
+	@Test
+	public void testAsyncWriteTagIsSetOnceWritten() throws Exception {
+		parameters.setAsyncWriterThreads(1);
+		parameters.setBulkDocNumber(1);
+		standIn.setErrorRate(1);
+		processor.start();
+
+		CrawlURI rejected = TestCaptures.capture(processor, folder.getRoot(), 0, page(0), TestCaptures.digest(0));
+		Map<String, Object> rejectedHistory = fetchHistory(rejected);
+		processor.innerProcessResult(rejected);
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (processor.getWriterStats().getWriteErrors() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		standIn.setErrorRate(0);
+		CrawlURI written = TestCaptures.capture(processor, folder.getRoot(), 1, page(1), TestCaptures.digest(1));
+		Map<String, Object> writtenHistory = fetchHistory(written);
+		processor.innerProcessResult(written);
+		processor.stop();
+
+		assertFalse(rejectedHistory.containsKey(RecrawlAttributeConstants.A_WRITE_TAG));
+		assertEquals(standIn.getDocs("pages").get(0).get("_id").toString(),
+				writtenHistory.get(RecrawlAttributeConstants.A_WRITE_TAG));
+	}
+
+	@Test
+	public void testAsyncSnapshotLeavesStoredContentOut() throws Exception {
+		final List<Boolean> bodies = Collections.synchronizedList(new ArrayList<Boolean>());
+		processor = TestCaptures.processor(new MongodbWriterProcessor() {
+			@Override
+			protected void writeSnapshot(final MongodbCapture capture) throws IOException {
+				bodies.add(capture.hasBody());
+				super.writeSnapshot(capture);
+			}
+		}, standIn, parameters);
+		parameters.setAsyncWriterThreads(1);
+		parameters.setBulkDocNumber(1);
+		parameters.setDeduplicateContent(true);
+		processor.start();
+
+		CrawlURI first = TestCaptures.capture(processor, folder.getRoot(), 0, page(0), TestCaptures.digest(0));
+		processor.innerProcessResult(first);
+		// the digest is cached once its content doc is sent
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (standIn.getDocs("pages_content").isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		// the same content fetched again
+		processor.innerProcessResult(TestCaptures.capture(processor, folder.getRoot(), 1, page(0), TestCaptures.digest(0)));
+		processor.stop();
+
+		assertEquals(Arrays.asList(true, false), bodies);
+		List<BSONObject> contents = standIn.getDocs("pages_content");
+		assertEquals(1, contents.size());
+		assertEquals(page(0), contents.get(0).get(parameters.getContentColumnName()));
+		List<BSONObject> docs = standIn.getDocs("pages");
+		assertEquals(2, docs.size());
+		for (BSONObject doc : docs) {
+			assertEquals(first.getContentDigestSchemeString(), doc.get(parameters.getDigestColumnName()));
+		}
+	}
+
+	@Test
+	public void testDocsAreBatched() throws Exception {
+		parameters.setBulkDocNumber(5);
+		parameters.setMaxBatchAgeMs(0);
+		processor.start();
+
+		for (int i = 0; i < 12; i++) {
+			processor.innerProcessResult(TestCaptures.capture(processor, folder.getRoot(), i, page(i), TestCaptures.digest(i)));
+		}
+		assertEquals(2, standIn.getWrites());
+		assertEquals(10, standIn.getDocsInserted());
+		// the last batch is flushed when the pool closes
+		processor.stop();
+
+		assertEquals(3, standIn.getWrites());
+		assertEquals(12, standIn.getDocs("pages").size());
+		assertEquals(12, processor.getWriterStats().getDocsWritten());
+		assertEquals(3, processor.getWriterStats().getBatches());
+	}
+
+	@Test
+	public void testDeferredDocIsRetried() throws Exception {
+		parameters.setBulkDocNumber(1);
+		parameters.setMaxInlineRetryMs(0);
+		standIn.setFailWrites(0, 1);
+		processor.start();
+
+		CrawlURI curi = TestCaptures.capture(processor, folder.getRoot(), 0, page(0), TestCaptures.digest(0));
+		processor.innerProcessResult(curi);
+		// handed to the pool's retrier, so the ToeThread learns no outcome
+		assertTrue(curi.getAnnotations().isEmpty());
+		processor.stop();
+
+		assertEquals(1, standIn.getFailedWrites());
+		assertEquals(1, standIn.getDocs("pages").size());
+		assertEquals(1, processor.getWriterStats().getDocsWritten());
+		assertEquals(1, processor.getStat(MongodbWriter.DOCS, MongodbWriter.NUM_RECORDS));
+	}
+
+	@Test
+	public void testDeferredBatchIsRetried() throws Exception {
+		parameters.setBulkDocNumber(5);
+		parameters.setMaxBatchAgeMs(0);
+		parameters.setMaxInlineRetryMs(0);
+		standIn.setFailWrites(0, 1);
+		processor.start();
+
+		for (int i = 0; i < 5; i++) {
+			processor.innerProcessResult(TestCaptures.capture(processor, folder.getRoot(), i, page(i), TestCaptures.digest(i)));
+		}
+		processor.stop();
+
+		assertEquals(1, standIn.getFailedWrites());
+		assertEquals(5, standIn.getDocs("pages").size());
+		assertEquals(5, processor.getWriterStats().getDocsWritten());
+		assertEquals(5, processor.getStat(MongodbWriter.DOCS, MongodbWriter.NUM_RECORDS));
+	}
+
+	/**
+	 * Three captures, the first two with the same content.
+	 */
+	private void writeDeduplicated() throws IOException {
+		String[] bodies = {page(0), page(0), page(1)};
+		int[] digests = {0, 0, 1};
+		for (int i = 0; i < bodies.length; i++) {
+			processor.innerProcessResult(TestCaptures.capture(processor, folder.getRoot(), i, bodies[i],
+					TestCaptures.digest(digests[i])));
+		}
+		processor.stop();
+
+		List<BSONObject> contents = standIn.getDocs("pages_content");
+		assertEquals(2, contents.size());
+		assertEquals(page(0), contents.get(0).get(parameters.getContentColumnName()));
+		assertEquals(page(1), contents.get(1).get(parameters.getContentColumnName()));
+		List<BSONObject> docs = standIn.getDocs("pages");
+		assertEquals(3, docs.size());
+		for (int i = 0; i < docs.size(); i++) {
+			assertEquals(contents.get(digests[i]).get("_id"), docs.get(i).get(parameters.getDigestColumnName()));
+			assertFalse(docs.get(i).containsField(parameters.getContentColumnName()));
+		}
+		assertEquals(3, processor.getWriterStats().getDocsWritten());
+		assertEquals(3, processor.getStat(MongodbWriter.DOCS, MongodbWriter.NUM_RECORDS));
+		assertEquals(2, processor.getStat(MongodbWriter.CONTENT_DOCS, MongodbWriter.NUM_RECORDS));
+	}
+
+	@Test
+	public void testContentIsStoredOncePerDigest() throws Exception {
+		parameters.setDeduplicateContent(true);
+		parameters.setBulkDocNumber(1);
+		processor.start();
+		writeDeduplicated();
+	}
+
+	@Test
+	public void testBatchedContentIsStoredOncePerDigest() throws Exception {
+		parameters.setDeduplicateContent(true);
+		parameters.setContinueOnError(false);
+		parameters.setBulkDocNumber(3);
+		parameters.setMaxBatchAgeMs(0);
+		processor.start();
+		writeDeduplicated();
+		// the content docs went in first, in a batch of their own
+		assertEquals(2, standIn.getWrites());
+	}
+}
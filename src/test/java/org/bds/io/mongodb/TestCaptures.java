@@ -0,0 +1,133 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *  MongoDB storage has been added for big data crawler to store crawled Internet data. 
+ *  
+ *  @email herman_cn@163.com
+ *  @date 2014-10-21
+ */
+
+package org.bds.io.mongodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+
+import org.archive.modules.CrawlURI;
+import org.archive.modules.fetcher.DefaultServerCache;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+
+/**
+ * Fetched CrawlURIs with real recorders for the tests, as the writer sees them after a
+ * fetch, and a processor writing to a {@link MongodbStandIn}.
+ */
+final class TestCaptures {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private TestCaptures() {
+	}
+
+	/**
+	 * @param parameters settings of the processor, its host and port are set to the stand-in
+	 * @return a processor writing to the stand-in, not started yet
+	 */
+	static MongodbWriterProcessor processor(final MongodbStandIn standIn, final MongodbParameters parameters) {
+		return processor(new MongodbWriterProcessor(), standIn, parameters);
+	}
+
+	/**
+	 * @param processor the processor to set up, e.g. one that records what it writes
+	 * @param parameters settings of the processor, its host and port are set to the stand-in
+	 * @return the processor, writing to the stand-in, not started yet
+	 */
+	static <T extends MongodbWriterProcessor> T processor(final T processor, final MongodbStandIn standIn,
+			final MongodbParameters parameters) {
+		parameters.setHost("127.0.0.1");
+		parameters.setPort(standIn.getPort());
+		parameters.setDatabase("crawl");
+		parameters.setCollection("pages");
+		processor.setMongodbParameters(parameters);
+		processor.setServerCache(new DefaultServerCache());
+		processor.setPoolMaxActive(4);
+		processor.setMaxWaitForIdleMs(100);
+		return processor;
+	}
+
+	/**
+	 * Record a fetch of an html page.
+	 *
+	 * @param directory where the recorder keeps its backing files
+	 * @param i number of the capture, used in its url, fetch time and file names
+	 * @param body the response body
+	 * @param digest the content digest, distinct bodies need distinct digests
+	 * @return a fetched CrawlURI with a closed recorder, ready to be written
+	 */
+	static CrawlURI capture(final MongodbWriterProcessor processor, final File directory, final int i,
+			final String body, final byte[] digest) throws IOException {
+		CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://www.example" + (i % 4) + ".com/page/" + i + ".html"));
+		Recorder recorder = new Recorder(directory, "capture-" + i, 4096, 16 * 1024);
+		recorder.setCharset(UTF8);
+
+		OutputStream out = recorder.outputWrap(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		out.write(("GET /page/" + i + ".html HTTP/1.1\r\nHost: www.example" + (i % 4) + ".com\r\n\r\n").getBytes(UTF8));
+
+		byte[] content = body.getBytes(UTF8);
+		byte[] headers = ("HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=UTF-8\r\nContent-Length: "
+				+ content.length + "\r\n\r\n").getBytes(UTF8);
+		InputStream in = recorder.inputWrap(new ByteArrayInputStream(concat(headers, content)));
+		readFully(in, headers.length);
+		recorder.markContentBegin();
+		readFully(in, content.length);
+		recorder.close();
+
+		curi.setRecorder(recorder);
+		curi.setFetchType(CrawlURI.FetchType.HTTP_GET);
+		curi.setFetchStatus(200);
+		curi.setFetchBeginTime(1413849600000L + i * 1000L);
+		curi.setContentType("text/html");
+		curi.setContentSize(recorder.getRecordedInput().getSize());
+		curi.setContentDigest("sha1", digest);
+		processor.getServerCache().getHostFor(curi.getUURI()).setIP(InetAddress.getByAddress(new byte[] {(byte) 192, 0, 2, 1}), -1);
+		return curi;
+	}
+
+	/**
+	 * @return a digest of 20 bytes distinct for every n.
+	 */
+	static byte[] digest(final int n) {
+		byte[] digest = new byte[20];
+		digest[0] = (byte) (n >> 24);
+		digest[1] = (byte) (n >> 16);
+		digest[2] = (byte) (n >> 8);
+		digest[3] = (byte) n;
+		return digest;
+	}
+
+	private static byte[] concat(final byte[] a, final byte[] b) {
+		byte[] both = new byte[a.length + b.length];
+		System.arraycopy(a, 0, both, 0, a.length);
+		System.arraycopy(b, 0, both, a.length, b.length);
+		return both;
+	}
+
+	private static void readFully(final InputStream in, final int length) throws IOException {
+		byte[] buffer = new byte[4096];
+		int remaining = length;
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+			if (read == -1) {
+				throw new IOException("Recording ended early");
+			}
+			remaining -= read;
+		}
+	}
+}